@@ -0,0 +1,347 @@
+/*
+ * Copyright (C) 2004-2008  University of Wisconsin-Madison and Omnitor AB
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ */
+package se.omnitor.protocol.rtp;
+
+import java.util.logging.Logger;
+
+import se.omnitor.protocol.rtp.packets.RTCPBYEPacket;
+import se.omnitor.protocol.rtp.packets.RTCPPacket;
+import se.omnitor.protocol.rtp.packets.RTCPReceiverReportPacket;
+import se.omnitor.protocol.rtp.packets.RTCPSDESPacket;
+import se.omnitor.protocol.rtp.packets.RTCPSenderReportPacket;
+import se.omnitor.protocol.rtp.packets.RTCP_actionListener;
+import se.omnitor.protocol.rtp.packets.ReportBlock;
+import se.omnitor.protocol.rtp.text.RtpTextPacketizer;
+import se.omnitor.protocol.rtp.text.SyncBuffer;
+
+/**
+ * Adapts the number of redundant generations of an outgoing text stream to
+ * the packet loss the receiver reports in RTCP. <br>
+ * <br>
+ * Every report block about the stream gives a loss sample. When the
+ * previous report is known, the sample is taken from the change in the
+ * cumulative number of lost packets and the extended highest sequence
+ * number, which is more exact than the 8 bit fraction lost. The first
+ * report, and reports where the counters went backwards, use the fraction
+ * lost. The samples are smoothed. <br>
+ * <br>
+ * With independent losses of probability p, text is lost only when a
+ * packet and all its redundant copies are lost, which happens with
+ * probability p^(generations + 1). The controller picks the smallest
+ * number of generations that keeps this below TARGET_RESIDUAL_LOSS,
+ * within the configured bounds. A higher level is used at once, a lower
+ * level only after it has been called for by several reports in a row, so
+ * that a single clean interval does not remove protection. <br>
+ * <br>
+ * A new level is not given to the packetizer right away, since the RTCP
+ * thread would change it while the transmitter is between sizing and
+ * encoding a packet. The transmitter calls applyPendingGenerations() before
+ * it sizes each packet, which makes the latest level take effect. <br>
+ * <br>
+ * The controller is registered as an RTCP listener on the session that
+ * sends the stream, see RtpTextTransmitter#setAdaptiveRedundancy.
+ *
+ * @author Unknown
+ */
+public class AdaptiveRedundancyController implements RTCP_actionListener
+{
+    /**
+     * The highest rate of lost text the controller aims for.
+     */
+    public static final double TARGET_RESIDUAL_LOSS = 0.001;
+
+    /**
+     * The weight of a new sample in the smoothed loss.
+     */
+    private static final double SMOOTHING = 0.25;
+
+    /**
+     * The number of reports in a row that must call for a lower level
+     * before it is used.
+     */
+    private static final int REPORTS_BEFORE_DECREASE = 3;
+
+    private static Logger logger =
+	Logger.getLogger("se.omnitor.protocol.rtp");
+
+    private RtpTextPacketizer packetizer;
+    private SyncBuffer dataBuffer;
+    private int minGenerations;
+    private int maxGenerations;
+
+    private double smoothedLoss;
+    private boolean firstReport;
+    private long lastCumulativeLost;
+    private long lastHighestSeq;
+    private int lowerReports;
+    private long reportCount;
+
+    // The level decided on, and the level waiting to be applied by the
+    // transmitter, -1 if there is none
+    private int generations;
+    private int pendingGenerations;
+
+    /**
+     * Initializes the controller. The packetizer will be set to the lowest
+     * level within the bounds that is not below its current level, when
+     * the transmitter applies it.
+     *
+     * @param packetizer The packetizer of the stream
+     * @param dataBuffer The buffer feeding the packetizer, it is told how
+     * many empty packets to send after data. May be null.
+     * @param minGenerations The lowest number of redundant generations
+     * @param maxGenerations The highest number of redundant generations
+     */
+    public AdaptiveRedundancyController(RtpTextPacketizer packetizer,
+					SyncBuffer dataBuffer,
+					int minGenerations,
+					int maxGenerations)
+    {
+	if (minGenerations < 0) {
+	    minGenerations = 0;
+	}
+	if (maxGenerations < minGenerations) {
+	    maxGenerations = minGenerations;
+	}
+
+	this.packetizer = packetizer;
+	this.dataBuffer = dataBuffer;
+	this.minGenerations = minGenerations;
+	this.maxGenerations = maxGenerations;
+
+	smoothedLoss = 0;
+	firstReport = true;
+	lowerReports = 0;
+	reportCount = 0;
+
+	int current = packetizer.getRedundantGenerations();
+	generations = current;
+	pendingGenerations = -1;
+	apply(Math.max(minGenerations, Math.min(maxGenerations, current)));
+    }
+
+    /**
+     * Makes the latest level take effect on the packetizer and the data
+     * buffer. Must only be called by the transmit thread between packets,
+     * so that a packet is sized and encoded with the same level.
+     *
+     * @return The number of redundant generations now used
+     */
+    public synchronized int applyPendingGenerations()
+    {
+	if (pendingGenerations >= 0) {
+	    packetizer.setRedundantGenerations(pendingGenerations);
+	    if (dataBuffer != null) {
+		dataBuffer.setRedGen(pendingGenerations);
+	    }
+	    pendingGenerations = -1;
+	}
+	return packetizer.getRedundantGenerations();
+    }
+
+    /**
+     * Gets the number of redundant generations currently sent.
+     *
+     * @return The current level
+     */
+    public int getCurrentGenerations()
+    {
+	return packetizer.getRedundantGenerations();
+    }
+
+    /**
+     * Gets the smoothed packet loss reported by the receiver.
+     *
+     * @return The loss, from 0 to 1
+     */
+    public synchronized double getSmoothedLoss()
+    {
+	return smoothedLoss;
+    }
+
+    /**
+     * Gets the number of report blocks the controller has used.
+     *
+     * @return The number of reports
+     */
+    public synchronized long getReportCount()
+    {
+	return reportCount;
+    }
+
+    /**
+     * Gets the lowest level the controller uses.
+     *
+     * @return The lowest number of redundant generations
+     */
+    public int getMinGenerations()
+    {
+	return minGenerations;
+    }
+
+    /**
+     * Gets the highest level the controller uses.
+     *
+     * @return The highest number of redundant generations
+     */
+    public int getMaxGenerations()
+    {
+	return maxGenerations;
+    }
+
+    /**
+     * Uses the report block of a receiver report, if there is one.
+     *
+     * @param rrPkt The received RTCP Receiver report packet.
+     */
+    public void handleRTCPEvent(RTCPReceiverReportPacket rrPkt)
+    {
+	handleReport(rrPkt);
+    }
+
+    /**
+     * Uses the report block of a sender report, if there is one.
+     *
+     * @param srPkt The received RTCP Sender report packet.
+     */
+    public void handleRTCPEvent(RTCPSenderReportPacket srPkt)
+    {
+	handleReport(srPkt);
+    }
+
+    /**
+     * Does nothing, SDES packets carry no loss information.
+     *
+     * @param sdespkt The received RTCP SDES packet.
+     */
+    public void handleRTCPEvent(RTCPSDESPacket sdespkt)
+    {
+    }
+
+    /**
+     * Does nothing, the level is kept for a receiver that rejoins.
+     *
+     * @param byepkt The received BYE packet.
+     */
+    public void handleRTCPEvent(RTCPBYEPacket byepkt)
+    {
+    }
+
+    /**
+     * Takes a loss sample from a report and changes the level if needed.
+     * Only report blocks about the own stream are attached to packets by
+     * the session, so any block found here is about this stream.
+     *
+     * @param packet The received report
+     */
+    private synchronized void handleReport(RTCPPacket packet)
+    {
+	if (!packet.isContainingReportBlock()) {
+	    return;
+	}
+
+	ReportBlock block = packet.getReportBlock();
+	long cumulativeLost = block.getCumulativeNumberOfPacketsLost();
+	long highestSeq =
+	    block.getExtendedHighestSequenceNumberReceived() & 0xffffffffL;
+
+	// Sender reports store the fraction as 0..255, receiver reports as
+	// a signed byte.
+	double sample = (((int)block.getFractionLost()) & 0xff) / 256.0;
+
+	if (!firstReport) {
+	    long expected = highestSeq - lastHighestSeq;
+	    long lost = cumulativeLost - lastCumulativeLost;
+
+	    if (expected > 0 && lost >= 0) {
+		sample = Math.min(1.0, (double)lost / (double)expected);
+	    }
+	}
+
+	lastCumulativeLost = cumulativeLost;
+	lastHighestSeq = highestSeq;
+
+	if (firstReport) {
+	    smoothedLoss = sample;
+	    firstReport = false;
+	}
+	else {
+	    smoothedLoss += SMOOTHING * (sample - smoothedLoss);
+	}
+	reportCount++;
+
+	int current = generations;
+	int wanted = generationsFor(smoothedLoss);
+
+	if (wanted > current) {
+	    lowerReports = 0;
+	    apply(wanted);
+	}
+	else if (wanted < current) {
+	    lowerReports++;
+	    if (lowerReports >= REPORTS_BEFORE_DECREASE) {
+		lowerReports = 0;
+		apply(current - 1);
+	    }
+	}
+	else {
+	    lowerReports = 0;
+	}
+    }
+
+    /**
+     * Calculates the level needed for a loss rate.
+     *
+     * @param loss The packet loss, from 0 to 1
+     *
+     * @return The number of generations, within the bounds
+     */
+    private int generationsFor(double loss)
+    {
+	int generations;
+
+	if (loss <= 0) {
+	    generations = minGenerations;
+	}
+	else if (loss >= 1) {
+	    generations = maxGenerations;
+	}
+	else {
+	    // Smallest g with loss^(g+1) <= TARGET_RESIDUAL_LOSS
+	    generations = (int)Math.ceil(Math.log(TARGET_RESIDUAL_LOSS) /
+					 Math.log(loss)) - 1;
+	}
+
+	return Math.max(minGenerations, Math.min(maxGenerations,
+						 generations));
+    }
+
+    private void apply(int newGenerations)
+    {
+	if (newGenerations == generations) {
+	    return;
+	}
+
+	logger.fine("Redundant generations " + generations + " -> " +
+		    newGenerations + ", loss " + smoothedLoss);
+
+	generations = newGenerations;
+	pendingGenerations = newGenerations;
+    }
+}
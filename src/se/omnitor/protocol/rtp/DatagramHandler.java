@@ -0,0 +1,42 @@
+/*
+ * Copyright (C) 2004-2008  University of Wisconsin-Madison and Omnitor AB
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ */
+package se.omnitor.protocol.rtp;
+
+/**
+ * Interface which is implemented by classes that parse datagrams read by an
+ * RTPSelectorEngine. The engine calls handleDatagram from one of its
+ * selector threads, so implementations must return quickly and must not
+ * block.
+ *
+ * @author Unknown
+ *
+ * @see RTPSelectorEngine
+ */
+public interface DatagramHandler
+{
+    /**
+     * Handles one received datagram. The data array belongs to the engine
+     * and is overwritten by the next datagram as soon as this method
+     * returns, anything that should be kept must be copied.
+     *
+     * @param data The buffer holding the datagram, starting at index 0
+     * @param length The number of valid bytes in data
+     */
+    void handleDatagram(byte[] data, int length);
+}
@@ -114,6 +114,13 @@ public class IncomingPacketsDialogHandler {
 	
 	public void addPacket(RTPPacket packet) {
 		
+		// Packets reused by the session are views into the receive
+		// buffer, keep a compact copy
+		if (packet.getPayloadOffset() != 0 ||
+		    packet.getPayloadLength() != packet.getPayloadData().length) {
+			packet = packet.copy();
+		}
+
 		byte[] payload = packet.getPayloadData();
 		byte[] newPayloadData = new byte[payload.length];
 		System.arraycopy(payload, 0, newPayloadData, 0, payload.length);
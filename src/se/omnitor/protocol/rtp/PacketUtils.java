@@ -27,6 +27,11 @@ package se.omnitor.protocol.rtp;
  */
 public class PacketUtils {
 
+    /**
+     * Seconds from the NTP epoch, 1900, to the Java epoch, 1970.
+     */
+    public static final long NTP_EPOCH_OFFSET = 2208988800L;
+
     /**
      *   Append two byte arrays.
      *   Appends packet B at the end of Packet A (Assuming Bytes as elements).
@@ -98,7 +103,62 @@ public class PacketUtils {
         }
         return buff;
     }
-    
+
+    /**
+     * Write the n least significant bytes of a 64 bit long into an existing
+     * buffer, most significant byte first. Unlike longToBytes(long, int) no
+     * array is allocated, which makes it suitable for assembling headers
+     * in place.
+     *
+     * @param ldata  The long to write.
+     * @param buff   The buffer to write into.
+     * @param offset The position in buff of the first byte to write.
+     * @param n      The number of bytes to write.
+     *
+     * @return The position in buff directly after the written bytes.
+     */
+    public static int longToBytes ( long ldata, byte[] buff, int offset,
+				    int n )
+    {
+        for ( int i=offset+n-1; i>=offset; i--) {
+	    buff [ i ] = (byte) ldata;
+            ldata = ldata >> 8;
+        }
+        return offset + n;
+    }
+
+    /**
+     * Convert a time from System.currentTimeMillis() to a 64 bit NTP
+     * timestamp, as used in RTCP Sender Reports. The 32 most significant
+     * bits are the seconds since 1900, the 32 least significant bits the
+     * fraction of a second.
+     *
+     * @param millis The time in milliseconds since 1970.
+     *
+     * @return The NTP timestamp.
+     */
+    public static long toNtpTimeStamp ( long millis )
+    {
+        long seconds = millis / 1000 + NTP_EPOCH_OFFSET;
+        long fraction = ( ( millis % 1000 ) << 32 ) / 1000;
+
+        return ( seconds << 32 ) | fraction;
+    }
+
+    /**
+     * Get the middle 32 bits of the NTP timestamp of a time, the compact
+     * form used for LSR and round-trip time calculations. The unit is
+     * 1/65536 seconds.
+     *
+     * @param millis The time in milliseconds since 1970.
+     *
+     * @return The middle 32 bits of the NTP timestamp.
+     */
+    public static long toCompactNtpTimeStamp ( long millis )
+    {
+        return ( toNtpTimeStamp ( millis ) >>> 16 ) & 0xffffffffL;
+    }
+
     /**
      * Calculate number of octets required to fit the
      * given number of octets into 32 bit boundary.
@@ -18,13 +18,7 @@
  */
 package se.omnitor.protocol.rtp;
 
-import se.omnitor.protocol.rtp.packets.ReportBlock;
-import se.omnitor.protocol.rtp.packets.RTCPBYEPacket;
-import se.omnitor.protocol.rtp.packets.RTCPSDESPacket;
-import se.omnitor.protocol.rtp.packets.RTCPReceiverReportPacket;
-import se.omnitor.protocol.rtp.packets.RTCPSenderReportPacket;
-import se.omnitor.protocol.rtp.packets.SDESItem;
-import se.omnitor.protocol.rtp.packets.SenderInfo;
+import se.omnitor.protocol.rtp.packets.RTCPPacketReader;
 
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
@@ -44,7 +38,7 @@ import java.util.Date;
  * @author Unknown
  */
 // IP: Removed all static objects and added private object rtpSession
-public class RTCPReceiverThread implements Runnable {
+public class RTCPReceiverThread implements Runnable, DatagramHandler {
     /**
      *   Receiver Port for RTCP Packets
      */
@@ -64,6 +58,11 @@ public class RTCPReceiverThread implements Runnable {
 
     private boolean symmetric;
 
+    private RTPSelectorEngine selectorEngine;
+
+    // Reused for every datagram, handleDatagram is called by one thread
+    private RTCPPacketReader reader = new RTCPPacketReader();
+
     /**
      * Constructor for the class. Takes in a TCP/IP Address and a port number
      *
@@ -94,12 +93,44 @@ public class RTCPReceiverThread implements Runnable {
 	thisThread = new StateThread(this, "RTCP Receiver Thread");
     }
 
+    /**
+     * Constructor for a symmetric session served by an RTPSelectorEngine.
+     * The socket must belong to a DatagramChannel. start() registers it with
+     * the engine instead of starting a thread.
+     *
+     * @param multicastGroupIPAddress Dotted representation of the Multicast
+     * address.
+     * @param rtcpGroupPort Port for Multicast group (for receiving RTP
+     * Packets).
+     * @param rtpSession The session to use
+     * @param socket The socket to receive from
+     * @param selectorEngine The engine to receive with
+     */
+    public RTCPReceiverThread(InetAddress multicastGroupIPAddress,
+			      int rtcpGroupPort, Session rtpSession,
+			      DatagramSocket socket,
+			      RTPSelectorEngine selectorEngine) {
+	this(multicastGroupIPAddress, rtcpGroupPort, rtpSession, socket);
+	this.selectorEngine = selectorEngine;
+    }
+
     /**
      * Starts the receiver thread
      *
      */
     public void start() {
-	thisThread.start();
+	if (selectorEngine != null) {
+	    try {
+		selectorEngine.register(socket.getChannel(), this);
+	    }
+	    catch (java.io.IOException e) {
+		System.err.println("RTCPReceiverThread: Failed to register " +
+				   "with selector engine. " + e);
+	    }
+	}
+	else {
+	    thisThread.start();
+	}
     }
 
     /**
@@ -112,6 +143,11 @@ public class RTCPReceiverThread implements Runnable {
 	    thisThread.interrupt();
 	}
 
+	if (selectorEngine != null && socket != null &&
+	    socket.getChannel() != null) {
+	    selectorEngine.unregister(socket.getChannel());
+	}
+
 	if (socket != null) {
 	    try {
 		Thread.sleep(2000);
@@ -170,22 +206,35 @@ public class RTCPReceiverThread implements Runnable {
 		socket = new DatagramSocket(m_port);
 	    }
 
-	    byte[] packet = new byte[1024];
+	    // Compound packets with many report blocks are larger than 1 kB,
+	    // receive the same size as the RTP handler
+	    byte[] packet = new byte[RTPThreadHandler.RECEIVE_BUFFER_SIZE];
 	    DatagramPacket header =
 		new DatagramPacket( packet, packet.length );
-	    int i= 0;
 
 	    while (thisThread.checkState() != StateThread.STOP) {
 		// Preliminary Information - Time Pkt Received, Length of
 		// the Packet, hostname , IP address :: portnumber
-		rtpSession.outprint ("\n");
+		if (rtpSession.debugOutput) {
+		    rtpSession.outprint ("\n");
 
-		rtpSession.outprint
-		    (Long.toString((new Date()).getTime()) +
-		     "   " + "RTCP" + "  ");
+		    rtpSession.outprint
+			(Long.toString((new Date()).getTime()) +
+			 "   " + "RTCP" + "  ");
+		}
 
 		try {
+		    header.setLength(packet.length);
 		    socket.receive(header);
+
+		    if (rtpSession.debugOutput) {
+			rtpSession.outprint("Len " + header.getLength() +
+					    "  " + "from " +
+					    header.getAddress()+ ":" +
+					    header.getPort() + "\n");
+		    }
+
+		    handleDatagram(packet, header.getLength());
 		}catch (java.net.SocketTimeoutException ste) {
 		    //It's ok to timeout
 		}catch (SocketException e) {
@@ -196,813 +245,436 @@ public class RTCPReceiverThread implements Runnable {
 			// Sometimes an interruptedException comes here due to Hangup
 		}
 
-		rtpSession.outprint("Len " + header.getLength() +  "  " +
-				    "from " + header.getAddress()+ ":" +
-				    header.getPort() + "\n");
-
-		/*******************************************************
-		 * RTCP Header Validity Checks
-		 * 1) Version should always =2
-		 * 2) The payload type field of the first RTCP Packet
-		 *    should be SR or RR
-		 * 3) The Padding Bit (P) should be zero for the first
-		 *    packet
-		 * 4) The length fields of individual RTCP Packets must
-		 *    total to the overall length of the compound RTCP
-		 *    Packet
-		 *******************************************************/
-
-		// RTCP Header Validity Check 2
-		int payloadType_1 = (int) (packet[1] & 0xff);
-		if  ((payloadType_1 !=  RTCPConstants.RTCP_SR) &&
-		     (payloadType_1 !=   RTCPConstants.RTCP_RR ) ) {
-
-		    rtpSession.outprint("RTCP Header Check Fail : " +
-					"First Payload type not a SR " +
-					"or RR\n");
-		}
-
-		//RTCP Header Validity Check 3
-
-		if ((((packet[0] & 0xff) >> 5) & 0x01) != 0) {
-		    rtpSession.outprint("RTCP Header Check Fail : " +
-					"First Padding bit not " +
-					" zero\n");
-		}
-
-		// Since a RTCP Packet may contain many types of
-		// RTCP Packets. Keep parsing the packets until the
-		// no. of bytes parsed  = total no of bytes read
-		int bytesRead = 0;
-		int totalBytesRead =0;
-
-		int hLength = header.getLength();
-
-		while (totalBytesRead < hLength) {
-		    // RTCP Header Validity Check 1
-
-		    byte version =
-			(byte)((packet[bytesRead] & 0xff) >> 6);
-
-		    if ( version != 0x02) {
-			rtpSession.outprint("RTCP Header Check " +
-					    "Fail : Wrong Version\n");
-		    }
-
-		    // Check the length of this particular packet
-		    short length =
-			(short)((packet[bytesRead+2] << 8) |
-				(packet [bytesRead +3] & 0xff));
-
-
-		    // Check the Payload type of this packet
-		    int pt =  ((packet[bytesRead+1] & 0xff) );
-
-		    if (pt == RTCPConstants.RTCP_SR) {
-			// Create an RTCP SR Packet and post it for
-			// interested listeners
-			RTCPSenderReportPacket rtcpSRPacket =
-			    new RTCPSenderReportPacket();
-
-			SenderInfo senderInfo = new SenderInfo();
-
-			// Check if there are any reception reports
-			byte rc =
-			    (byte)((packet[bytesRead] & 0xff) & 0x1f);
-
-			rtpSession.outprint("RC" + rc +"\n");
-
-			long ssrc =
-			    (((packet[bytesRead + 4] & 0xff) << 24) |
-			     ((packet[bytesRead+5] & 0xff) << 16) |
-			     ((packet[bytesRead +6] & 0xff) << 8) |
-			     (packet[bytesRead +7] & 0xff));
-
-			//Update the Sender SSRC for the SR Packet
-			rtcpSRPacket.setSenderSsrc(ssrc);
-
-			// Increment the bytes
-			bytesRead +=8;
-
-			rtpSession.outprint("(SR ssrc=0x" +
-					    Long.toHexString(ssrc) +
-					    "    count= " + rc +
-					    "   len =  " + length +
-					    "\n");
-
-			// Get the source from the Session
-			// corresponding to this particular SSRC
-			Source sender_Source =
-			    rtpSession.getSource(ssrc);
-
-			if (sender_Source != null) {
-			    // Update all the source parameters and
-			    // statistics
-			    sender_Source.timeOfLastRTCPArrival =
-				rtpSession.currentTime();
-
-			}
-
-			if (length!=1) { // Not an empty packet
-
-			    long ntp_sec =
-				(((packet[bytesRead] & 0xff)<<24) |
-				 ((packet[bytesRead +1] & 0xff)<<16) |
-				 ((packet[bytesRead+2] & 0xff) << 8) |
-				 (packet[bytesRead+3] & 0xff) );
-
-			    long ntp_frac =
-				(((packet[bytesRead+4] & 0xff)<<24) |
-				 ((packet[bytesRead+5] & 0xff)<<16) |
-				 ((packet[bytesRead+6] & 0xff) << 8) |
-				 (packet[bytesRead+7] & 0xff));
-
-			    long rtp_ts =
-				(((packet[bytesRead+8] & 0xff)<<24) |
-				 ((packet[bytesRead+9] & 0xff)<<16) |
-				 ((packet[bytesRead+10] & 0xff)<<8) |
-				 (packet[bytesRead+11] & 0xff));
-
-			    long psent =
-				(((packet[bytesRead+12] & 0xff)<<24) |
-				 ((packet[bytesRead+13] & 0xff)<<16) |
-				 ((packet[bytesRead+14] & 0xff)<<8) |
-				 (packet[bytesRead+15] & 0xff));
-
-			    long osent =
-				(((packet[bytesRead+16] & 0xff)<<24) |
-				 ((packet[bytesRead+17] & 0xff)<<16) |
-				 ((packet[bytesRead+18] & 0xff)<<8) |
-				 (packet[bytesRead+19] & 0xff));
-
-			    // Set the lst - middle 32 bits out of
-			    // NTPTimeStamp
-			    sender_Source.lst =
-				((packet[bytesRead+6] & 0xff) << 24) |
-				((packet[bytesRead+7] & 0xff)<<16)|
-				(((packet[bytesRead+8] & 0xff) << 8) |
-				 (packet[bytesRead+9] & 0xff) ) ;
-
-			    // Set the SenderInfo part of the SR
-			    // Packet to be thrown out
-			    senderInfo.setSenderOctetCount(osent);
-
-			    //Set the arrival time of this SR report
-			    sender_Source.timeofLastSRRcvd =
-				sender_Source.timeOfLastRTCPArrival;
-			    senderInfo.setSenderPacketCount(psent);
-			    senderInfo.setRtpTimeStamp(rtp_ts);
-			    senderInfo.setNtpTimeStampLeastSignificant
-				(ntp_frac);
-			    senderInfo.setNtpTimeStampMostSignificant
-				(ntp_sec);
-			    rtcpSRPacket.setSenderInfo(senderInfo);
-
-			    rtpSession.outprint("ntp = " +  ntp_sec +
-						" " + ntp_frac +
-						"   ts=   " +
-						rtp_ts +
-						"  psent =  " +
-						psent + "  osent   " +
-						osent + "\n" + ")" +
-						"\n");
-
-			    bytesRead +=20;
-			}
-
-			//Parse the reports
-			for (int j=0; j<rc;j++) {
-
-			    long rcvr_ssrc =
-				(((packet[bytesRead] & 0xff) << 24) |
-				 ((packet[bytesRead+1] & 0xff)<<16) |
-				 ((packet[bytesRead+2] & 0xff)<<8) |
-				 (packet[bytesRead +3 ] & 0xff));
-
-			    double fractionLost =
-				(packet[bytesRead+4] & 0xff);
-
-			    long cumPktsLost =
-				(((((packet[bytesRead+4] & 0xff)<<24)|
-				   ((packet[bytesRead+5] & 0xff)<<16)|
-				   ((packet[bytesRead+6] & 0xff)<<8)|
-				   (packet[bytesRead+7] & 0xff)) ) &
-				 0xffffff);
-
-			    long extHighSqRcvd =
-				(((packet[bytesRead + 8] & 0xff)<<24)|
-				 ((packet[bytesRead + 9] & 0xff)<<16)|
-				 ((packet[bytesRead+10] & 0xff)<<8)|
-				 (packet[bytesRead+11] & 0xff));
-
-			    long intJitter =
-				(((packet[bytesRead+12] & 0xff)<<24)|
-				 ((packet[bytesRead+13] & 0xff)<<16)|
-				 ((packet[bytesRead+14] & 0xff)<<8)|
-				 (packet[bytesRead+15] & 0xff));
-
-			    long lastSR =
-				(((packet[bytesRead+16] & 0xff)<<24)|
-				 ((packet[bytesRead+17] & 0xff)<<16)|
-				 ((packet[bytesRead+18] & 0xff)<<8) |
-				 (packet[bytesRead+19] & 0xff));
-
-			    long delay_LastSR =
-				(((packet[bytesRead+20] & 0xff)<<24)|
-				 ((packet[bytesRead+21] & 0xff)<<16)|
-				 ((packet[bytesRead+22] & 0xff)<<8) |
-				 (packet[bytesRead+23] & 0xff));
-
-			    // Update the statistics -  only if the
-			    // rcvr_ssrc matches your own ssrc
-
-			    Source reception_Source =
-				rtpSession.getMySource();
-
-			    // Check if sender report contains
-			    // information about this particular source
-			    if (rcvr_ssrc == reception_Source.ssrc) {
-
-				// Create a new report block and set
-				// its attributes
-				rtcpSRPacket.doesContainReportBlock(true);
-
-				ReportBlock reportblock =
-				    new ReportBlock();
-				reportblock.setFractionLost(fractionLost);
-				reportblock.setCumulativeNumberOfPacketsLost
-				    (cumPktsLost);
-				reportblock.
-				    setExtendedHighestSequenceNumberReceived
-				    (extHighSqRcvd);
-				reportblock.setInterarrivalJitter
-				    (intJitter);
-				reportblock.setLastSr(lastSR);
-				reportblock.setDelayLastSr(delay_LastSR);
-
-				// Set the Sender Report Packet's
-				// Report Block to this Report Block
-				rtcpSRPacket.setReportBlock(reportblock);
-
-			    }
-
-			    //Print the statistics
-			    rtpSession.outprint
-				("(ssrc=0x" +
-				 Long.toHexString(rcvr_ssrc) +
-				 "    fraction =  " + fractionLost +
-				 "     lost =  " + cumPktsLost +
-				 "     last_seq =  " + extHighSqRcvd +
-				 "   jit  =   " + intJitter +
-				 "  lsr =  " + lastSR +
-				 "    dlsr = " + delay_LastSR +
-				 "\n");
-
-			    bytesRead += 24;
-
-			}
-
-			// Update Average RTCP Packet size
-			rtpSession.avg_rtcp_size =
-			    1/16*(length*4 + 1 ) +
-			    15/16*(rtpSession.avg_rtcp_size);
-
-			if (ssrc != rtpSession.ssrc) {
-
-			    // Post the SR Packet only if its not the
-			    // same packet sent out by this source
-			    rtpSession.postAction (rtcpSRPacket);
-			}
-
-		    }
-
-		    if (pt == RTCPConstants.RTCP_RR) {
-
-			// Create an RTCP RR Packet and post it for
-			// interested listeners
-			RTCPReceiverReportPacket rtcpRRPacket =
-			    new RTCPReceiverReportPacket();
-
-			// Check if there are any reception reports
-			byte rc =
-			    (byte)((packet[bytesRead] & 0xff) & 0x1f);
-
-			long ssrc =
-			    (((packet[bytesRead+4] & 0xff) << 24) |
-			     ((packet[bytesRead+5] & 0xff) << 16) |
-			     ((packet[bytesRead+6] & 0xff) << 8) |
-			     (packet[bytesRead+7] & 0xff));
-
-			rtpSession.outprint
-			    ("( RR ssrc=0x" +
-			     Long.toHexString(ssrc) + "    count= " +
-			     rc +"   len =  " + length  + "\n" + ")" +
-			     "\n");
-
-			// Get the source from the Session
-			// corresponding to this particular SSRC
-			Source sender_Source =
-			    rtpSession.getSource(ssrc);
-
-			//Set the Sender SSRC of the RR Packet
-			rtcpRRPacket.setSenderSsrc(ssrc);
-
-			if (sender_Source != null) {
-
-			    // Update all the source parameters and
-			    // statistics
-			    sender_Source.timeOfLastRTCPArrival =
-				rtpSession.currentTime();
-			}
-
-			// Increment the Bytes read by the length
-			// of this packet
-			bytesRead +=8;
-
-			// Parse the reports
-			for (int j=0; j<rc;j++) {
-
-			    long rcvr_ssrc =
-				(((packet[bytesRead] & 0xff) << 24) |
-				 ((packet[bytesRead+1] & 0xff)<<16) |
-				 ((packet[bytesRead+2] & 0xff) << 8) |
-				 (packet[bytesRead +3 ] & 0xff));
-
-			    byte fractionLost =
-				(byte)(packet[bytesRead+4] &  0xff);
-
-			    long cumPktsLost =
-				(((((packet[bytesRead+4] & 0xff)<<24)|
-				   ((packet[bytesRead+5] & 0xff)<<16)|
-				   ((packet[bytesRead+6] & 0xff)<<8)|
-				   (packet[bytesRead+7] & 0xff))) &
-				 0xffffff);
-
-			    long extHighSqRcvd =
-				(((packet[bytesRead + 8]&0xff)<<24)|
-				 ((packet[bytesRead + 9]&0xff)<<16)|
-				 ((packet[bytesRead+10] & 0xff)<<8) |
-				 (packet[bytesRead+11] & 0xff));
-
-			    long intJitter =
-				(((packet[bytesRead+12] & 0xff)<<24) |
-				 ((packet[bytesRead+13] & 0xff)<<16) |
-				 ((packet[bytesRead+14] & 0xff)<<8) |
-				 (packet[bytesRead+15] & 0xff));
-
-			    long lastSR =
-				(((packet[bytesRead+16] & 0xff)<<24) |
-				 ((packet[bytesRead+17] & 0xff)<<16) |
-				 ((packet[bytesRead+18] & 0xff)<<8) |
-				 (packet[bytesRead+19] & 0xff));
-
-			    long delay_LastSR =
-				(((packet[bytesRead+20] & 0xff)<<24) |
-				 ((packet[bytesRead+21] & 0xff)<<16) |
-				 ((packet[bytesRead+22] & 0xff)<<8) |
-				 (packet[bytesRead+23] & 0xff));
-
-			    // Print the statistics
-			    rtpSession.outprint
-				("(ssrc=0x" +
-				 Long.toHexString(rcvr_ssrc) +
-				 "    fraction =  " + fractionLost +
-				 "     lost =  " + cumPktsLost +
-				 "     last_seq =  " + extHighSqRcvd +
-				     "   jit  =   " + intJitter +
-				 "  lsr =  " + lastSR +
-				 "    dlsr = " + delay_LastSR + "\n");
-
-			    bytesRead += 24;
-
-			    // Update the statistics - only if the
-			    // rcvr_ssrc matches your own ssrc
-
-			    Source reception_Source =
-				rtpSession.getMySource();
-
-			    if (rcvr_ssrc == reception_Source.ssrc) {
-				// Update all the source parameters
-				// and statistics
-
-				// Create a new report block and set
-				// its attributes
-
-				rtcpRRPacket.doesContainReportBlock(true);
-
-				ReportBlock reportblock =
-				    new ReportBlock();
-				reportblock.setFractionLost(fractionLost);
-				reportblock.setCumulativeNumberOfPacketsLost
-				    (cumPktsLost);
-				reportblock.
-				    setExtendedHighestSequenceNumberReceived
-				    (extHighSqRcvd);
-				reportblock.setInterarrivalJitter(intJitter);
-				reportblock.setLastSr(lastSR);
-				reportblock.setDelayLastSr(delay_LastSR);
-
-				// Set the Receiver Report Packet's
-				// Report Block to this Report Block
-				rtcpRRPacket.setReportBlock(reportblock);
-
-			    }
-
-			    // Update Average RTCP Packet size
-			    rtpSession.avg_rtcp_size =
-				1/16*(length*4 + 1 ) +
-				15/16*(rtpSession.avg_rtcp_size);
-
-			    if (ssrc != rtpSession.ssrc) {
-
-				// Post the RR Packet only if its not
-				// the same packet sent out by this
-				// source
-				rtpSession.postAction(rtcpRRPacket);
-			    }
-
-			}
-
-			// Added by Andreas Piirimets 2004-02-26
-			// Also send an empty report if no reports
-			// were available in the packet
-			if (rc == 0) {
-			    if (ssrc != rtpSession.ssrc) {
-				// Post the RR Packet only if its not
-				// the same packet sent out by this
-				// source
-				rtpSession.postAction(rtcpRRPacket);
-			    }
-			}
-
-		    }
-
-		    if (pt ==RTCPConstants.RTCP_SDES) {
-			int len = (length+1) * 4 ;
-			byte sc =
-			    (byte)((packet[bytesRead] & 0xff) & 0x1f);
-			bytesRead += 4;
-			len -= 4 ;
-			// Keep track of no. of bytes read from this
-			// package with 'len'
-
-			//Parse the packet for all sources
-			for (int j=0; j<sc;j++) {
-
-			    // Read in the SSRC of the source
-			    long ssrc =
-				(((packet[bytesRead] & 0xff) << 24) |
-				 ((packet[bytesRead+1] & 0xff)<<16) |
-				 ((packet[bytesRead+2] & 0xff) << 8) |
-				 (packet[bytesRead+3] & 0xff));
-
-			    rtpSession.outprint
-				("(SDES ssrc=0x" +
-				 Long.toHexString(ssrc) +
-				 "    count= " + sc +
-				 "   len =  " + length + "\n" + ")" +
-				 "\n");
-
-			    // Increment the Bytes Read
-			    bytesRead += 4;
-			    len -= 4;
-
-			    // Note that we don't know how many
-			    // items, so have to check if the byte is
-			    // null or not
-			    //while (((byte)(packet[BytesRead] &
-			    //0xff)) != 0x00)
-
-			    while ((((byte)(packet[bytesRead] & 0xff))
-				    != 0x00) && (len > 0)) {
-
-				byte name =
-				    (byte)(packet[bytesRead] & 0xff);
-
-				String itemType = "";
-
-				if (name ==
-				    RTCPConstants.RTCP_SDES_END) {
-
-				    itemType = "BYE";
-				}
-
-				if (name ==
-				    RTCPConstants.RTCP_SDES_CNAME) {
-
-				    itemType = "CNAME";
-				}
-
-				if (name ==
-				    RTCPConstants.RTCP_SDES_NAME) {
-
-				    itemType = "NAME";
-				}
-
-				if (name ==
-				    RTCPConstants.RTCP_SDES_EMAIL) {
-
-				    itemType = "EMAIL";
-				}
-
-				if (name ==
-				    RTCPConstants.RTCP_SDES_PHONE) {
-
-				    itemType = "PHONE";
-				}
-
-				if (name ==
-				    RTCPConstants.RTCP_SDES_LOC) {
-
-				    itemType = "LOC";
-				}
-
-				if (name ==
-				    RTCPConstants.RTCP_SDES_TOOL) {
-
-				    itemType = "TOOL";
-				}
-
-				if (name ==
-				    RTCPConstants.RTCP_SDES_NOTE) {
-
-				    itemType = "NOTE";
-				}
-
-				if (name ==
-				    RTCPConstants.RTCP_SDES_PRIV) {
-
-				    itemType = "PRIV";
-				}
-
-				byte fieldlength =
-				    (byte)(packet[bytesRead+1] &0xff);
-
-				bytesRead += 2;
-				len-=2;
-
-				String text = "";
-
-				for (j = 0 ; j<fieldlength ;j++) {
-
-				    char character =
-					(char)((packet[bytesRead+j])&
-					       0xff);
-
-				    text += character;
-
-				}
-
-				bytesRead += fieldlength;
-				len -= fieldlength;
-
-				rtpSession.outprint
-				    (itemType + "=" + "\"" + text +
-				     "\"  ");
-
-				// Create an RTCP SDES Packet and
-				// post it for interested listeners
-
-				RTCPSDESPacket rtcpSdesPkt =
-				    new RTCPSDESPacket();
-
-				SDESItem sdesItem =
-				    new SDESItem();
-
-				sdesItem.setType(name);
-				sdesItem.setValue(text);
-
-				rtcpSdesPkt.setSdesItem(sdesItem);
-
-				// Post Action if the packet was not
-				// generated by this source
-				if (ssrc != rtpSession.ssrc) {
-
-				    rtpSession.postAction(rtcpSdesPkt);
-				}
-			    }
-
-			    // Check for null bytes and increment the
-			    // count - in each chunk the item list is
-			    // terminated by null octets to the next
-			    // 32 bit word boundary
-
-			    while ((((byte)(packet[bytesRead]&0xff))
-				    == 0x00) &&
-				   (len>0) ) {
-
-				bytesRead++;
-				len--;
-			    }
-			}
-
-			// Update Average RTCP Packet size
-			rtpSession.avg_rtcp_size =
-			    1/16*(length*4 + 1 ) +
-			    15/16*(rtpSession.avg_rtcp_size);
-		    }
-
-		    if (pt== RTCPConstants.RTCP_BYE) {
+	    }
+	    // IP: Removed
+	    /* try
+	       {
+	       socket.leaveGroup( m_InetAddress );
+	       }
 
-			byte sc =
-			    (byte)((packet[bytesRead] & 0xff) & 0x1f);
-			bytesRead += 4;
-			rtpSession.outprint
-			    ("(BYE" +"    count= " + sc +
-			     "   len =  " + length + "\n" + ")" +
-			     "\n");
+	       catch ( java.io.IOException e)
+	       {
+	       System.err.println(e);
+	       }
+	    */
 
-			// Construct a BYE Packet Array
-			RTCPBYEPacket[] rtcpBYEPacketArray =
-			    new RTCPBYEPacket[sc];
+	    thisThread = null;
 
-			for (i=0; i<sc; i++) {
+	    socket.close();
+	}
+	//catch ( UnknownHostException e ) {
+	//    System.err.println (e);
+	//}
+	catch ( java.io.IOException e ) {
+	    System.err.println (e);
+	}
+    }
 
-			    // For each source get the SSRC
-			    long ssrc =
-				(((packet[bytesRead ] & 0xff)<<24) |
-				 ((packet[bytesRead+1] & 0xff)<<16) |
-				 ((packet[bytesRead +2] & 0xff)<<8) |
-				 (packet[bytesRead +3] & 0xff));
+    /**
+     * Parses one received compound RTCP packet, updates the session and
+     * source level statistics and posts an event for every packet it
+     * contains. Called by the receiver thread, or by the selector engine if
+     * the session was created with one. <br>
+     * <br>
+     * The packets are read in place. Packet objects are only created when
+     * an RTCP_actionListener is registered, and the debug output is only
+     * built when it is turned on.
+     *
+     * @param packet The buffer holding the datagram
+     * @param hLength The length of the datagram
+     */
+    public void handleDatagram(byte[] packet, int hLength) {
 
-			    if (rtpSession.isByeRequested == false) {
+	boolean debug = rtpSession.debugOutput;
 
-				// Ask the Session to remove the
-				// source object corresponding to that
-				// SSRC
+	if (hLength < 4) {
+	    return;
+	}
 
-				rtpSession.removeSource(ssrc);
+	/*******************************************************
+	 * RTCP Header Validity Checks
+	 * 1) Version should always =2
+	 * 2) The payload type field of the first RTCP Packet
+	 *    should be SR or RR
+	 * 3) The Padding Bit (P) should be zero for the first
+	 *    packet
+	 * 4) The length fields of individual RTCP Packets must
+	 *    total to the overall length of the compound RTCP
+	 *    Packet
+	 *******************************************************/
+
+	if (debug) {
+	    // RTCP Header Validity Check 2
+	    int payloadType_1 = (int) (packet[1] & 0xff);
+	    if  ((payloadType_1 !=  RTCPConstants.RTCP_SR) &&
+		 (payloadType_1 !=   RTCPConstants.RTCP_RR ) ) {
+
+		rtpSession.outprint("RTCP Header Check Fail : " +
+				    "First Payload type not a SR " +
+				    "or RR\n");
+	    }
 
-			    }
-			    else if (rtpSession.isByeRequested==true) {
+	    //RTCP Header Validity Check 3
+	    if ((((packet[0] & 0xff) >> 5) & 0x01) != 0) {
+		rtpSession.outprint("RTCP Header Check Fail : " +
+				    "First Padding bit not " +
+				    " zero\n");
+	    }
+	}
 
-				// If a BYE has been requested by
-				// this particular member and it
-				// receives a BYE from some other
-				// source , then add that to the list
-				// of members - NOTE: This is true for
-				// only BYE Packets not any other RTCP
-				// or RTP Packets
+	// Since a RTCP Packet may contain many types of RTCP Packets, keep
+	// parsing until all bytes are read. The reader stops at a packet
+	// with a wrong version (check 1) or a length that does not fit.
+	reader.wrap(packet, 0, hLength);
+
+	while (reader.next()) {
+	    switch (reader.getType()) {
+	    case RTCPConstants.RTCP_SR:
+		handleSenderReport(debug);
+		break;
+	    case RTCPConstants.RTCP_RR:
+		handleReceiverReport(debug);
+		break;
+	    case RTCPConstants.RTCP_SDES:
+		handleSdes(debug);
+		break;
+	    case RTCPConstants.RTCP_BYE:
+		handleBye(debug);
+		break;
+	    default:
+		// APP and unknown packets are skipped
+		break;
+	    }
+	}
 
-				rtpSession.getSource(ssrc);
+	// RTCP Header Validity Check 4
+	if (debug) {
+	    if (reader.isMalformed()) {
+		rtpSession.outprint("RTCP Header Check " +
+				    "Fail : Wrong Version\n");
+	    }
 
-			    }
+	    rtpSession.outprintln ("TotalBytesRead: " +
+				   reader.getBytesRead() +
+				   " Header.getLength" +
+				   hLength );
 
-			    // To make the transmission rate of RTCP
-			    // Packets more adaptive to changes in
-			    // group membership, the "reverse
-			    // reconsideration algorithm is
-			    // implemented when a BYE packet is
-			    // received.
+	    if (reader.getBytesRead() != hLength) {
+		rtpSession.outprintln
+		    ("RTCP Header Check Fail : " +
+		     "Bytes Read do not Match Total Packet " +
+		     "Length\n");
+	    }
+	}
 
-			    rtpSession.tn =
-				rtpSession.tc +
-				(rtpSession.getNumberOfMembers() /
-				 rtpSession.pmembers) *
-				(rtpSession.tn - rtpSession.tc);
+	// Every time a RTCP Packet is received , update the
+	// other users timeout i.e remove them from the
+	// member or the sender lists if they have
+	// not been active for a while
+	rtpSession.updateSources();
+    }
 
-			    rtpSession.timeOfLastRTCPSent =
-				rtpSession.tc -
-				(rtpSession.getNumberOfMembers() /
-				 rtpSession.pmembers) *
-				(rtpSession.tc -
-				 rtpSession.timeOfLastRTCPSent);
+    /**
+     * Handles the sender report the reader is positioned at.
+     *
+     * @param debug Whether to print debug output
+     */
+    private void handleSenderReport(boolean debug) {
+	long ssrc = reader.getSenderSsrc();
+
+	if (debug) {
+	    rtpSession.outprint("RC" + reader.getCount() +"\n");
+	    rtpSession.outprint("(SR ssrc=0x" +
+				Long.toHexString(ssrc) +
+				"    count= " + reader.getCount() +
+				"   len =  " + reader.getLengthField() +
+				"\n");
+	}
 
-			    // Reschedule the next RTCP Packet for
-			    // transmission at time tn which is now
-			    // earlier
+	// Get the source from the Session corresponding to this particular
+	// SSRC, and update its statistics
+	Source sender_Source = rtpSession.getSource(ssrc);
+
+	sender_Source.timeOfLastRTCPArrival = rtpSession.currentTime();
+
+	if (reader.hasSenderInfo()) {
+	    // Set the lst - middle 32 bits out of NTPTimeStamp, and the
+	    // arrival time of this SR report
+	    sender_Source.lst = reader.getNtpTimeStampMiddle();
+	    sender_Source.timeofLastSRRcvd =
+		sender_Source.timeOfLastRTCPArrival;
+
+	    if (debug) {
+		rtpSession.outprint("ntp = " +
+				    reader.getNtpTimeStampMostSignificant() +
+				    " " +
+				    reader.getNtpTimeStampLeastSignificant() +
+				    "   ts=   " + reader.getRtpTimeStamp() +
+				    "  psent =  " +
+				    reader.getSenderPacketCount() +
+				    "  osent   " +
+				    reader.getSenderOctetCount() +
+				    "\n" + ")" + "\n");
+	    }
+	}
 
-			    rtpSession.pmembers =
-				rtpSession.getNumberOfMembers();
+	if (debug) {
+	    printReportBlocks();
+	}
 
-			    //Increment the bytes read by the length
-			    // of this packet
+	updateRoundTripTime(sender_Source);
+	updateAverageSize();
 
-			    bytesRead += 4;
-			    rtpSession.outprint
-				("ssrc=0x" + Long.toHexString(ssrc));
+	// Post the SR Packet only if its not the same packet sent out by
+	// this source
+	if (ssrc != rtpSession.ssrc && rtpSession.hasRTCP_actionListeners()) {
+	    rtpSession.postAction
+		(reader.toSenderReportPacket(rtpSession.getMySource().ssrc));
+	}
+    }
 
-			    rtpSession.outprintln
-				("In the Bye Packet " + i);
+    /**
+     * Handles the receiver report the reader is positioned at. The report
+     * is posted once, with the report block about this source if there is
+     * one, also when it holds no report blocks at all.
+     *
+     * @param debug Whether to print debug output
+     */
+    private void handleReceiverReport(boolean debug) {
+	long ssrc = reader.getSenderSsrc();
+
+	if (debug) {
+	    rtpSession.outprint
+		("( RR ssrc=0x" +
+		 Long.toHexString(ssrc) + "    count= " +
+		 reader.getCount() +"   len =  " + reader.getLengthField() +
+		 "\n" + ")" + "\n");
+	    printReportBlocks();
+	}
 
-			    rtcpBYEPacketArray[i] =
-				new RTCPBYEPacket();
+	// Get the source from the Session corresponding to this particular
+	// SSRC, and update its statistics
+	Source sender_Source = rtpSession.getSource(ssrc);
 
-			    rtcpBYEPacketArray[i].setSsrc(ssrc);
+	sender_Source.timeOfLastRTCPArrival = rtpSession.currentTime();
 
-			}
+	updateRoundTripTime(sender_Source);
+	updateAverageSize();
 
-			byte fieldlength =
-			    (byte)(packet[bytesRead] &0xff);
+	// Post the RR Packet only if its not the same packet sent out by
+	// this source
+	if (ssrc != rtpSession.ssrc && rtpSession.hasRTCP_actionListeners()) {
+	    rtpSession.postAction
+		(reader.toReceiverReportPacket(rtpSession.getMySource().ssrc));
+	}
+    }
 
-			bytesRead ++;
+    /**
+     * Updates the round-trip time of the sender of the SR or RR the reader
+     * is positioned at, if it holds a report block about this source.
+     *
+     * @param sender_Source The source that sent the report
+     */
+    private void updateRoundTripTime(Source sender_Source) {
+	for (int j=0; j<reader.getReportBlockCount(); j++) {
+	    if (reader.getReportSsrc(j) == rtpSession.ssrc) {
+		sender_Source.updateRoundTripTime
+		    ((long)sender_Source.timeOfLastRTCPArrival,
+		     reader.getLastSr(j), reader.getDelayLastSr(j));
+		return;
+	    }
+	}
+    }
 
-			String text = "";
+    /**
+     * Prints the report blocks of the SR or RR the reader is positioned
+     * at.
+     */
+    private void printReportBlocks() {
+	for (int j=0; j<reader.getReportBlockCount(); j++) {
+	    rtpSession.outprint
+		("(ssrc=0x" +
+		 Long.toHexString(reader.getReportSsrc(j)) +
+		 "    fraction =  " + reader.getFractionLost(j) +
+		 "     lost =  " + reader.getCumulativeNumberOfPacketsLost(j) +
+		 "     last_seq =  " +
+		 reader.getExtendedHighestSequenceNumberReceived(j) +
+		 "   jit  =   " + reader.getInterarrivalJitter(j) +
+		 "  lsr =  " + reader.getLastSr(j) +
+		 "    dlsr = " + reader.getDelayLastSr(j) +
+		 "\n");
+	}
+    }
 
-			for (int j=0 ; j < fieldlength ;j++) {
+    /**
+     * Handles the SDES packet the reader is positioned at. One packet is
+     * posted for every item.
+     *
+     * @param debug Whether to print debug output
+     */
+    private void handleSdes(boolean debug) {
+	boolean post = rtpSession.hasRTCP_actionListeners();
 
-			    char character =
-				(char) ((packet[bytesRead+j] ) & 0xff);
+	while (reader.nextSdesItem()) {
+	    long ssrc = reader.getSdesSsrc();
 
-			    text += character;
+	    if (debug) {
+		rtpSession.outprint
+		    ("(SDES ssrc=0x" +
+		     Long.toHexString(ssrc) +
+		     "    count= " + reader.getCount() +
+		     "   len =  " + reader.getLengthField() + "\n" + ")" +
+		     "\n");
+		rtpSession.outprint
+		    (getSdesItemName(reader.getSdesItemType()) + "=" + "\"" +
+		     reader.getSdesItemValue() + "\"  ");
+	    }
 
-			}
+	    // Post Action if the packet was not generated by this source
+	    if (post && ssrc != rtpSession.ssrc) {
+		rtpSession.postAction(reader.toSdesPacket());
+	    }
+	}
 
-			bytesRead += fieldlength;
+	updateAverageSize();
+    }
 
-			rtpSession.outprint("len = " + fieldlength );
+    /**
+     * Gets the name of an SDES item type, for debug output.
+     *
+     * @param type The item type
+     *
+     * @return The name, or an empty string if the type is unknown
+     */
+    private static String getSdesItemName(int type) {
+	switch (type) {
+	case RTCPConstants.RTCP_SDES_CNAME:
+	    return "CNAME";
+	case RTCPConstants.RTCP_SDES_NAME:
+	    return "NAME";
+	case RTCPConstants.RTCP_SDES_EMAIL:
+	    return "EMAIL";
+	case RTCPConstants.RTCP_SDES_PHONE:
+	    return "PHONE";
+	case RTCPConstants.RTCP_SDES_LOC:
+	    return "LOC";
+	case RTCPConstants.RTCP_SDES_TOOL:
+	    return "TOOL";
+	case RTCPConstants.RTCP_SDES_NOTE:
+	    return "NOTE";
+	case RTCPConstants.RTCP_SDES_PRIV:
+	    return "PRIV";
+	default:
+	    return "";
+	}
+    }
 
-			rtpSession.outprint("Reasons for leaving=" +
-					    "\"" + text + "\"  ");
+    /**
+     * Handles the BYE packet the reader is positioned at.
+     *
+     * @param debug Whether to print debug output
+     */
+    private void handleBye(boolean debug) {
+	int sc = reader.getByeSsrcCount();
+
+	if (debug) {
+	    rtpSession.outprint
+		("(BYE" +"    count= " + sc +
+		 "   len =  " + reader.getLengthField() + "\n" + ")" +
+		 "\n");
+	}
 
-			// Read through the null padding bytes and
-			// update counters.
-			int hLen = header.getLength();
-			while ((((byte)(packet[bytesRead] & 0xff)) ==
-				0x00) &&
-			       bytesRead < hLen ) {
+	for (int i=0; i<sc; i++) {
 
-			    bytesRead++;
-			}
+	    // For each source get the SSRC
+	    long ssrc = reader.getByeSsrc(i);
 
-			// Update Average RTCP Packet size
-			rtpSession.avg_rtcp_size =
-			    1/16*(length*4 + 1 ) +
-			    15/16*(rtpSession.avg_rtcp_size);
+	    if (rtpSession.isByeRequested == false) {
 
-			for (i=0; i< sc; i++) {
+		// Ask the Session to remove the
+		// source object corresponding to that
+		// SSRC
 
-			    rtcpBYEPacketArray[i].setReasonForLeaving(text);
+		rtpSession.removeSource(ssrc);
 
-			    // Post the action i.e. generate an event
-			    // if the packet was not generated from
-			    // this source
+	    }
+	    else if (rtpSession.isByeRequested==true) {
 
-			    if (rtcpBYEPacketArray[i].getSsrc() !=
-				rtpSession.ssrc) {
+		// If a BYE has been requested by
+		// this particular member and it
+		// receives a BYE from some other
+		// source , then add that to the list
+		// of members - NOTE: This is true for
+		// only BYE Packets not any other RTCP
+		// or RTP Packets
 
-				rtpSession.postAction
-				    (rtcpBYEPacketArray[i]);
-			    }
-			}
+		rtpSession.getSource(ssrc);
 
-		    }
+	    }
 
-		    if (pt == RTCPConstants.RTCP_APP) {
+	    // To make the transmission rate of RTCP
+	    // Packets more adaptive to changes in
+	    // group membership, the "reverse
+	    // reconsideration algorithm is
+	    // implemented when a BYE packet is
+	    // received.
+
+	    rtpSession.tn =
+		rtpSession.tc +
+		(rtpSession.getNumberOfMembers() /
+		 rtpSession.pmembers) *
+		(rtpSession.tn - rtpSession.tc);
+
+	    rtpSession.timeOfLastRTCPSent =
+		rtpSession.tc -
+		(rtpSession.getNumberOfMembers() /
+		 rtpSession.pmembers) *
+		(rtpSession.tc -
+		 rtpSession.timeOfLastRTCPSent);
+
+	    // Reschedule the next RTCP Packet for
+	    // transmission at time tn which is now
+	    // earlier
+
+	    rtpSession.pmembers =
+		rtpSession.getNumberOfMembers();
+
+	    if (debug) {
+		rtpSession.outprint
+		    ("ssrc=0x" + Long.toHexString(ssrc));
 
-			// Increment the Bytes read by the
-			// length of this packet
-			bytesRead += 4*(length+1);
+		rtpSession.outprintln
+		    ("In the Bye Packet " + i);
+	    }
+	}
 
-		    }
-		    totalBytesRead = bytesRead;
+	if (debug) {
+	    rtpSession.outprint("Reasons for leaving=" +
+				"\"" + reader.getByeReason() + "\"  ");
+	}
 
-		}
+	updateAverageSize();
 
-		// RTCP Header Validity Check 4
-		rtpSession.outprintln ("TotalBytesRead: " +
-				       totalBytesRead +
-				       " Header.getLength" +
-				       header.getLength() );
-
-		if ( totalBytesRead != header.getLength()) {
-		    rtpSession.outprintln
-			("RTCP Header Check Fail : " +
-			 "Bytes Read do not Match Total Packet " +
-			 "Length\n");
+	// Post the action i.e. generate an event if the packet was not
+	// generated from this source
+	if (rtpSession.hasRTCP_actionListeners()) {
+	    for (int i=0; i<sc; i++) {
+		if (reader.getByeSsrc(i) != rtpSession.ssrc) {
+		    rtpSession.postAction(reader.toByePacket(i));
 		}
-
-		i++;
-
-		// Every time a RTCP Packet is received , update the
-		// other users timeout i.e remove them from the
-		// member or the sender lists if they have
-		// not been active for a while
-		rtpSession.updateSources();
-
 	    }
-	    // IP: Removed
-	    /* try
-	       {
-	       socket.leaveGroup( m_InetAddress );
-	       }
-
-	       catch ( java.io.IOException e)
-	       {
-	       System.err.println(e);
-	       }
-	    */
+	}
+    }
 
-	    thisThread = null;
+    /**
+     * Updates the average RTCP packet size with the packet the reader is
+     * positioned at.
+     */
+    private void updateAverageSize() {
+	int length = reader.getLengthField();
 
-	    socket.close();
-	}
-	//catch ( UnknownHostException e ) {
-	//    System.err.println (e);
-	//}
-	catch ( java.io.IOException e ) {
-	    System.err.println (e);
-	}
+	rtpSession.avg_rtcp_size =
+	    1/16*(length*4 + 1 ) +
+	    15/16*(rtpSession.avg_rtcp_size);
     }
 }
-
@@ -0,0 +1,255 @@
+/*
+ * Copyright (C) 2004-2008  University of Wisconsin-Madison and Omnitor AB
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ */
+package se.omnitor.protocol.rtp;
+
+import java.util.ArrayList;
+import java.util.PriorityQueue;
+
+/**
+ * Runs the RTCP transmission timers of any number of sessions from one
+ * thread. <br>
+ * <br>
+ * Without a scheduler every Session runs an RTCPSenderThread that sleeps
+ * through its RTCP interval, so the number of sleeping threads grows with
+ * the number of calls. A Session given a scheduler with
+ * Session.setRTCPScheduler instead queues its sender here. The scheduler
+ * keeps the senders ordered by the time of their next transmission and
+ * runs the timer reconsideration and BYE backoff of RFC 3550 for each of
+ * them when its time comes, with millisecond precision. <br>
+ * <br>
+ * The thread is a daemon thread, started when the first sender is
+ * scheduled. One scheduler is normally shared by all sessions, see
+ * getShared().
+ *
+ * @author Unknown
+ *
+ * @see Session#setRTCPScheduler(RTCPScheduler)
+ */
+public class RTCPScheduler implements Runnable
+{
+    private static RTCPScheduler shared = null;
+
+    private PriorityQueue<Entry> queue;
+    private String name;
+    private Thread thread;
+
+    /**
+     * A scheduled sender. The entry is in the queue while the sender waits
+     * for its next transmission and out of it while the scheduler thread
+     * runs the sender.
+     */
+    static class Entry implements Comparable<Entry>
+    {
+	RTCPSenderThread sender;
+	long due;
+	boolean queued;
+	boolean byePending;
+	boolean done;
+
+	Entry(RTCPSenderThread sender)
+	{
+	    this.sender = sender;
+	}
+
+	public int compareTo(Entry other)
+	{
+	    if (due < other.due) {
+		return -1;
+	    }
+	    return due > other.due ? 1 : 0;
+	}
+    }
+
+    /**
+     * Gets the scheduler shared by the whole process.
+     *
+     * @return The shared scheduler
+     */
+    public static synchronized RTCPScheduler getShared()
+    {
+	if (shared == null) {
+	    shared = new RTCPScheduler("Shared RTCP Scheduler");
+	}
+	return shared;
+    }
+
+    /**
+     * Creates a scheduler. Most users should use the shared scheduler
+     * instead.
+     *
+     * @param name The name of the scheduler thread
+     */
+    public RTCPScheduler(String name)
+    {
+	this.name = name;
+	queue = new PriorityQueue<Entry>();
+    }
+
+    /**
+     * Gets the number of senders that are scheduled.
+     *
+     * @return The number of senders
+     */
+    public synchronized int size()
+    {
+	return queue.size();
+    }
+
+    /**
+     * Queues a sender. Its first transmission is due when the delay has
+     * passed.
+     *
+     * @param sender The sender, its socket must be open
+     * @param delay The delay in milliseconds
+     *
+     * @return The entry of the sender, used to request the BYE
+     */
+    synchronized Entry add(RTCPSenderThread sender, long delay)
+    {
+	Entry entry = new Entry(sender);
+
+	entry.due = System.currentTimeMillis() + delay;
+	entry.queued = true;
+	queue.add(entry);
+
+	if (thread == null) {
+	    thread = new Thread(this, name);
+	    thread.setDaemon(true);
+	    thread.start();
+	}
+	notify();
+
+	return entry;
+    }
+
+    /**
+     * Asks a sender to leave the session. The sender is run right away,
+     * just as an RTCPSenderThread is woken up by interrupt(), and sends its
+     * BYE after the backoff.
+     *
+     * @param entry The entry of the sender
+     */
+    synchronized void requestBye(Entry entry)
+    {
+	if (entry.done) {
+	    return;
+	}
+
+	entry.byePending = true;
+
+	// A sender that is running right now is requeued when it is done
+	if (entry.queued) {
+	    queue.remove(entry);
+	    entry.due = System.currentTimeMillis();
+	    queue.add(entry);
+	    notify();
+	}
+    }
+
+    /**
+     * The scheduler thread. Due senders are taken from the queue while
+     * holding the lock and run after releasing it, since sending takes the
+     * locks of the session.
+     *
+     */
+    public void run()
+    {
+	ArrayList<Entry> due = new ArrayList<Entry>();
+
+	while (true) {
+	    synchronized (this) {
+		try {
+		    while (queue.isEmpty()) {
+			wait();
+		    }
+
+		    long wait = queue.peek().due - System.currentTimeMillis();
+		    if (wait > 0) {
+			wait(wait);
+			continue;
+		    }
+		}
+		catch (InterruptedException ie) {
+		    // Ignore, the thread serves the whole process
+		    continue;
+		}
+
+		long now = System.currentTimeMillis();
+		while (!queue.isEmpty() && queue.peek().due <= now) {
+		    Entry entry = queue.poll();
+		    entry.queued = false;
+		    due.add(entry);
+		}
+	    }
+
+	    for (int cnt=0; cnt<due.size(); cnt++) {
+		runSender(due.get(cnt));
+	    }
+	    due.clear();
+	}
+    }
+
+    /**
+     * Runs one round of a sender and queues it again for its next
+     * interval, unless it has left the session.
+     *
+     * @param entry The entry of the sender
+     */
+    private void runSender(Entry entry)
+    {
+	RTCPSenderThread sender = entry.sender;
+	boolean bye;
+	boolean terminate;
+
+	synchronized (this) {
+	    bye = entry.byePending;
+	    entry.byePending = false;
+	}
+
+	try {
+	    if (bye) {
+		sender.requestBye();
+	    }
+	    terminate = sender.transmit();
+	}
+	catch (RuntimeException e) {
+	    // One broken session must not stop the others
+	    System.err.println("RTCPScheduler: error in RTCP sender " + e);
+	    terminate = false;
+	}
+
+	if (terminate) {
+	    sender.closeSocket();
+	    synchronized (this) {
+		entry.done = true;
+	    }
+	    return;
+	}
+
+	long delay = sender.nextInterval();
+
+	synchronized (this) {
+	    // A BYE requested while the sender ran is handled right away
+	    entry.due = System.currentTimeMillis() +
+		(entry.byePending ? 0 : delay);
+	    entry.queued = true;
+	    queue.add(entry);
+	}
+    }
+}
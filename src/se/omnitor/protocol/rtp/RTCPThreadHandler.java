@@ -19,6 +19,8 @@
 package se.omnitor.protocol.rtp;
 
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.DatagramChannel;
 
 
 // IP: Made it possible to open send and receive independently
@@ -47,8 +49,10 @@ public class RTCPThreadHandler extends java.lang.Object
     InetAddress multicastGroupIPAddress;
 
     //private SymmetricMulticastSocket socket;
-    private java.net.MulticastSocket socket;
+    private java.net.DatagramSocket socket;
     private boolean symmetric;
+    private RTPSelectorEngine selectorEngine;
+    private int localPort;
 
     /**
      * Constructor creates the sender and receiver
@@ -77,9 +81,62 @@ public class RTCPThreadHandler extends java.lang.Object
 	this.multicastGroupIPAddress = multicastGroupIPAddress;
         this.rtpSession = rtpSession;
 	this.symmetric=symmetric;
+	this.localPort = localPort;
+    }
+
+    /**
+     * Constructor for a symmetric session served by an RTPSelectorEngine.
+     * The socket will be opened as a DatagramChannel and the receiver is
+     * registered with the engine instead of running its own thread.
+     *
+     * @param multicastGroupIPAddress Dotted representation of the Multicast
+     * address.
+     * @param localPort The port to send and receive from
+     * @param rtpSession The session to use
+     * @param selectorEngine The engine to receive with
+     */
+    public RTCPThreadHandler (  InetAddress multicastGroupIPAddress,
+				int localPort,
+                                Session rtpSession,
+				RTPSelectorEngine selectorEngine
+				)
+    {
+	this.multicastGroupIPAddress = multicastGroupIPAddress;
+        this.rtpSession = rtpSession;
+	this.selectorEngine = selectorEngine;
+	this.localPort = localPort;
+	symmetric=true;
+    }
+
+    /**
+     * Opens the socket of a symmetric session, the first time one of the
+     * threads is started. With rtcp-mux the socket of the RTP handler is
+     * used instead and no socket is opened for RTCP.
+     *
+     */
+    private synchronized void openSocket()
+    {
+	if (socket != null) {
+	    return;
+	}
+
+	if (rtpSession.isRtcpMux()) {
+	    socket = rtpSession.m_RTPHandler.getSocket();
+	    return;
+	}
+
+	if (!symmetric) {
+	    return;
+	}
 
 	try {
-	    socket = new java.net.MulticastSocket(localPort);
+	    if (selectorEngine != null) {
+		DatagramChannel channel = DatagramChannel.open();
+		channel.socket().bind(new InetSocketAddress(localPort));
+		socket = channel.socket();
+	    } else {
+		socket = new java.net.MulticastSocket(localPort);
+	    }
 	} catch (Exception e) {
 	    System.err.println("RTPCHandler, error creating socket. "+e);
 	}
@@ -95,7 +152,8 @@ public class RTCPThreadHandler extends java.lang.Object
 					       int rtcpGroupPort)
     {
         // create an rtcpSender thread
-	if(symmetric) {
+	openSocket();
+	if(symmetric || rtpSession.isRtcpMux()) {
 	    rtcpSenderThread =
 		new RTCPSenderThread ( multicastGroupIPAddress,
 				       rtcpSendFromPort,
@@ -110,8 +168,13 @@ public class RTCPThreadHandler extends java.lang.Object
 				       rtpSession );
 	}
 
-        // Start thread
-        rtcpSenderThread.start();
+        // Start thread, or let the scheduler of the session run it
+	RTCPScheduler scheduler = rtpSession.getRTCPScheduler();
+	if (scheduler != null) {
+	    rtcpSenderThread.startScheduled(scheduler);
+	} else {
+	    rtcpSenderThread.start();
+	}
     }
 
     /**
@@ -120,7 +183,10 @@ public class RTCPThreadHandler extends java.lang.Object
      */
     public void stopRTCPReceiverThread()
     {
-    	if (rtcpReceiverThread != null) {
+	if (rtcpReceiverThread != null && rtpSession.isRtcpMux()) {
+	    // The socket belongs to the RTP handler, just stop passing RTCP
+	    rtpSession.m_RTPHandler.setRTCPHandler(null);
+	} else if (rtcpReceiverThread != null) {
     		rtcpReceiverThread.stop();
     	}
     }
@@ -134,7 +200,24 @@ public class RTCPThreadHandler extends java.lang.Object
 	(int rtcpGroupPort)
     {
         // create an rtcpReceiver thread
-	if(symmetric) {
+	openSocket();
+	if(rtpSession.isRtcpMux()) {
+	    // RTCP arrives on the RTP socket, the RTP handler passes it on
+	    rtcpReceiverThread =
+		new RTCPReceiverThread ( multicastGroupIPAddress,
+					 rtcpGroupPort,
+					 rtpSession,
+					 socket);
+	    rtpSession.m_RTPHandler.setRTCPHandler(rtcpReceiverThread);
+	    return;
+	} else if(selectorEngine != null) {
+	    rtcpReceiverThread =
+		new RTCPReceiverThread ( multicastGroupIPAddress,
+					 rtcpGroupPort,
+					 rtpSession,
+					 socket,
+					 selectorEngine);
+	} else if(symmetric) {
 	    rtcpReceiverThread =
 		new RTCPReceiverThread ( multicastGroupIPAddress,
 					 rtcpGroupPort,
@@ -159,7 +242,7 @@ public class RTCPThreadHandler extends java.lang.Object
     public synchronized void stopRTCPSenderThread()
     {
         if (rtcpSenderThread != null) {
-            rtcpSenderThread.interrupt();
+            rtcpSenderThread.stopRTCPSender();
             rtcpSenderThread = null;
         }
     }
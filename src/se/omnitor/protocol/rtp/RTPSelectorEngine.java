@@ -0,0 +1,321 @@
+/*
+ * Copyright (C) 2004-2008  University of Wisconsin-Madison and Omnitor AB
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ */
+package se.omnitor.protocol.rtp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Receives RTP and RTCP datagrams for any number of sessions on a small,
+ * fixed pool of selector threads. <br>
+ * <br>
+ * Without an engine every Session runs one receive thread for RTP and one
+ * for RTCP, which makes the number of threads grow with the number of
+ * calls. A Session created with an engine instead opens its sockets as
+ * non-blocking DatagramChannels and registers them here. Each channel is
+ * bound to one of the selector threads, which reads incoming datagrams and
+ * hands them to the DatagramHandler of the channel. The handlers then
+ * post events to the RTP_actionListener and RTCP_actionListener of the
+ * session just like the receive threads do. <br>
+ * <br>
+ * One engine is normally shared by all sessions in an application. The
+ * number of selector threads defaults to the number of available
+ * processors.
+ *
+ * @author Unknown
+ *
+ * @see Session#Session(String, double, int, RTPSelectorEngine)
+ */
+public class RTPSelectorEngine
+{
+    /**
+     * The largest datagram that is read in one piece. Anything longer is
+     * truncated, as with the receive threads.
+     */
+    public static final int MAX_DATAGRAM_SIZE = 2048;
+
+    /**
+     * The maximum number of datagrams read from one channel before the
+     * other ready channels of the same selector get their turn.
+     */
+    private static final int MAX_READS_PER_KEY = 16;
+
+    private Worker[] workers;
+    private int nextWorker;
+    private boolean started;
+
+    /**
+     * Creates an engine with one selector thread per available processor.
+     * The threads are not started until start() is called.
+     *
+     */
+    public RTPSelectorEngine()
+    {
+	this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates an engine with the given number of selector threads. The
+     * threads are not started until start() is called.
+     *
+     * @param threads The number of selector threads, at least one is used
+     */
+    public RTPSelectorEngine(int threads)
+    {
+	if (threads < 1) {
+	    threads = 1;
+	}
+	workers = new Worker[threads];
+    }
+
+    /**
+     * Opens the selectors and starts the selector threads. Calling start on
+     * a running engine does nothing.
+     *
+     * @throws IOException If a selector could not be opened
+     */
+    public synchronized void start() throws IOException
+    {
+	if (started) {
+	    return;
+	}
+
+	for (int cnt=0; cnt<workers.length; cnt++) {
+	    workers[cnt] = new Worker(Selector.open());
+
+	    Thread thread = new Thread(workers[cnt], "RTP Selector " + cnt);
+	    thread.setDaemon(true);
+	    thread.start();
+	}
+	started = true;
+    }
+
+    /**
+     * Stops all selector threads. Registered channels are left open, they
+     * are closed by their sessions.
+     *
+     */
+    public synchronized void stop()
+    {
+	if (!started) {
+	    return;
+	}
+
+	for (int cnt=0; cnt<workers.length; cnt++) {
+	    workers[cnt].shutdown();
+	    workers[cnt] = null;
+	}
+	started = false;
+    }
+
+    /**
+     * Indicates whether the selector threads are running.
+     *
+     * @return True if the engine has been started and not stopped
+     */
+    public synchronized boolean isStarted()
+    {
+	return started;
+    }
+
+    /**
+     * Registers a channel for reception. The channel is switched to
+     * non-blocking mode and assigned to the selector threads in turn.
+     * Datagrams arriving on it are passed to the handler until the channel
+     * is closed or unregistered.
+     *
+     * @param channel The channel to read from, it must be bound
+     * @param handler The handler that parses the datagrams
+     *
+     * @throws IOException If the channel could not be made non-blocking
+     * @throws IllegalStateException If the engine is not started
+     */
+    public void register(DatagramChannel channel, DatagramHandler handler)
+	throws IOException
+    {
+	Worker worker;
+
+	synchronized (this) {
+	    if (!started) {
+		throw new IllegalStateException("RTPSelectorEngine is not " +
+						"started");
+	    }
+	    worker = workers[nextWorker];
+	    nextWorker = (nextWorker + 1) % workers.length;
+	}
+
+	channel.configureBlocking(false);
+	worker.add(channel, handler);
+    }
+
+    /**
+     * Stops reading from a channel. This should be called before the
+     * channel is closed, so that the selector releases it right away
+     * instead of at its next wakeup.
+     *
+     * @param channel The channel to unregister
+     */
+    public synchronized void unregister(DatagramChannel channel)
+    {
+	for (int cnt=0; cnt<workers.length; cnt++) {
+	    if (workers[cnt] != null) {
+		workers[cnt].remove(channel);
+	    }
+	}
+    }
+
+    /**
+     * A channel waiting to be registered with a selector. Registration has
+     * to be done by the selector thread itself, otherwise it blocks until
+     * the current select returns.
+     */
+    private static class Registration
+    {
+	DatagramChannel channel;
+	DatagramHandler handler;
+
+	Registration(DatagramChannel channel, DatagramHandler handler)
+	{
+	    this.channel = channel;
+	    this.handler = handler;
+	}
+    }
+
+    /**
+     * One selector thread. The receive buffer is owned by the thread and
+     * reused for every datagram.
+     */
+    private static class Worker implements Runnable
+    {
+	private Selector selector;
+	private ConcurrentLinkedQueue<Registration> pending;
+	private ByteBuffer buffer;
+	private volatile boolean running;
+
+	Worker(Selector selector)
+	{
+	    this.selector = selector;
+	    pending = new ConcurrentLinkedQueue<Registration>();
+	    buffer = ByteBuffer.allocate(MAX_DATAGRAM_SIZE);
+	    running = true;
+	}
+
+	void add(DatagramChannel channel, DatagramHandler handler)
+	{
+	    pending.add(new Registration(channel, handler));
+	    selector.wakeup();
+	}
+
+	void remove(DatagramChannel channel)
+	{
+	    SelectionKey key = channel.keyFor(selector);
+	    if (key != null) {
+		key.cancel();
+		selector.wakeup();
+	    }
+	}
+
+	void shutdown()
+	{
+	    running = false;
+	    selector.wakeup();
+	}
+
+	public void run()
+	{
+	    byte[] data = buffer.array();
+
+	    while (running) {
+		try {
+		    selector.select();
+		}
+		catch (IOException e) {
+		    System.err.println("RTPSelectorEngine: select failed " + e);
+		    break;
+		}
+
+		Registration reg;
+		while ((reg = pending.poll()) != null) {
+		    try {
+			reg.channel.register(selector, SelectionKey.OP_READ,
+					     reg.handler);
+		    }
+		    catch (ClosedChannelException e) {
+			// It's OK, the session was stopped before the
+			// channel got registered.
+		    }
+		}
+
+		Iterator<SelectionKey> keys =
+		    selector.selectedKeys().iterator();
+
+		while (keys.hasNext()) {
+		    SelectionKey key = keys.next();
+		    keys.remove();
+
+		    if (key.isValid()) {
+			read(key, data);
+		    }
+		}
+	    }
+
+	    try {
+		selector.close();
+	    }
+	    catch (IOException e) {
+		// Ignore, the thread is ending anyway
+	    }
+	}
+
+	private void read(SelectionKey key, byte[] data)
+	{
+	    DatagramChannel channel = (DatagramChannel)key.channel();
+	    DatagramHandler handler = (DatagramHandler)key.attachment();
+
+	    try {
+		for (int cnt=0; cnt<MAX_READS_PER_KEY; cnt++) {
+		    buffer.clear();
+		    if (channel.receive(buffer) == null) {
+			break;
+		    }
+
+		    try {
+			handler.handleDatagram(data, buffer.position());
+		    }
+		    catch (RuntimeException e) {
+			// A malformed packet must not take down the thread,
+			// it serves other sessions as well.
+			System.err.println("RTPSelectorEngine: " +
+					   "error handling datagram " + e);
+		    }
+		}
+	    }
+	    catch (IOException e) {
+		// It's OK if the socket is closed.
+		key.cancel();
+	    }
+	}
+    }
+}
@@ -23,8 +23,11 @@ import se.omnitor.protocol.rtp.packets.RTPPacket;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.MulticastSocket;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
 //import java.util.logging.Logger;
 import java.util.Random;
 import java.io.IOException;
@@ -40,12 +43,19 @@ import java.io.IOException;
 // IP: Made it possible to create this class and open send and receive
 //     independently
 // IP: Implement runnable instead of extending Thread
-public class RTPThreadHandler implements Runnable {
+public class RTPThreadHandler implements Runnable, DatagramHandler {
     /**
      *   RTP Header Length = 12
      */
     protected static final int RTP_PACKET_HEADER_LENGTH = 12;
 
+    /**
+     *   Size of the buffer packets are received into, the same as when the
+     *   selector engine receives. Longer packets are truncated.
+     */
+    public static final int RECEIVE_BUFFER_SIZE =
+	RTPSelectorEngine.MAX_DATAGRAM_SIZE;
+
     /**
      *   Multicast Port for RTP Packets
      */
@@ -122,6 +132,41 @@ public class RTPThreadHandler implements Runnable {
      */
     private long timestamp; // 32 bits
 
+    /**
+     *   Buffer outgoing RTP packets are assembled in, reused between sends
+     */
+    private byte[] sendBuffer = new byte[RTP_PACKET_HEADER_LENGTH + 256];
+
+    /**
+     *   Datagram wrapping sendBuffer, reused between sends
+     */
+    private DatagramPacket sendDatagram;
+
+    /**
+     *   NIO view of sendBuffer, used when the socket belongs to a channel
+     */
+    private ByteBuffer sendByteBuffer;
+
+    /**
+     *   Destination of the packets sent through a channel
+     */
+    private InetSocketAddress sendAddress;
+
+    /**
+     *   Packet reused for every received packet, if the session allows it
+     */
+    private RTPPacket receivedPacket;
+
+    /**
+     *   Engine reading the receive socket, null when a thread is used
+     */
+    private RTPSelectorEngine selectorEngine;
+
+    /**
+     *   Parser of RTCP packets multiplexed on the RTP socket, null unless
+     *   the session uses rtcp-mux
+     */
+    private volatile DatagramHandler rtcpHandler;
 
     //private Logger logger = Logger.getLogger("se.omnitor.rtp");
 
@@ -141,7 +186,7 @@ public class RTPThreadHandler implements Runnable {
 
     public RTPThreadHandler(InetAddress multicastAddress,
                             Session rtpSession) {
-        init(multicastAddress, 0, rtpSession, false);
+        init(multicastAddress, 0, rtpSession, false, null);
     }
 
 
@@ -157,8 +202,25 @@ public class RTPThreadHandler implements Runnable {
                             int localPort,
                             Session rtpSession,
                             boolean symmetric) {
-        init(multicastAddress, localPort, rtpSession, symmetric);
+        init(multicastAddress, localPort, rtpSession, symmetric, null);
+
+    }
 
+    /**
+     * Constructor for a symmetric session served by an RTPSelectorEngine.
+     * The socket is opened as a DatagramChannel and start() registers it
+     * with the engine instead of starting a receive thread.
+     *
+     * @param multicastAddress Dotted representation of the Multicast address.
+     * @param localPort The port to send and receive from
+     * @param rtpSession The Session to use
+     * @param selectorEngine The engine to receive with
+     */
+    public RTPThreadHandler(InetAddress multicastAddress,
+                            int localPort,
+                            Session rtpSession,
+                            RTPSelectorEngine selectorEngine) {
+        init(multicastAddress, localPort, rtpSession, true, selectorEngine);
     }
 
     /**
@@ -168,18 +230,27 @@ public class RTPThreadHandler implements Runnable {
      * @param localPort The port to send and receive from, 0 if not symmetric
      * @param rtpSession The Session to use
      * @param symmetric true indicates if this session is symmetric
+     * @param selectorEngine The engine to receive with, null to use a thread
      */
     private void init(InetAddress multicastAddress,
                       int localPort,
                       Session rtpSession,
-                      boolean symmetric) {
+                      boolean symmetric,
+                      RTPSelectorEngine selectorEngine) {
         this.symmetric = symmetric;
+        this.selectorEngine = selectorEngine;
         m_mcastPort = localPort;
         m_sendPort = 0;
         if (symmetric) {
             m_sendPort = m_mcastPort;
             try {
-                socket = new DatagramSocket(localPort);
+                if (selectorEngine != null) {
+                    DatagramChannel channel = DatagramChannel.open();
+                    channel.socket().bind(new InetSocketAddress(localPort));
+                    socket = channel.socket();
+                } else {
+                    socket = new DatagramSocket(localPort);
+                }
             } catch (Exception e) {
                 System.err.println(
                         "RTPThreadHandler: Fialed to create symmetric socket.");
@@ -341,23 +412,68 @@ public class RTPThreadHandler implements Runnable {
     }
 
     /**
-     * Starts the thread
+     * Gets the socket of a symmetric handler, which is used for both
+     * sending and receiving.
+     *
+     * @return The socket, or null if the handler is not symmetric
+     */
+    DatagramSocket getSocket() {
+        return symmetric ? m_sockReceive : null;
+    }
+
+    /**
+     * Indicates whether the handler sends and receives on one socket.
+     *
+     * @return true if the handler is symmetric
+     */
+    boolean isSymmetric() {
+        return symmetric;
+    }
+
+    /**
+     * Sets the handler of RTCP packets arriving on the RTP socket, as they
+     * do when RTP and RTCP are multiplexed on one port (RFC 5761).
+     *
+     * @param rtcpHandler The RTCP handler, or null to drop RTCP packets
+     */
+    public void setRTCPHandler(DatagramHandler rtcpHandler) {
+        this.rtcpHandler = rtcpHandler;
+    }
+
+    /**
+     * Starts the thread, or registers the receive socket with the selector
+     * engine if the handler was created with one.
      *
      */
     public void start() {
-        thisThread.start();
+        if (selectorEngine != null) {
+            if (m_sockReceive == null || m_sockReceive.isClosed()) {
+                return;
+            }
+
+            try {
+                selectorEngine.register(m_sockReceive.getChannel(), this);
+            } catch (IOException e) {
+                System.err.println("RTPThreadHandler: Failed to register " +
+                                   "with selector engine. " + e);
+            }
+        } else {
+            thisThread.start();
+        }
     }
 
 
     /**
      * Constructs a datagram, assembles it into an RTP packet and sends it out.
+     * The packet is assembled in a buffer owned by this handler, which is
+     * why calls are serialized.
      *
      * @param packet RTP packet to be sent out
      *
      * @return 0 if an error occured, 1 if everything is ok.
      */
     //  IP: Altered method and input parameter
-    public int sendPacket(RTPPacket packet) {
+    public synchronized int sendPacket(RTPPacket packet) {
 
         if (m_sockSend == null) {
             // IP: Should be 1 here but the return OK code seems to be 1 so
@@ -382,52 +498,77 @@ public class RTPThreadHandler implements Runnable {
             timestamp = rtpSession.currentTime() + Session.RANDOM_OFFSET;
         }
 
-        byte[] ts = new byte[4]; // timestamp is 4 bytes
-        ts = PacketUtils.longToBytes(timestamp, 4);
-        //ts = PacketUtils.longToBytes(0, 4 );
+        byte[] payload = packet.getPayloadData();
+        int payloadLength = (payload == null) ? 0 : packet.getPayloadLength();
+        int packetLength = RTP_PACKET_HEADER_LENGTH + payloadLength;
 
-        byte[] seq = new byte[2]; // sequence is 2 bytes
-        if (packet.getSequenceNumber() != 0) {
-            seq = PacketUtils.longToBytes(packet.getSequenceNumber(), 2);
-        } else {
-            seq = PacketUtils.longToBytes(sequence_number, 2);
+        // The send buffer only grows, a packet never costs an allocation
+        // once the largest payload size has been seen.
+        if (sendBuffer.length < packetLength) {
+            sendBuffer = new byte[packetLength];
         }
-
-        byte[] ss = new byte[4];
-        //ss = PacketUtils.LongToBytes( rtpSession.SSRC, 4 );
-        //ss = PacketUtils.longToBytes(0, 4 );
-        ss = PacketUtils.longToBytes(packet.getSsrc(), 4);
+        byte[] rtpPacket = sendBuffer;
 
         ////////////////////////////////////////////////////////
-        // Construct the header by appending all the above byte
-        // arrays into RTPPacket
+        // Write the 12 byte header straight into the send buffer
         ////////////////////////////////////////////////////////
-        byte[] rtpPacket = new byte[0];
-        // Append the compound version, Padding, Extension and CSRC Count bits
-        rtpPacket = PacketUtils.append(rtpPacket, vpxcc);
+        // The compound version, Padding, Extension and CSRC Count bits
+        rtpPacket[0] = vpxcc[0];
 
-        // Append the compound Marker and payload type byte
-        rtpPacket = PacketUtils.append(rtpPacket, m_PT);
+        // The compound Marker and payload type byte
+        rtpPacket[1] = m_PT[0];
 
-        // Append the sequence number
-        rtpPacket = PacketUtils.append(rtpPacket, seq);
+        // The 2 sequence number bytes
+        if (packet.getSequenceNumber() != 0) {
+            PacketUtils.longToBytes(packet.getSequenceNumber(), rtpPacket, 2, 2);
+        } else {
+            PacketUtils.longToBytes(sequence_number, rtpPacket, 2, 2);
+        }
 
-        // Append the 4 timestamp bytes
-        rtpPacket = PacketUtils.append(rtpPacket, ts);
+        // The 4 timestamp bytes
+        PacketUtils.longToBytes(timestamp, rtpPacket, 4, 4);
 
-        // Append the 4 SSRC bytes
-        rtpPacket = PacketUtils.append(rtpPacket, ss);
+        // The 4 SSRC bytes
+        PacketUtils.longToBytes(packet.getSsrc(), rtpPacket, 8, 4);
 
-        // Append the data packet after 12 byte header
-        rtpPacket = PacketUtils.append(rtpPacket, packet.getPayloadData());
+        // The data packet after 12 byte header
+        if (payloadLength > 0) {
+            System.arraycopy(payload, packet.getPayloadOffset(), rtpPacket,
+                             RTP_PACKET_HEADER_LENGTH, payloadLength);
+        }
 
         sequence_number++;
 
-        // Create a datagram packet from the RTP byte packet, set ttl and send
-        // IP: Changed destination from m_mcastPort to m_sendPort for pkt
-        DatagramPacket pkt =
-                new DatagramPacket(rtpPacket, rtpPacket.length,
-                                   m_InetAddress, m_sendPort);
+        // Sockets belonging to a selector engine are non-blocking and must
+        // be written through their channel, DatagramSocket.send refuses them
+        DatagramChannel channel = m_sockSend.getChannel();
+        DatagramPacket pkt = null;
+
+        if (channel != null) {
+            if (sendByteBuffer == null || sendByteBuffer.array() != rtpPacket) {
+                sendByteBuffer = ByteBuffer.wrap(rtpPacket);
+            }
+            sendByteBuffer.clear();
+            sendByteBuffer.limit(packetLength);
+
+            if (sendAddress == null || sendAddress.getPort() != m_sendPort ||
+                !sendAddress.getAddress().equals(m_InetAddress)) {
+                sendAddress = new InetSocketAddress(m_InetAddress, m_sendPort);
+            }
+        } else {
+            // Point the datagram at the RTP bytes and send
+            // IP: Changed destination from m_mcastPort to m_sendPort for pkt
+            pkt = sendDatagram;
+            if (pkt == null) {
+                pkt = new DatagramPacket(rtpPacket, packetLength,
+                                         m_InetAddress, m_sendPort);
+                sendDatagram = pkt;
+            } else {
+                pkt.setData(rtpPacket, 0, packetLength);
+                pkt.setAddress(m_InetAddress);
+                pkt.setPort(m_sendPort);
+            }
+        }
 
         try {
             // IP: Replaced following line
@@ -446,7 +587,11 @@ public class RTPThreadHandler implements Runnable {
              */
 
             try {
-                m_sockSend.send(pkt);
+                if (channel != null) {
+                    channel.send(sendByteBuffer, sendAddress);
+                } else {
+                    m_sockSend.send(pkt);
+                }
             } catch (Exception e) {
                 System.err.println("RTPThreadHandle, excpetion sending: " + e);
             }
@@ -457,7 +602,7 @@ public class RTPThreadHandler implements Runnable {
             rtpSession.tc = rtpSession.currentTime();
             rtpSession.timeOfLastRTPSent = rtpSession.currentTime();
             rtpSession.packetCount++;
-            rtpSession.octetCount += packet.getPayloadData().length;
+            rtpSession.octetCount += payloadLength;
 
         }
         /*catch ( java.io.IOException e ) {
@@ -507,7 +652,7 @@ public class RTPThreadHandler implements Runnable {
         rtpSession.outprintln("RTP Group: " + m_InetAddress + "/" +
                               m_mcastPort);
 
-        byte[] buf = new byte[1024];
+        byte[] buf = new byte[RECEIVE_BUFFER_SIZE];
         DatagramPacket packet = new DatagramPacket(buf, buf.length);
 
         // IP: Moved following line own method instead
@@ -520,90 +665,7 @@ public class RTPThreadHandler implements Runnable {
 
             try {
                 m_sockReceive.receive(packet);
-
-                if (validateRTPPacketHeader(packet.getData())) {
-                    long ssrc = 0;
-                    int timeStamp = 0;
-                    short seqNo = 0;
-                    byte pt = 0;
-
-                    pt = (byte) ((buf[1] & 0xff) & 0x7f);
-                    seqNo = (short) ((buf[2] << 8) | (buf[3] & 0xff));
-                    timeStamp = (((buf[4] & 0xff) << 24) |
-                                 ((buf[5] & 0xff) << 16) |
-                                 ((buf[6] & 0xff) << 8) |
-                                 (buf[7] & 0xff));
-
-                    ssrc = (((buf[8] & 0xff) << 24) |
-                            ((buf[9] & 0xff) << 16) |
-                            ((buf[10] & 0xff) << 8) |
-                            (buf[11] & 0xff));
-
-                    rtpSession.outprintln("RTP (");
-                    rtpSession.outprintln("ssrc=0x" +
-                                          Long.toHexString(ssrc) +
-                                          "\tts=" + timeStamp +
-                                          "\tseq=" + seqNo +
-                                          "\tpt=" + pt);
-                    rtpSession.outprintln(")");
-
-                    // Create a RTPPacket and post it with Session.
-                    // If there are any interested actionListeners, they will
-                    // get it.
-                    RTPPacket rtppkt = new RTPPacket();
-                    rtppkt.setCsrcCount(0);
-                    rtppkt.setSequenceNumber(seqNo);
-                    rtppkt.setTimeStamp(timeStamp);
-                    rtppkt.setSsrc(ssrc);
-
-                    // the payload is after the fixed 12 byte header
-                    byte[] payload =
-                            new byte[packet.getLength() -
-                            RTP_PACKET_HEADER_LENGTH];
-
-                    for (int i = 0; i < payload.length; i++) {
-                        payload[i] = buf[i + RTP_PACKET_HEADER_LENGTH];
-                    }
-
-                    rtppkt.setPayloadData(payload);
-                    if (rtpSession.enableLoopBack) {
-                        rtpSession.postAction(rtppkt);
-                    } else {
-                        if (ssrc != rtpSession.ssrc) {
-                            rtpSession.postAction(rtppkt);
-                        }
-                    }
-
-                    // Get the source corresponding to this SSRC
-                    Source rtpSource = rtpSession.getSource(ssrc);
-
-                    //Set teh Active Sender Property to true
-                    rtpSource.activeSender = true;
-
-                    //Set the time of last RTP Arrival
-                    rtpSource.timeOfLastRTPArrival =
-                            rtpSession.tc = rtpSession.currentTime();
-
-                    //Update the sequence number
-                    rtpSource.updateSeq(seqNo);
-
-                    // if this is the first RTP Packet Received from this
-                    // source then store the seq no. as its base
-                    if (rtpSource.noOfRTPPacketsRcvd == 0) {
-                        rtpSource.base_seq = seqNo;
-                    }
-
-                    // Increment the total number of RTP Packets Received
-                    rtpSource.noOfRTPPacketsRcvd++;
-                } else {
-                    //System.err.println
-                    //	("RTP Receiver: Bad RTP Packet received");
-                    //System.err.println
-                    //("From : " + packet.getAddress() + "/" +
-                    // packet.getPort() + "\n" + "Length : " +
-                    // packet.getLength()
-                    //);
-                }
+                handleDatagram(buf, packet.getLength());
             } catch (java.net.SocketTimeoutException ste) {
                 //It's ok to timeout
             } catch (SocketException e) {
@@ -623,6 +685,134 @@ public class RTPThreadHandler implements Runnable {
 
     }
 
+    /**
+     * Parses one received RTP packet, updates the source level statistics
+     * and posts the packet to the Session. Called by the receive thread, or
+     * by the selector engine if the handler was created with one.
+     *
+     * @param buf The buffer holding the datagram
+     * @param length The length of the datagram
+     */
+    public void handleDatagram(byte[] buf, int length) {
+
+        // With rtcp-mux, RTCP packets are told apart by their packet type
+        // of 192 to 223, which as RTP would be a marker bit and a payload
+        // type of 64 to 95. Those payload types are never used with mux.
+        DatagramHandler rtcp = rtcpHandler;
+        if (rtcp != null && length >= 2 &&
+            (buf[1] & 0xff) >= 192 && (buf[1] & 0xff) <= 223) {
+            rtcp.handleDatagram(buf, length);
+            return;
+        }
+
+        if (length < RTP_PACKET_HEADER_LENGTH) {
+            return;
+        }
+
+        if (validateRTPPacketHeader(buf)) {
+            long ssrc = 0;
+            int timeStamp = 0;
+            int seqNo = 0;
+            byte pt = 0;
+
+            pt = (byte) ((buf[1] & 0xff) & 0x7f);
+            seqNo = ((buf[2] & 0xff) << 8) | (buf[3] & 0xff);
+            timeStamp = (((buf[4] & 0xff) << 24) |
+                         ((buf[5] & 0xff) << 16) |
+                         ((buf[6] & 0xff) << 8) |
+                         (buf[7] & 0xff));
+
+            ssrc = (((buf[8] & 0xff) << 24) |
+                    ((buf[9] & 0xff) << 16) |
+                    ((buf[10] & 0xff) << 8) |
+                    (buf[11] & 0xff));
+
+            // Only build the debug strings if they will be printed
+            if (rtpSession.debugOutput) {
+                rtpSession.outprintln("RTP (");
+                rtpSession.outprintln("ssrc=0x" +
+                                      Long.toHexString(ssrc) +
+                                      "\tts=" + timeStamp +
+                                      "\tseq=" + seqNo +
+                                      "\tpt=" + pt);
+                rtpSession.outprintln(")");
+            }
+
+            // Create a RTPPacket and post it with Session.
+            // If there are any interested actionListeners, they will
+            // get it.
+            // The packet is reused if the session allows it, this handler
+            // is only ever called from one thread at a time.
+            RTPPacket rtppkt;
+            int payloadLength = length - RTP_PACKET_HEADER_LENGTH;
+
+            if (rtpSession.reuseReceivedPackets) {
+                if (receivedPacket == null) {
+                    receivedPacket = new RTPPacket();
+                }
+                rtppkt = receivedPacket;
+            } else {
+                rtppkt = new RTPPacket();
+            }
+            rtppkt.setCsrcCount(0);
+            rtppkt.setSequenceNumber(seqNo);
+            rtppkt.setTimeStamp(timeStamp);
+            rtppkt.setSsrc(ssrc);
+            rtppkt.setMarker((buf[1] & 0x80) != 0);
+
+            // the payload is after the fixed 12 byte header
+            if (rtpSession.reuseReceivedPackets) {
+                rtppkt.setPayloadData(buf, RTP_PACKET_HEADER_LENGTH,
+                                      payloadLength);
+            } else {
+                byte[] payload = new byte[payloadLength];
+                System.arraycopy(buf, RTP_PACKET_HEADER_LENGTH, payload, 0,
+                                 payloadLength);
+                rtppkt.setPayloadData(payload);
+            }
+
+            if (rtpSession.enableLoopBack) {
+                rtpSession.postAction(rtppkt);
+            } else {
+                if (ssrc != rtpSession.ssrc) {
+                    rtpSession.postAction(rtppkt);
+                }
+            }
+
+            // Get the source corresponding to this SSRC
+            Source rtpSource = rtpSession.getSource(ssrc);
+
+            //Set teh Active Sender Property to true
+            rtpSource.activeSender = true;
+
+            //Set the time of last RTP Arrival
+            long arrival = rtpSession.currentTime();
+            rtpSource.timeOfLastRTPArrival = rtpSession.tc = arrival;
+
+            rtpSource.updateJitter(timeStamp, arrival, rtpSession.clockRate);
+
+            //Update the sequence number
+            long extendedSeqNo = rtpSource.updateSeq(seqNo);
+
+            // if this is the first RTP Packet Received from this
+            // source then store the seq no. as its base
+            if (rtpSource.noOfRTPPacketsRcvd == 0) {
+                rtpSource.base_seq = extendedSeqNo;
+            }
+
+            // Increment the total number of RTP Packets Received
+            rtpSource.noOfRTPPacketsRcvd++;
+        } else {
+            //System.err.println
+            //	("RTP Receiver: Bad RTP Packet received");
+            //System.err.println
+            //("From : " + packet.getAddress() + "/" +
+            // packet.getPort() + "\n" + "Length : " +
+            // packet.getLength()
+            //);
+        }
+    }
+
     // IP: Added method
     /**
      * Stops the thread and closes all sockets.
@@ -636,6 +826,11 @@ public class RTPThreadHandler implements Runnable {
             }
         }
 
+        if (selectorEngine != null && m_sockReceive != null &&
+            m_sockReceive.getChannel() != null) {
+            selectorEngine.unregister(m_sockReceive.getChannel());
+        }
+
         if (m_sockSend != null) {
             if (!m_sockSend.isClosed()) {
                 m_sockSend.close();
@@ -130,13 +130,25 @@ public class RtpG711Receiver implements Runnable,
     }
 
     /**
-     * Initializes the reception thread and starts it.
+     * Initializes the reception thread and starts it. If the session is
+     * served by an RTPSelectorEngine the listeners are registered directly
+     * and no thread is started, since the thread would only idle.
      *
      */
     public void start()
     {
 	logger.finest("Starting text receiver");
 
+	if (rtpSession.getSelectorEngine() != null) {
+	    rtpSession.addRTP_actionListener(this);
+	    rtpSession.addRTCP_actionListener(this);
+
+	    logger.finest("Ready to receive.");
+
+	    localReceiverIsReady = true;
+	    return;
+	}
+
         thisThread = new StateThread(this, "RTP Text Receiver");
         thisThread.start();
     }
@@ -227,8 +239,8 @@ public class RtpG711Receiver implements Runnable,
 	inBuffer.setData(rtpPacket.getPayloadData());
 	inBuffer.setSequenceNumber(rtpPacket.getSequenceNumber());
 	inBuffer.setTimeStamp(rtpPacket.getTimeStamp());
-	inBuffer.setLength(rtpPacket.getPayloadData().length);
-	inBuffer.setOffset(0);
+	inBuffer.setLength(rtpPacket.getPayloadLength());
+	inBuffer.setOffset(rtpPacket.getPayloadOffset());
 	inBuffer.setSsrc(rtpPacket.getSsrc());
 
         g711DePacketizer.decode(inBuffer, outBuffer);
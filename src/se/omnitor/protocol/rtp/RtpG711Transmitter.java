@@ -20,12 +20,13 @@ package se.omnitor.protocol.rtp;
 
 import java.util.Random;
 import se.omnitor.protocol.rtp.Session;
-import se.omnitor.protocol.rtp.StateThread;
 import se.omnitor.protocol.rtp.audio.AudioConstants;
 import se.omnitor.protocol.rtp.audio.AudioSyncBuffer;
 import se.omnitor.protocol.rtp.audio.G711Packetizer;
 import se.omnitor.protocol.rtp.audio.RtpAudioBuffer;
 import se.omnitor.protocol.rtp.packets.RTPPacket;
+import se.omnitor.util.BufferFlushListener;
+import se.omnitor.util.FifoBuffer;
 //import se.omnitor.protocol.rtp.text.RtpTextBuffer;
 //import se.omnitor.protocol.rtp.text.RtpTextPacketizer;
 //import se.omnitor.protocol.rtp.text.SyncBuffer;
@@ -35,14 +36,19 @@ import java.util.logging.Logger;
 
 /**
  * An RTP text transmitter that reads characters from a buffer and sends them
- * over the network to another host.
+ * over the network to another host. <br>
+ * <br>
+ * The transmitter has no thread of its own. It listens to the flushes of
+ * the buffer and sends the data from the thread that flushes it. With the
+ * usual buffer time of zero that is the thread adding the audio, so the
+ * shared timer thread is not used for audio.
  *
  * @author Ingemar Persson, Omnitor AB
  * @author Andreas Piirimets, Omnitor AB
  */
-public class RtpG711Transmitter implements Runnable {
+public class RtpG711Transmitter implements BufferFlushListener {
 
-	private StateThread thisThread = null;
+	private boolean running = false;
 	private Session rtpSession;
 	private G711Packetizer g711Packetizer;
 
@@ -55,6 +61,11 @@ public class RtpG711Transmitter implements Runnable {
 	//EZ: SSRC
 	private long ssrc = 0;
 
+	// Reused for every packet, all fields are set again before a send
+	private RTPPacket outputPacket = new RTPPacket();
+	private RtpAudioBuffer inBuffer = new RtpAudioBuffer();
+	private RtpAudioBuffer outBuffer = new RtpAudioBuffer();
+
 	// declare package and classname
 	public final static String CLASS_NAME = RtpG711Transmitter.class.getName();
 	// get an instance of Logger
@@ -168,84 +179,52 @@ public class RtpG711Transmitter implements Runnable {
 	}
 
 	/**
-	 * Starts the process.
-	 *
-	 * This process will try to read from the buffer and send it over the
-	 * network. It handles automatic resending of redundant data if no data
-	 * has been written to the buffer.
+	 * Sends the data that is due. Called by the buffer when it has been
+	 * flushed.
 	 *
+	 * @param buffer The buffer that was flushed
 	 */
-	public void run()
+	public synchronized void bufferFlushed(FifoBuffer buffer)
 	{
 		// write methodname
-		final String METHOD = "run()";
-		// log when entering a method
-		logger.entering(CLASS_NAME, METHOD);
+		final String METHOD = "bufferFlushed(FifoBuffer buffer)";
 
-		RTPPacket outputPacket;
 		byte[] data;
 
-		RtpAudioBuffer inBuffer;
-		RtpAudioBuffer outBuffer;
-
-		dataBuffer.start();
-
-		while (thisThread.checkState() != StateThread.STOP) {
-
-			outputPacket = new RTPPacket();
-
-			// Catch data from buffer
-			try {
-				data = dataBuffer.getData();
-
-				for (int cnt5=0; cnt5<data.length; cnt5++) {
-					logger.logp(Level.FINEST, CLASS_NAME, METHOD, "data fetched from buffer, element " + cnt5 + " was '" + data[cnt5] + "' from buffer");
-				}
-
-				if (data.length > 0) {
-					if (thisThread.checkState() == StateThread.STOP) {
-						break;
-					}
-
-					inBuffer = new RtpAudioBuffer();
-					inBuffer.setData(data);
-					if (data == null) {
-						inBuffer.setLength(0);
-					} else {
-						inBuffer.setLength(data.length);
-					}
-
-					outBuffer = new RtpAudioBuffer();
-
-					///Q3 tech
-					//G711rtp.alawinit();
-					//byte[] input = inBuffer.getData();
-					//byte[] intermediateBuff = G711rtp.convertg711alaw(input, input.length);
-					//inBuffer.setData(intermediateBuff);
-					//inBuffer.setLength(intermediateBuff.length);
-					///////
-
-					g711Packetizer.encode(inBuffer, outBuffer);
-					outputPacket.setPayloadData(outBuffer.getData());
-					outputPacket.setTimeStamp(outBuffer.getTimeStamp());
-					outputPacket.setSequenceNumber(outBuffer.
-							getSequenceNumber());
-					outputPacket.setMarker(outBuffer.getMarker());
-					outputPacket.setSsrc(ssrc);
+		if (!running || rtpSession == null) {
+			return;
+		}
 
-					rtpSession.sendRTPPacket(outputPacket);
-				}
+		data = dataBuffer.takeData();
 
-			}
-			catch (InterruptedException ie) {
-				logger.logp(Level.FINE, CLASS_NAME, METHOD, "Transmit thread interrupted", ie);
+		if (logger.isLoggable(Level.FINEST)) {
+			for (int cnt5=0; cnt5<data.length; cnt5++) {
+				logger.logp(Level.FINEST, CLASS_NAME, METHOD, "data fetched from buffer, element " + cnt5 + " was '" + data[cnt5] + "' from buffer");
 			}
 		}
 
-		// Release thread
-		thisThread = null;
-
-		logger.exiting(CLASS_NAME, METHOD);
+		if (data.length > 0) {
+			inBuffer.setData(data);
+			inBuffer.setLength(data.length);
+
+			///Q3 tech
+			//G711rtp.alawinit();
+			//byte[] input = inBuffer.getData();
+			//byte[] intermediateBuff = G711rtp.convertg711alaw(input, input.length);
+			//inBuffer.setData(intermediateBuff);
+			//inBuffer.setLength(intermediateBuff.length);
+			///////
+
+			g711Packetizer.encode(inBuffer, outBuffer);
+			outputPacket.setPayloadData(outBuffer.getData());
+			outputPacket.setTimeStamp(outBuffer.getTimeStamp());
+			outputPacket.setSequenceNumber(outBuffer.
+					getSequenceNumber());
+			outputPacket.setMarker(outBuffer.getMarker());
+			outputPacket.setSsrc(ssrc);
+
+			rtpSession.sendRTPPacket(outputPacket);
+		}
 	}
 
 	/**
@@ -259,31 +238,30 @@ public class RtpG711Transmitter implements Runnable {
 	}
 
 	/**
-	 * Starts the transmit thread.
+	 * Starts sending the data of the buffer as it is flushed.
 	 *
 	 */
-	public void start()
+	public synchronized void start()
 	{
-		if (thisThread == null)
+		if (!running)
 		{
-			//logger.finest("Starting transmit thread.");
-			thisThread = new StateThread(this, "RtpAudioTransmitter");
-			thisThread.start();
+			running = true;
+			dataBuffer.setFlushListener(this);
+			dataBuffer.start();
 		}
 	}
 
 	/**
-	 * Stops the transmit thread.
+	 * Stops sending.
 	 *
 	 */
 	public synchronized void stop()
 	{
-		if (thisThread != null)
+		if (running)
 		{
-			//logger.finest("Stopping transmit thread.");
+			running = false;
 			dataBuffer.stop();
-			thisThread.setState(StateThread.STOP);
-			thisThread.interrupt();
+			dataBuffer.setFlushListener(null);
 		}
 		if (rtpSession != null) {
 			// logger.finest("Stopping RTP and RTCP sessions.");
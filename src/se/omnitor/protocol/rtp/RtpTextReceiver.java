@@ -18,6 +18,8 @@
  */
 package se.omnitor.protocol.rtp;
 
+import java.util.Enumeration;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import se.omnitor.protocol.rtp.packets.RTCP_actionListener;
 import se.omnitor.protocol.rtp.packets.RTCPBYEPacket;
@@ -27,12 +29,21 @@ import se.omnitor.protocol.rtp.packets.RTCPSenderReportPacket;
 import se.omnitor.protocol.rtp.packets.RTP_actionListener;
 import se.omnitor.protocol.rtp.packets.RTPPacket;
 import se.omnitor.protocol.rtp.text.RtpTextDePacketizer;
+import se.omnitor.protocol.rtp.t140redundancy.RedundancyFilter;
+import se.omnitor.util.ConcurrentLongMap;
 import se.omnitor.util.FifoBuffer;
+import se.omnitor.util.WheelTimer;
 import se.omnitor.protocol.rtp.text.RtpTextBuffer;
 
 /**
  * A RTP text receiver who reads incoming RTP text packets, depacketizes them
- * and puts them into a buffer.
+ * and puts them into a buffer. <br>
+ * <br>
+ * A receiver created with an RtpTextStreamListener instead accepts any
+ * number of senders on the session. It keeps separate depacketizing state
+ * for every SSRC and hands the text of each stream to the listener
+ * together with the SSRC. A stream ends when its sender leaves with an
+ * RTCP BYE or has sent nothing for the stream timeout.
  *
  * @author Ingemar Persson, Omnitor AB
  * @author Andreas Piirimets, Omnitor AB
@@ -41,6 +52,12 @@ public class RtpTextReceiver implements Runnable,
 					RTP_actionListener,
 					RTCP_actionListener {
 
+    /**
+     * Default time in milliseconds a stream may be silent before it is
+     * ended.
+     */
+    public static final long DEFAULT_STREAM_TIMEOUT = 60000;
+
     private StateThread thisThread = null;
     private RtpTextDePacketizer textDePacketizer;
     private Session rtpSession;
@@ -51,6 +68,10 @@ public class RtpTextReceiver implements Runnable,
 
     private FifoBuffer dataBuffer;
 
+    // Reused for every packet, handleRTPEvent is called from one thread
+    private RtpTextBuffer inBuffer = new RtpTextBuffer();
+    private RtpTextBuffer outBuffer = new RtpTextBuffer();
+
     private boolean remoteReceiverIsReady;
     private boolean localReceiverIsReady;
 
@@ -61,6 +82,13 @@ public class RtpTextReceiver implements Runnable,
     private se.omnitor.protocol.rtp.t140redundancy.RedundancyFilter redFilter;
     
     private boolean redFlagIncoming;
+    private int t140PayloadType;
+    private int redPayloadType;
+
+    // Set when every SSRC is received as a stream of its own
+    private RtpTextStreamListener streamListener = null;
+    private ConcurrentLongMap<TextStream> streams = null;
+    private long streamTimeout = DEFAULT_STREAM_TIMEOUT;
 
     /**
      * Initializes the RTP text receiver and starts the reception thread.
@@ -83,15 +111,19 @@ public class RtpTextReceiver implements Runnable,
         logger.finest("ENTRY");
 
         this.redFlagIncoming = redFlagIncoming;
+        this.t140PayloadType = t140PayloadType;
+        this.redPayloadType = redPayloadType;
         this.rtpSession = rtpSession;//new Session(ipAddress, 64000);
 
         this.localPort = localPort;
 	this.dataBuffer = dataBuffer;
 
-
-	textDePacketizer = new RtpTextDePacketizer(t140PayloadType,
-						   redPayloadType,
-						   redFlagIncoming);
+	// In stream mode every SSRC has a depacketizer of its own
+	if (dataBuffer != null) {
+	    textDePacketizer = new RtpTextDePacketizer(t140PayloadType,
+						       redPayloadType,
+						       redFlagIncoming);
+	}
 
         if (redFlagIncoming)
         {
@@ -115,6 +147,33 @@ public class RtpTextReceiver implements Runnable,
 	    //}
     }
 
+    /**
+     * Initializes an RTP text receiver that receives every SSRC on the
+     * session as a separate stream. The text of each stream is given to the
+     * listener instead of being written to a buffer.
+     *
+     * @param ipAddress The IP address to the remote RTP sender
+     * @param localPort The local RTP port to receive RTP text data on
+     * @param redFlagIncoming Indicates whether redundancy will be used
+     * @param t140PayloadType The RTP payload number for T140.
+     * @param redPayloadType The RTP payload number for RED, if used.
+     * @param streamListener The listener that receives the text
+     */
+    public RtpTextReceiver(Session rtpSession,
+			   String ipAddress,
+                           int localPort,
+			   boolean redFlagIncoming,
+			   int t140PayloadType,
+			   int redPayloadType,
+			   RtpTextStreamListener streamListener) {
+
+	this(rtpSession, ipAddress, localPort, redFlagIncoming,
+	     t140PayloadType, redPayloadType, (FifoBuffer)null);
+
+	this.streamListener = streamListener;
+	streams = new ConcurrentLongMap<TextStream>();
+    }
+
     /**
      * Writes a log comment.
      *
@@ -127,13 +186,25 @@ public class RtpTextReceiver implements Runnable,
     }
 
     /**
-     * Initializes the reception thread and starts it.
+     * Initializes the reception thread and starts it. If the session is
+     * served by an RTPSelectorEngine the listeners are registered directly
+     * and no thread is started, since the thread would only idle.
      *
      */
     public void start()
     {
 	logger.finest("Starting text receiver");
 
+	if (rtpSession.getSelectorEngine() != null) {
+	    rtpSession.addRTP_actionListener(this);
+	    rtpSession.addRTCP_actionListener(this);
+
+	    logger.finest("Ready to receive.");
+
+	    localReceiverIsReady = true;
+	    return;
+	}
+
         thisThread = new StateThread(this, "RTP Text Receiver");
         thisThread.start();
     }
@@ -192,6 +263,26 @@ public class RtpTextReceiver implements Runnable,
 	    rtpSession.stopRTPThread();
 	    rtpSession.stopRTCPReceiverThread();
 	}
+	if (streams != null) {
+	    Enumeration<TextStream> all = streams.elements();
+	    while (all.hasMoreElements()) {
+		all.nextElement().close();
+	    }
+	    streams.clear();
+	}
+    }
+
+    /**
+     * Sets the time a stream may be silent before it is ended and its
+     * state is released. Only used by receivers with an
+     * RtpTextStreamListener. Running streams use the new timeout from
+     * their next check on.
+     *
+     * @param streamTimeout The timeout in milliseconds
+     */
+    public void setStreamTimeout(long streamTimeout)
+    {
+	this.streamTimeout = streamTimeout;
     }
 
     /**
@@ -218,16 +309,18 @@ public class RtpTextReceiver implements Runnable,
     	incomingPacketsDialogHandler.addPacket(rtpPacket);
     }
     
-	RtpTextBuffer inBuffer = new RtpTextBuffer();
-	RtpTextBuffer outBuffer = new RtpTextBuffer();
-
 	inBuffer.setData(rtpPacket.getPayloadData());
 	inBuffer.setSequenceNumber(rtpPacket.getSequenceNumber());
 	inBuffer.setTimeStamp(rtpPacket.getTimeStamp());
-	inBuffer.setLength(rtpPacket.getPayloadData().length);
-	inBuffer.setOffset(0);
+	inBuffer.setLength(rtpPacket.getPayloadLength());
+	inBuffer.setOffset(rtpPacket.getPayloadOffset());
 	inBuffer.setSsrc(rtpPacket.getSsrc());
 
+	if (streamListener != null) {
+	    handleStreamPacket(rtpPacket);
+	    return;
+	}
+
         textDePacketizer.decode(inBuffer, outBuffer);
 
 	rtpPacket.setPayloadData(null);
@@ -239,12 +332,58 @@ public class RtpTextReceiver implements Runnable,
 
 
         if (data != null) {
-	    logger.finest("Data to buffer: " + new String(data));
+	    if (logger.isLoggable(Level.FINEST)) {
+		logger.finest("Data to buffer: " + new String(data));
+	    }
 	    dataBuffer.setData(data);
             //System.err.println("RECEIVED DATA = " + new String(data));
         }
     }
 
+    /**
+     * Depacketizes a packet with the state of its SSRC, and hands the text
+     * to the stream listener. The state is created when the first packet
+     * of an SSRC arrives.
+     *
+     * @param rtpPacket The incoming packet, already copied to inBuffer
+     */
+    private void handleStreamPacket(RTPPacket rtpPacket)
+    {
+	long ssrc = rtpPacket.getSsrc();
+	TextStream stream = streams.get(ssrc);
+
+	if (stream == null) {
+	    stream = new TextStream(ssrc);
+	    streams.put(ssrc, stream);
+	    WheelTimer.getShared().schedule(stream, streamTimeout);
+	}
+
+	// The stream lock keeps a timeout, BYE or stop from closing the
+	// stream while a packet is decoded. A packet that finds the stream
+	// closed is dropped, the next one starts a new stream.
+	synchronized (stream) {
+	    rtpPacket.setPayloadData(null);
+
+	    if (stream.closed) {
+		return;
+	    }
+	    stream.lastArrival = System.currentTimeMillis();
+
+	    stream.dePacketizer.decode(inBuffer, stream.outBuffer);
+
+	    byte[] data =
+		stream.redFilter.filterInput(stream.outBuffer.getData());
+
+	    if (data != null && data.length > 0) {
+		if (logger.isLoggable(Level.FINEST)) {
+		    logger.finest("Data from " + Long.toHexString(ssrc) + ": " +
+				  new String(data));
+		}
+		streamListener.handleText(ssrc, data);
+	    }
+	}
+    }
+
     /**
      * When this function is invoked (when an RTCP RR packet has arrived), it
      * means that the remote receiver is ready and RTP Text packets may be
@@ -339,6 +478,12 @@ public class RtpTextReceiver implements Runnable,
      * @param byepkt The incoming packet
      */
     public void handleRTCPEvent ( RTCPBYEPacket byepkt) {
+	if (streams != null) {
+	    TextStream stream = streams.remove(byepkt.getSsrc());
+	    if (stream != null && stream.close()) {
+		streamListener.streamEnded(byepkt.getSsrc());
+	    }
+	}
 	/*
         logger.finest (    "\n**** ActionListener RTCP BYE: *****\n"
                                 + "BYE SSRC: " + byepkt.SSRC + "\n"
@@ -455,4 +600,77 @@ public class RtpTextReceiver implements Runnable,
 		incomingPacketsDialogHandler = dialogHandler;
 		dialogHandler.setRedundancy(redFlagIncoming);
 	}
+
+    /**
+     * The receive state of one SSRC. The stream is also its inactivity
+     * timeout on the shared timer. The timeout is not moved for every
+     * packet, when it expires it checks the time of the last packet and is
+     * scheduled again for the rest of the time. <br>
+     * <br>
+     * Decoding and closing are done holding the lock of the stream, so no
+     * text is decoded once the stream is closed.
+     */
+    private class TextStream extends WheelTimer.Entry
+    {
+	long ssrc;
+	RtpTextDePacketizer dePacketizer;
+	RedundancyFilter redFilter;
+	RtpTextBuffer outBuffer;
+	long lastArrival;
+	boolean closed;
+
+	TextStream(long ssrc)
+	{
+	    this.ssrc = ssrc;
+	    dePacketizer = new RtpTextDePacketizer(t140PayloadType,
+						   redPayloadType,
+						   redFlagIncoming);
+	    redFilter = new RedundancyFilter();
+	    outBuffer = new RtpTextBuffer();
+	    lastArrival = System.currentTimeMillis();
+	    closed = false;
+	}
+
+	/**
+	 * Closes the stream and releases its timeouts. Waits for a packet
+	 * that is being decoded.
+	 *
+	 * @return true if the stream was closed by this call, false if it
+	 * was already closed
+	 */
+	synchronized boolean close()
+	{
+	    if (closed) {
+		return false;
+	    }
+	    closed = true;
+
+	    WheelTimer.getShared().cancel(this);
+	    dePacketizer.close();
+	    return true;
+	}
+
+	public void expire()
+	{
+	    synchronized (this) {
+		if (closed) {
+		    return;
+		}
+
+		long silent = System.currentTimeMillis() - lastArrival;
+
+		if (silent < streamTimeout) {
+		    WheelTimer.getShared().schedule(this,
+						    streamTimeout - silent);
+		    return;
+		}
+
+		close();
+	    }
+
+	    // A new stream for the SSRC may already have been started
+	    streams.remove(ssrc, this);
+	    streamListener.streamEnded(ssrc);
+	}
+    }
 }
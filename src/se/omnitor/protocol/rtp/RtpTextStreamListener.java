@@ -0,0 +1,51 @@
+/*
+ * Copyright (C) 2004-2008  University of Wisconsin-Madison and Omnitor AB
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ */
+package se.omnitor.protocol.rtp;
+
+/**
+ * Interface which is implemented by applications that receive text from
+ * several RTP streams on one session, for example a conference bridge.
+ * Every stream is identified by the SSRC of its sender.
+ *
+ * @author Unknown
+ *
+ * @see RtpTextReceiver#RtpTextReceiver(Session, String, int, boolean, int,
+ * int, RtpTextStreamListener)
+ */
+public interface RtpTextStreamListener
+{
+    /**
+     * Handles text received from one stream. The text has been
+     * depacketized, recovered from redundancy and T.140 filtered just like
+     * text written to the data buffer of a single stream receiver.
+     *
+     * @param ssrc The SSRC of the stream
+     * @param data The received text, UTF-8 encoded
+     */
+    void handleText(long ssrc, byte[] data);
+
+    /**
+     * Called when the sender of a stream has left the session with an RTCP
+     * BYE, or has sent nothing for the stream timeout of the receiver. Text
+     * arriving later from the same SSRC starts a new stream.
+     *
+     * @param ssrc The SSRC of the stream
+     */
+    void streamEnded(long ssrc);
+}
@@ -18,14 +18,16 @@
  */
 package se.omnitor.protocol.rtp;
 
-import java.util.Random;
+import java.nio.ByteBuffer;
 import se.omnitor.protocol.rtp.Session;
 import se.omnitor.protocol.rtp.StateThread;
 import se.omnitor.protocol.rtp.packets.RTPPacket;
 import se.omnitor.protocol.rtp.text.RtpTextBuffer;
 import se.omnitor.protocol.rtp.text.RtpTextPacketizer;
 import se.omnitor.protocol.rtp.text.SyncBuffer;
+import se.omnitor.protocol.rtp.text.TextChunker;
 import se.omnitor.protocol.rtp.text.TextConstants;
+import se.omnitor.util.TokenBucket;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -38,6 +40,28 @@ import java.util.logging.Logger;
  */
 public class RtpTextTransmitter implements Runnable {
 
+	/**
+	 * The MTU assumed if none is set.
+	 */
+	public static final int DEFAULT_MTU = 1500;
+
+	/**
+	 * The largest datagram sent, whatever the MTU. Older receivers,
+	 * including earlier versions of this library, read RTP packets into
+	 * 1024 byte buffers.
+	 */
+	public static final int MAX_DATAGRAM_SIZE = 1024;
+
+	/**
+	 * IPv6 and UDP header size, which is subtracted from the MTU.
+	 */
+	private static final int IP_UDP_HEADER_SIZE = 48;
+
+	/**
+	 * RTP header size.
+	 */
+	private static final int RTP_HEADER_SIZE = 12;
+
 	private StateThread thisThread = null;
 	private Session rtpSession;
 	private RtpTextPacketizer textPacketizer;
@@ -61,6 +85,19 @@ public class RtpTextTransmitter implements Runnable {
 	//EZ: SSRC
 	private long ssrc = 0;
 
+	private volatile AdaptiveRedundancyController redundancyController = null;
+
+	private TextChunker chunker = new TextChunker();
+	private int mtu = DEFAULT_MTU;
+	private int cps = 0;
+	private volatile TokenBucket cpsLimiter = null;
+
+	// Time text has been held back by the CPS limit
+	private volatile long holdBackStart = 0;
+	private long lastHoldBack = 0;
+	private long maxHoldBack = 0;
+	private long totalHoldBack = 0;
+
 	// declare package and classname
 	public final static String CLASS_NAME = RtpTextTransmitter.class.getName();
 	// get an instance of Logger
@@ -129,25 +166,6 @@ public class RtpTextTransmitter implements Runnable {
 				(redFlagOutgoing, redundantT140Generations);
 		}
 
-		// Calculate new buffertime and cpp according to cps
-		/*
-	if (cps > 0) {
-	    cpp = (int)Math.round((double)cps * (double)bufferTime/1000.0);
-	    if (cpp == 0) {
-		cpp = 1;
-	    }
-	    this.bufferTime =
-		Math.round(1000.0 * (double)cpp / (double)cps);
-
-	    useCpp = true;
-	}
-	else {
-	    this.bufferTime = bufferTime;
-	    cpp = 100;
-	    useCpp = false;
-	}
-		 */
-
 		textPacketizer = new RtpTextPacketizer(t140PayloadType,
 				redPayloadType,
 				redundantGenerations);
@@ -167,8 +185,10 @@ public class RtpTextTransmitter implements Runnable {
 
 		//rtpSession.createAndStartRTCPSenderThread(localPort+1, remotePort+1);
 
-		//Construct SSRC
-		ssrc = createSSRC();
+		// Send with the SSRC of the session, so that the sender reports of
+		// the session describe this stream and the receiver reports about
+		// it are recognized.
+		ssrc = rtpSession.ssrc;
 
 		if (startRtpTransmit) {
 			start();
@@ -177,59 +197,6 @@ public class RtpTextTransmitter implements Runnable {
 		logger.exiting(CLASS_NAME, METHOD);
 	}
 
-	/**
-	 * Creates an SSRC for this session.
-	 *
-	 * @return The SSRC
-	 */
-	private long createSSRC() {
-
-		//Creata a seed to ensure the SSRC is as random as possible,
-		long time  = java.lang.System.currentTimeMillis();
-		long ports = (long)remotePort << 32 | localPort;
-		long addr  = 0;
-		byte[] rawLocalIPAddr  = null;
-		byte[] rawRemoteIPAddr = null;
-		long seed = 0;
-
-		try {
-			rawLocalIPAddr  = java.net.InetAddress.getLocalHost().getAddress();
-			rawRemoteIPAddr = java.net.InetAddress.getByName(ipAddress).getAddress();
-		} catch (java.net.UnknownHostException uhe) {
-
-		}
-
-		//IPv6
-		if(rawLocalIPAddr.length==6) {
-			addr = (long)rawLocalIPAddr[0] << 40 |
-			(long)rawLocalIPAddr[1] << 32 |
-			(long)rawLocalIPAddr[2] << 24 |
-			(long)rawLocalIPAddr[3] << 16 |
-			(long)rawLocalIPAddr[4] << 8  |
-			(long)rawLocalIPAddr[5];
-		}
-		//IPv4
-		else if(rawLocalIPAddr.length==4) {
-			addr = (long)rawLocalIPAddr[0] << 56 |
-			(long)rawLocalIPAddr[1] << 48 |
-			(long)rawLocalIPAddr[2] << 40 |
-			(long)rawLocalIPAddr[3] << 32 |
-			(long)rawRemoteIPAddr[0] << 24 |
-			(long)rawRemoteIPAddr[1] << 16 |
-			(long)rawRemoteIPAddr[2] << 8  |
-			(long)rawRemoteIPAddr[3];
-		}
-		else {
-			logger.warning("Unknown IP format in createSSRC");
-		}
-
-		seed = (time | ports | addr);
-
-		//Use the seed to get the SSRC.
-		Random rand = new Random(seed);
-		return rand.nextLong();
-	}
-
 	/**
 	 * Starts the process.
 	 *
@@ -245,11 +212,28 @@ public class RtpTextTransmitter implements Runnable {
 		// log when entering a method
 		logger.entering(CLASS_NAME, METHOD);
 
-		RTPPacket outputPacket;
-		byte[] data;
-
-		RtpTextBuffer inBuffer;
-		RtpTextBuffer outBuffer;
+		// Every field is set again before a send
+		RTPPacket outputPacket = new RTPPacket();
+		long nextChunkTime = 0;
+		long sleepTime;
+		long now;
+		int maxCharacters;
+		TokenBucket limiter;
+		AdaptiveRedundancyController controller;
+
+		// Reused for every packet, the payload is encoded straight into
+		// the byte buffer and sent from there.
+		RtpTextBuffer inBuffer = new RtpTextBuffer();
+		RtpTextBuffer outBuffer = new RtpTextBuffer();
+		byte[] readData = new byte[256];
+		int readLength;
+		byte[] data = new byte[256];
+		int dataLength;
+		int maxChunkSize;
+		ByteBuffer payload = ByteBuffer.allocate(256);
+		int payloadSize;
+		byte[] t140Data = new byte[256];
+		int t140Length;
 
 		long lastSentTime = 0;
 		long timeNow = 0;
@@ -264,37 +248,114 @@ public class RtpTextTransmitter implements Runnable {
 
 		while (thisThread.checkState() != StateThread.STOP) {
 
-			outputPacket = new RTPPacket();
-
-			// Catch data from buffer
+			// Catch data from buffer. Data that does not fit in one
+			// packet, or exceeds the CPS limit, is sent in pieces.
 			try {
-				data = dataBuffer.getData();
+				if (chunker.hasMore()) {
+					sleepTime = nextChunkTime -
+						System.currentTimeMillis();
+					if (sleepTime > 0) {
+						Thread.sleep(sleepTime);
+					}
+				}
+				else {
+					readLength = dataBuffer.getData(readData, 0,
+							readData.length);
+					chunker.add(readData, 0, readLength);
+
+					// More is due than fits in the array
+					while (readLength == readData.length) {
+						readLength = dataBuffer.takeData(readData, 0,
+								readData.length);
+						chunker.add(readData, 0, readLength);
+					}
+				}
+
+				// A new redundancy level only takes effect here, so
+				// that the chunk is sized for the level it is encoded
+				// with.
+				controller = redundancyController;
+				if (controller != null) {
+					controller.applyPendingGenerations();
+				}
+
+				now = System.currentTimeMillis();
+				limiter = cpsLimiter;
+				maxCharacters = Integer.MAX_VALUE;
+				if (limiter != null) {
+					maxCharacters = limiter.available(now);
+				}
+
+				maxChunkSize = Math.max(getMaxChunkSize(),
+						TextChunker.MIN_CHUNK_SIZE);
+				if (data.length < maxChunkSize) {
+					data = new byte[maxChunkSize];
+				}
+				dataLength = chunker.next(data, 0, maxChunkSize,
+						maxCharacters);
+				if (limiter != null) {
+					limiter.take(TextChunker.countCharacters(data, 0,
+							dataLength), now);
+				}
 
-				for (int cnt5=0; cnt5<data.length; cnt5++) {
-					logger.logp(Level.FINEST, CLASS_NAME, METHOD, "data fetched from buffer, element " + cnt5 + " was '" + data[cnt5] + "' from buffer");
+				// Text left over is sent right away if it was split to
+				// fit the packet, otherwise at the buffer time cadence
+				// once the limit allows more characters.
+				if (chunker.hasMore()) {
+					if (limiter != null && limiter.available(now) == 0) {
+						if (holdBackStart == 0) {
+							holdBackStart = now;
+						}
+						nextChunkTime = now + Math.max(bufferTime,
+								limiter.timeUntil(1, now));
+					}
+					else {
+						nextChunkTime = now;
+					}
+				}
+				else if (holdBackStart != 0) {
+					updateHoldBack(now - holdBackStart);
+					holdBackStart = 0;
 				}
 
-				if (data.length > 0 || redFlagOutgoing) {
+				if (logger.isLoggable(Level.FINEST)) {
+					for (int cnt5=0; cnt5<dataLength; cnt5++) {
+						logger.logp(Level.FINEST, CLASS_NAME, METHOD, "data fetched from buffer, element " + cnt5 + " was '" + data[cnt5] + "' from buffer");
+					}
+				}
+
+				if (dataLength > 0 ||
+						(redFlagOutgoing && !chunker.hasMore())) {
 					if (thisThread.checkState() == StateThread.STOP) {
 						break;
 					}
 
 					//EZ: Add T.140 redundancy
 					if (redundantT140Generations > 0) {
-						data = redFilter.addRedundancy(data);
+						t140Length = redFilter.getEncodedLength(dataLength);
+						if (t140Data.length < t140Length) {
+							t140Data = new byte[t140Length * 2];
+						}
+						t140Length = redFilter.addRedundancy(data, 0,
+								dataLength, t140Data, 0);
+
+						inBuffer.setData(t140Data);
+						inBuffer.setLength(t140Length);
 					}
-
-					inBuffer = new RtpTextBuffer();
-					inBuffer.setData(data);
-					if (data == null) {
-						inBuffer.setLength(0);
-					} else {
-						inBuffer.setLength(data.length);
+					else {
+						inBuffer.setData(data);
+						inBuffer.setLength(dataLength);
 					}
 
-					outBuffer = new RtpTextBuffer();
+					// One extra byte for the eConf zero
+					payloadSize = textPacketizer.getEncodedLength(
+							inBuffer.getLength()) + 1;
+					if (payload.capacity() < payloadSize) {
+						payload = ByteBuffer.allocate(payloadSize * 2);
+					}
+					payload.clear();
 
-					textPacketizer.encode(inBuffer, outBuffer);
+					textPacketizer.encode(inBuffer, outBuffer, payload);
 					timeNow = outBuffer.getTimeStamp();
 
 					//EZ: Mark packets after idle period of bufferTime.
@@ -310,14 +371,12 @@ public class RtpTextTransmitter implements Runnable {
 
 					// Temp: adding zero at end. This will be removed.
 					if (isEconf351Client) {
-						byte[] dataToSend = outBuffer.getData();
-						byte[] newData = new byte[dataToSend.length + 1];
-						System.arraycopy(dataToSend, 0, newData, 0,
-								dataToSend.length);
-						newData[dataToSend.length] = 0;
-						outBuffer.setData(newData);
+						payload.put((byte)0);
+						outBuffer.setLength(outBuffer.getLength() + 1);
 					}
-					outputPacket.setPayloadData(outBuffer.getData());
+					outputPacket.setPayloadData(outBuffer.getData(),
+							outBuffer.getOffset(),
+							outBuffer.getLength());
 					outputPacket.setTimeStamp(outBuffer.getTimeStamp());
 					outputPacket.setSequenceNumber(outBuffer.
 							getSequenceNumber());
@@ -345,6 +404,150 @@ public class RtpTextTransmitter implements Runnable {
 		logger.exiting(CLASS_NAME, METHOD);
 	}
 
+	/**
+	 * Calculates how much T.140 data fits in one packet. The limits are
+	 * the MTU, the RFC 2198 block length, which has to hold the data
+	 * including T.140 redundancy, and the two digit length fields of T.140
+	 * redundancy. Every generation can be as long as the primary data.
+	 * The redundancy level is only changed by the transmit thread, so it
+	 * is the same when the packet is encoded.
+	 *
+	 * @return The largest number of data bytes in one packet
+	 */
+	private int getMaxChunkSize() {
+		int redGen = textPacketizer.getRedundantGenerations();
+		int maxPayload = Math.min(mtu - IP_UDP_HEADER_SIZE,
+				MAX_DATAGRAM_SIZE) - RTP_HEADER_SIZE;
+		int maxBlock;
+
+		if (isEconf351Client) {
+			maxPayload--;
+		}
+
+		if (redGen > 0) {
+			maxBlock = (maxPayload -
+					redGen * TextConstants.REDUNDANT_HEADER_SIZE -
+					TextConstants.PRIMARY_HEADER_SIZE) / (redGen + 1);
+			maxBlock = Math.min(maxBlock, TextConstants.MAX_BLOCK_LENGTH);
+		}
+		else {
+			maxBlock = maxPayload;
+		}
+
+		if (redundantT140Generations > 0) {
+			return Math.min(redFilter.getMaxInputLength(),
+					(maxBlock - redFilter.getOverhead()) /
+					(redFilter.getRedundancyLevels() + 1));
+		}
+		return maxBlock;
+	}
+
+	/**
+	 * Sets the path MTU. Text that does not fit in one packet is split.
+	 *
+	 * @param mtu The MTU in bytes, including IP and UDP headers
+	 */
+	public void setMtu(int mtu) {
+		this.mtu = mtu;
+	}
+
+	/**
+	 * Gets the path MTU.
+	 *
+	 * @return The MTU in bytes
+	 */
+	public int getMtu() {
+		return mtu;
+	}
+
+	/**
+	 * Sets the number of characters per second the receiver accepts, as
+	 * negotiated with the CPS parameter of RFC 4103. A burst of one
+	 * second worth of characters is allowed after idle periods.
+	 *
+	 * @param cps The limit, zero or less for no limit
+	 */
+	public void setCps(int cps) {
+		setCps(cps, cps);
+	}
+
+	/**
+	 * Sets the number of characters per second the receiver accepts, as
+	 * negotiated with the CPS parameter of RFC 4103. Up to burst
+	 * characters are sent at once after an idle period, text beyond the
+	 * limit is held back and sent at the buffer time cadence as the limit
+	 * allows.
+	 *
+	 * @param cps The limit, zero or less for no limit
+	 * @param burst The largest number of characters sent at once
+	 */
+	public synchronized void setCps(int cps, int burst) {
+		this.cps = cps;
+		if (cps > 0) {
+			cpsLimiter = new TokenBucket(cps, burst);
+		}
+		else {
+			cpsLimiter = null;
+		}
+	}
+
+	/**
+	 * Gets the number of characters per second the receiver accepts.
+	 *
+	 * @return The limit, zero for no limit
+	 */
+	public int getCps() {
+		return cps;
+	}
+
+	private synchronized void updateHoldBack(long time) {
+		lastHoldBack = time;
+		totalHoldBack += time;
+		if (time > maxHoldBack) {
+			maxHoldBack = time;
+		}
+		logger.logp(Level.FINE, CLASS_NAME, "updateHoldBack(long)",
+				"text held back by CPS limit for " + time + " ms");
+	}
+
+	/**
+	 * Gets how long the text of the latest burst that exceeded the CPS
+	 * limit was held back, from the first piece that was held back until
+	 * the last piece was sent.
+	 *
+	 * @return The time in milliseconds, 0 if no text has been held back
+	 */
+	public synchronized long getLastHoldBack() {
+		return lastHoldBack;
+	}
+
+	/**
+	 * Gets the longest time text has been held back by the CPS limit.
+	 *
+	 * @return The time in milliseconds
+	 */
+	public synchronized long getMaxHoldBack() {
+		return maxHoldBack;
+	}
+
+	/**
+	 * Gets the total time text has been held back by the CPS limit.
+	 *
+	 * @return The time in milliseconds
+	 */
+	public synchronized long getTotalHoldBack() {
+		return totalHoldBack;
+	}
+
+	/**
+	 * Indicates whether text is currently held back by the CPS limit.
+	 *
+	 * @return true if text is waiting for the limit
+	 */
+	public boolean isHoldingBack() {
+		return holdBackStart != 0;
+	}
+
 	/**
 	 * Gets the remote host's RTP port.
 	 *
@@ -383,6 +586,9 @@ public class RtpTextTransmitter implements Runnable {
 			thisThread.interrupt();
 		}
 		if (rtpSession != null) {
+			if (redundancyController != null) {
+				rtpSession.removeRTCP_actionListener(redundancyController);
+			}
 			// logger.finest("Stopping RTP and RTCP sessions.");
 			rtpSession.stopRTCPSenderThread();
 			rtpSession.stopRTPThread();
@@ -391,6 +597,60 @@ public class RtpTextTransmitter implements Runnable {
 		}
 	}
 
+	/**
+	 * Lets the number of redundant generations follow the packet loss
+	 * reported by the receiver, within the given bounds. Redundancy must
+	 * be in use, since the payload type cannot change during the call, so
+	 * at least one generation is always sent. Calling this again replaces
+	 * the bounds.
+	 *
+	 * @param minGenerations The lowest number of redundant generations
+	 * @param maxGenerations The highest number of redundant generations
+	 *
+	 * @return The controller, which gives the current level and loss, or
+	 * null if redundancy is not used
+	 */
+	public synchronized AdaptiveRedundancyController setAdaptiveRedundancy(
+			int minGenerations, int maxGenerations) {
+
+		if (!redFlagOutgoing || rtpSession == null) {
+			logger.warning("Adaptive redundancy needs RFC 2198 redundancy");
+			return null;
+		}
+
+		if (redundancyController != null) {
+			rtpSession.removeRTCP_actionListener(redundancyController);
+		}
+
+		redundancyController =
+			new AdaptiveRedundancyController(textPacketizer, dataBuffer,
+					Math.max(1, minGenerations),
+					maxGenerations);
+		rtpSession.addRTCP_actionListener(redundancyController);
+
+		return redundancyController;
+	}
+
+	/**
+	 * Gets the adaptive redundancy controller.
+	 *
+	 * @return The controller, or null if adaptive redundancy is not used
+	 */
+	public synchronized AdaptiveRedundancyController
+		getAdaptiveRedundancy() {
+
+		return redundancyController;
+	}
+
+	/**
+	 * Gets the number of redundant generations currently sent.
+	 *
+	 * @return The number of redundant generations
+	 */
+	public int getRedundantGenerations() {
+		return textPacketizer.getRedundantGenerations();
+	}
+
 	/**
 	 * Sets the CName, which will be used in the RTP session
 	 *
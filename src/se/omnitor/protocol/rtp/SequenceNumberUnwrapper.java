@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2004-2008  University of Wisconsin-Madison and Omnitor AB
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ */
+package se.omnitor.protocol.rtp;
+
+/**
+ * Extends 16 bit RTP sequence numbers to 64 bits, as described in
+ * RFC 3550 appendix A.1. The extended numbers keep increasing when the
+ * sequence number wraps around, so they can be compared and subtracted
+ * directly. <br>
+ * <br>
+ * Each sequence number is placed as close as possible to the highest one
+ * seen so far, by taking the difference between them as a signed 16 bit
+ * value. A packet up to 32767 numbers ahead is a new packet, one up to
+ * 32768 numbers behind is a late packet. Late packets never move the
+ * highest number back. Packets older than the first one received get
+ * numbers below the first, which may be negative. <br>
+ * <br>
+ * The unwrapper is not synchronized.
+ *
+ * @author Unknown
+ */
+public class SequenceNumberUnwrapper
+{
+    private long highest;
+    private boolean started;
+
+    /**
+     * Initializes an unwrapper that has not seen any sequence number.
+     *
+     */
+    public SequenceNumberUnwrapper()
+    {
+	reset();
+    }
+
+    /**
+     * Forgets all sequence numbers seen so far. The next sequence number is
+     * used as is.
+     *
+     */
+    public void reset()
+    {
+	highest = 0;
+	started = false;
+    }
+
+    /**
+     * Extends a sequence number.
+     *
+     * @param seq The sequence number from the RTP header, only the 16 least
+     * significant bits are used
+     *
+     * @return The extended sequence number
+     */
+    public long unwrap(long seq)
+    {
+	int seq16 = (int)(seq & 0xFFFF);
+
+	if (!started) {
+	    started = true;
+	    highest = seq16;
+	    return highest;
+	}
+
+	int delta = (short)(seq16 - (int)(highest & 0xFFFF));
+	long extended = highest + delta;
+
+	if (extended > highest) {
+	    highest = extended;
+	}
+	return extended;
+    }
+
+    /**
+     * Gets the highest extended sequence number seen so far.
+     *
+     * @return The highest extended sequence number, 0 if none has been seen
+     */
+    public long getHighest()
+    {
+	return highest;
+    }
+}
@@ -25,13 +25,13 @@ import se.omnitor.protocol.rtp.packets.RTCPSDESPacket;
 import se.omnitor.protocol.rtp.packets.RTCPSenderReportPacket;
 import se.omnitor.protocol.rtp.packets.RTP_actionListener;
 import se.omnitor.protocol.rtp.packets.RTPPacket;
+import se.omnitor.util.ConcurrentLongMap;
 
 import java.net.InetAddress;
 import java.net.MulticastSocket;
 import java.net.UnknownHostException;
-import java.util.Date;
 import java.util.Enumeration;
-import java.util.Hashtable;
+import java.util.NoSuchElementException;
 import java.util.Random;
 import java.util.Vector;
 
@@ -123,6 +123,26 @@ public class Session extends java.lang.Object
      */
     protected RTCPThreadHandler m_RTCPHandler = null;
 
+    /**
+     *   Engine receiving RTP and RTCP for this session, null if the session
+     *   runs its own receive threads.
+     *
+     */
+    private RTPSelectorEngine selectorEngine = null;
+
+    /**
+     *   Scheduler running the RTCP sender of this session, null if the
+     *   sender runs in its own thread.
+     *
+     */
+    private RTCPScheduler rtcpScheduler = null;
+
+    /**
+     *   True if RTCP is multiplexed with RTP on the RTP port.
+     *
+     */
+    private boolean rtcpMux = false;
+
     /**
      *   The startup time for the application.
      *
@@ -143,6 +163,19 @@ public class Session extends java.lang.Object
      */
     protected boolean enableLoopBack = true;
 
+    /**
+     *   This variable determines whether received RTP packets are posted as
+     *   one reused packet object that refers into the receive buffer,
+     *   instead of a new packet with a copied payload. Default is false.
+     */
+    protected boolean reuseReceivedPackets = false;
+
+    /**
+     *   The RTP clock rate of the received payload in Hz, used for the
+     *   interarrival jitter. Default is 1000, the rate of text.
+     */
+    protected int clockRate = 1000;
+
     /**
      * This variable determines whether Debug information will be printed
      *  or not. Default is false.
@@ -163,10 +196,12 @@ public class Session extends java.lang.Object
     private RTP_actionListener m_RTP_actionListener = null;
 
     /**
-     *   Reference to the RTCP event action listener.
+     *   The registered RTCP event action listeners. The array is replaced,
+     *   never changed, when a listener is added or removed.
      *
      */
-    private RTCP_actionListener m_RTCP_actionListener = null;
+    private volatile RTCP_actionListener[] m_RTCP_actionListeners =
+	new RTCP_actionListener[0];
 
 
     /**
@@ -240,10 +275,11 @@ public class Session extends java.lang.Object
     protected double timeOfLastRTPSent = 0;
 
     /**
-     * A hastable that stores all the sources subscribed to this multicast
-     * group
+     * A table that stores all the sources subscribed to this multicast
+     * group. Lookups do not lock, so the RTP receiver never waits for RTCP
+     * processing.
      */
-    protected Hashtable<Long, Source> sourceMap;
+    protected ConcurrentLongMap<Source> sourceMap;
 
     // IP: Moved these two methods from RTPThreadHandler since it is also used
     //     by RTCPSenderThread
@@ -331,31 +367,64 @@ public class Session extends java.lang.Object
 
 
     /**
-     * The only constructor. Requires CNAME and session bandwidth.
-     * Initializes the SSRC to a randomly generated number.
+     * Creates a session with its own receive threads. Requires CNAME and
+     * session bandwidth. Initializes the SSRC to a randomly generated number.
      *
      * @param  multicastGroupIPAddress Dotted decimal representation of the
      * Multicast group IP address.
      * @param  bandwidth           Bandwidth available to the session.
+     * @param  localPort           The local RTP port, RTCP uses the next one.
      */
     public Session (String multicastGroupIPAddress, double bandwidth, int localPort)
 
+    {
+	this(multicastGroupIPAddress, bandwidth, localPort, null);
+    }
+
+    /**
+     * Creates a session whose RTP and RTCP sockets are read by a shared
+     * RTPSelectorEngine instead of dedicated receive threads. The sockets
+     * are opened as DatagramChannels, the rest of the session works as with
+     * the other constructor. The engine must be started before the session
+     * is started.
+     *
+     * @param  multicastGroupIPAddress Dotted decimal representation of the
+     * Multicast group IP address.
+     * @param  bandwidth           Bandwidth available to the session.
+     * @param  localPort           The local RTP port, RTCP uses the next one.
+     * @param  selectorEngine      The engine to receive with, or null to
+     * use receive threads.
+     */
+    public Session (String multicastGroupIPAddress, double bandwidth,
+		    int localPort, RTPSelectorEngine selectorEngine)
     {
 	this.bandwidth = bandwidth;
+	this.selectorEngine = selectorEngine;
 
 	cname = "";
 	email = "";
 
-	sourceMap = new Hashtable<Long, Source>();
+	sourceMap = new ConcurrentLongMap<Source>();
 
 	m_InetAddress = getInetAddress ( multicastGroupIPAddress );
 
-	// Create a new RTP Handler thread (but do not start it yet)
-	m_RTPHandler = new RTPThreadHandler ( m_InetAddress, localPort, this, true);
+	if (selectorEngine != null)
+	    {
+		// Create the handlers on channels read by the engine
+		m_RTPHandler = new RTPThreadHandler ( m_InetAddress, localPort, this,
+						      selectorEngine );
+		m_RTCPHandler = new RTCPThreadHandler ( m_InetAddress, localPort+1,
+							this, selectorEngine );
+	    }
+	else
+	    {
+		// Create a new RTP Handler thread (but do not start it yet)
+		m_RTPHandler = new RTPThreadHandler ( m_InetAddress, localPort, this, true);
 
-	// Create a new RTCP Handler thread (but do not start it yet)
-	//  Set the sendto and recvfrom ports
-	m_RTCPHandler = new RTCPThreadHandler ( m_InetAddress, localPort+1, this, true);
+		// Create a new RTCP Handler thread (but do not start it yet)
+		//  Set the sendto and recvfrom ports
+		m_RTCPHandler = new RTCPThreadHandler ( m_InetAddress, localPort+1, this, true);
+	    }
 
 	// Initilize session level variables
 	initialize();
@@ -480,6 +549,123 @@ public class Session extends java.lang.Object
 	return email;
     }
 
+    /**
+     * Makes the session post received RTP packets without allocating. The
+     * RTPPacket handed to the RTP_actionListener is then the same object
+     * for every packet, and its payload is a view into the receive buffer
+     * given by getPayloadOffset() and getPayloadLength(). The packet and the
+     * payload are only valid until handleRTPEvent returns. A listener that
+     * wants to keep them must use RTPPacket.copy().
+     *
+     * @param reuse true to reuse the received packets
+     */
+    public void setReuseReceivedPackets(boolean reuse)
+    {
+	reuseReceivedPackets = reuse;
+    }
+
+    /**
+     * Indicates whether received RTP packets are reused.
+     *
+     * @return true if received packets are reused
+     */
+    public boolean isReuseReceivedPackets()
+    {
+	return reuseReceivedPackets;
+    }
+
+    /**
+     * Sets the RTP clock rate of the received payload, 1000 Hz for text
+     * and 8000 Hz for G.711. The interarrival jitter is calculated in
+     * units of this clock.
+     *
+     * @param clockRate The clock rate in Hz
+     */
+    public void setClockRate(int clockRate)
+    {
+	this.clockRate = clockRate;
+    }
+
+    /**
+     * Gets the RTP clock rate of the received payload.
+     *
+     * @return The clock rate in Hz
+     */
+    public int getClockRate()
+    {
+	return clockRate;
+    }
+
+    /**
+     * Gets the engine that receives for this session.
+     *
+     * @return The engine, or null if the session uses receive threads
+     */
+    public RTPSelectorEngine getSelectorEngine()
+    {
+	return selectorEngine;
+    }
+
+    /**
+     * Lets a shared scheduler run the RTCP transmissions of this session
+     * instead of a dedicated RTCPSenderThread. This must be called before
+     * the RTCP sender is started.
+     *
+     * @param rtcpScheduler The scheduler, or null to use a sender thread
+     *
+     * @see RTCPScheduler#getShared()
+     */
+    public synchronized void setRTCPScheduler(RTCPScheduler rtcpScheduler)
+    {
+	this.rtcpScheduler = rtcpScheduler;
+    }
+
+    /**
+     * Turns RTP and RTCP multiplexing on one port (rtcp-mux, RFC 5761) on
+     * or off. With rtcp-mux no RTCP socket or receive thread is created,
+     * RTCP is sent and received on the RTP socket. The RTCP ports given to
+     * start() are then ignored, the RTP ports are used instead. This must
+     * be called before the RTCP threads are started. <br>
+     * <br>
+     * rtcp-mux needs a symmetric session, since RTCP is sent from the one
+     * socket that RTP is sent and received on.
+     *
+     * @param rtcpMux true to multiplex RTCP on the RTP port
+     *
+     * @throws IllegalStateException If rtcp-mux is turned on for a session
+     * that is not symmetric
+     */
+    public synchronized void setRtcpMux(boolean rtcpMux)
+    {
+	if (rtcpMux && (m_RTPHandler == null ||
+			!m_RTPHandler.isSymmetric())) {
+	    throw new IllegalStateException("rtcp-mux needs a symmetric " +
+					    "session");
+	}
+
+	this.rtcpMux = rtcpMux;
+    }
+
+    /**
+     * Indicates whether RTCP is multiplexed on the RTP port.
+     *
+     * @return true if rtcp-mux is used
+     */
+    public synchronized boolean isRtcpMux()
+    {
+	return rtcpMux;
+    }
+
+    /**
+     * Gets the scheduler that runs the RTCP sender of this session.
+     *
+     * @return The scheduler, or null if the sender runs in its own thread
+     */
+    public synchronized RTCPScheduler getRTCPScheduler()
+    {
+	return rtcpScheduler;
+    }
+
     /**
      * Starts the RTP thread.
      *
@@ -550,17 +736,17 @@ public class Session extends java.lang.Object
      *   @return    The source corresponding the given SSRC, this source may be
      *               extracted from the map or newly created.
      */
-    public synchronized Source getSource ( long keySSRC )
+    public Source getSource ( long keySSRC )
     {
-	Source s;
+	Source s = sourceMap.get ( keySSRC );
 
-	if ( sourceMap.containsKey ( Long.valueOf( keySSRC) ) )
-	    s = (Source) sourceMap.get ( Long.valueOf( keySSRC) );
-	else    // source doesn't exist in the map, add it
+	while ( s == null )    // source doesn't exist in the map, add it
 	    {
 		s = new Source ( keySSRC );
-		addSource ( keySSRC, s);
 
+		// Another thread may have added the source meanwhile
+		if ( addSource ( keySSRC, s) < 0 )
+		    s = sourceMap.get ( keySSRC );
 	    }
 
 	return s;
@@ -573,15 +759,17 @@ public class Session extends java.lang.Object
      *
      * @return Always returns zero.
      */
-    public synchronized int removeSource ( long sourceSSRC )
+    public int removeSource ( long sourceSSRC )
     {
-	if (sourceMap.get ( Long.valueOf(sourceSSRC)) != null )
+	if ( sourceMap.remove ( sourceSSRC ) != null )
 	    {
-		sourceMap.remove ( Long.valueOf(sourceSSRC) );
-		this.outprintln("Removing Source : " + "SSRC = 0x" +
-				Integer.toHexString((int)sourceSSRC));
-		this.outprintln("No. of members" + getNumberOfMembers ());
-		this.outprintln("No. of senders" + getNumberOfActiveSenders());
+		if ( debugOutput )
+		    {
+			this.outprintln("Removing Source : " + "SSRC = 0x" +
+					Integer.toHexString((int)sourceSSRC));
+			this.outprintln("No. of members" + getNumberOfMembers ());
+			this.outprintln("No. of senders" + getNumberOfActiveSenders());
+		    }
 	    }
 	else
 	    {
@@ -794,9 +982,9 @@ public class Session extends java.lang.Object
      *
      *   @return My source object.
      */
-    public synchronized Source getMySource()
+    public Source getMySource()
     {
-	Source s = (Source) sourceMap.get ( Long.valueOf( ssrc ) );
+	Source s = sourceMap.get ( ssrc );
 	return s;
 
     }
@@ -813,13 +1001,12 @@ public class Session extends java.lang.Object
     public int addSource ( long newSSRC , Source src)
     {
 
-	if ( sourceMap.containsKey ( new Long ( newSSRC) ) )
+	if ( sourceMap.putIfAbsent ( newSSRC, src ) != null )
 	    {
 		return -1;
 	    }
-	else
+	else if ( debugOutput )
 	    {
-		sourceMap.put ( Long.valueOf ( newSSRC), src );
 		this.outprintln("Adding Source : " + "SSRC = 0x" +
 				Integer.toHexString((int)newSSRC));
 		this.outprintln("No. of members" + getNumberOfMembers ());
@@ -830,50 +1017,70 @@ public class Session extends java.lang.Object
     }
 
     /**
-     *   Returns all active senders as an iterable enumeration.
+     *   Returns all active senders as an iterable enumeration. The sources
+     *   are filtered while enumerating a snapshot of the map, nothing is
+     *   copied.
      *
      *   @return Enumeration of all active senders.
      */
-    public synchronized Enumeration getActiveSenders ()
+    public Enumeration getActiveSenders ()
     {
-	Enumeration enumAllMembers = sourceMap.elements();
-
-	Vector<Source> vectActiveSenders = new Vector<Source>();
+	final Enumeration<Source> enumAllMembers = sourceMap.elements();
 
-	Source s;
-
-	// Go through this enumeration and for each source
-	// if it is and active sender, add into a temp vector
-	while ( enumAllMembers.hasMoreElements() )
+	return new Enumeration<Source>()
 	    {
-		s = (Source) enumAllMembers.nextElement();
-		if ( s.activeSender )
-		    vectActiveSenders.addElement ( s );
-	    }
-
-	// Return the enumeration of the temp vector.
-	return ( vectActiveSenders.elements() );
+		private Source next = findNext();
+
+		private Source findNext()
+		{
+		    // Go through the snapshot and stop at the next
+		    // source that is an active sender
+		    while ( enumAllMembers.hasMoreElements() )
+			{
+			    Source s = enumAllMembers.nextElement();
+			    if ( s.activeSender )
+				return s;
+			}
+		    return null;
+		}
+
+		public boolean hasMoreElements()
+		{
+		    return next != null;
+		}
+
+		public Source nextElement()
+		{
+		    if ( next == null )
+			throw new NoSuchElementException();
+
+		    Source s = next;
+		    next = findNext();
+		    return s;
+		}
+	    };
     }
 
     /**
      *   Return an iterable enumeration of all sources
-     *   contained in the Map.
+     *   contained in the Map. The enumeration is a snapshot, sources added
+     *   or removed while enumerating do not affect it.
      *
      *   @return Enumeration of all the sources (members).
      */
-    public synchronized Enumeration getSources ()
+    public Enumeration getSources ()
     {
 	return sourceMap.elements();
     }
 
     /**
-     *   Returns current time from the Date().getTime() function.
+     *   Returns current time from the System.currentTimeMillis() function.
      *
      *   @return The current time.
      */
     public long currentTime()
     {
-	tc = (new Date()).getTime();
+	tc = System.currentTimeMillis();
 	return (long)tc;
     }
 
@@ -913,14 +1120,63 @@ public class Session extends java.lang.Object
      *   the RTCP_actionListener interface and then call
      *   this function to register themselves so that the
      *   incoming RTCP information can be handed over to them.
+     *   Several listeners may be registered, each RTCP packet is posted to
+     *   all of them in the order they were added. Adding a listener that
+     *   is already registered does nothing.
      *
      *   @param listener who implements the RTCP_actionListener interface and
-     *           will be the one to which all RTCP actions will be posted.
+     *           will be one of the listeners to which all RTCP actions will
+     *           be posted.
      */
     public synchronized void addRTCP_actionListener
 	(RTCP_actionListener listener)
     {
-	m_RTCP_actionListener = listener;
+	for (int cnt=0; cnt<m_RTCP_actionListeners.length; cnt++) {
+	    if (m_RTCP_actionListeners[cnt] == listener) {
+		return;
+	    }
+	}
+
+	RTCP_actionListener[] listeners =
+	    new RTCP_actionListener[m_RTCP_actionListeners.length + 1];
+	System.arraycopy(m_RTCP_actionListeners, 0, listeners, 0,
+			 m_RTCP_actionListeners.length);
+	listeners[m_RTCP_actionListeners.length] = listener;
+	m_RTCP_actionListeners = listeners;
+    }
+
+    /**
+     *   Unregister an RTCP action listener. Nothing happens if the listener
+     *   is not registered.
+     *
+     *   @param listener The listener to remove.
+     */
+    public synchronized void removeRTCP_actionListener
+	(RTCP_actionListener listener)
+    {
+	for (int cnt=0; cnt<m_RTCP_actionListeners.length; cnt++) {
+	    if (m_RTCP_actionListeners[cnt] == listener) {
+		RTCP_actionListener[] listeners =
+		    new RTCP_actionListener[m_RTCP_actionListeners.length - 1];
+		System.arraycopy(m_RTCP_actionListeners, 0, listeners, 0, cnt);
+		System.arraycopy(m_RTCP_actionListeners, cnt + 1, listeners,
+				 cnt, listeners.length - cnt);
+		m_RTCP_actionListeners = listeners;
+		return;
+	    }
+	}
+    }
+
+    /**
+     *   Indicates whether any RTCP action listener is registered. The
+     *   receiver only creates packet objects when there is someone to
+     *   post them to.
+     *
+     *   @return true if at least one listener is registered
+     */
+    public boolean hasRTCP_actionListeners()
+    {
+	return m_RTCP_actionListeners.length > 0;
     }
 
     /**
@@ -946,8 +1202,8 @@ public class Session extends java.lang.Object
      */
     public synchronized void postAction ( RTCPReceiverReportPacket rrpkt )
     {
-	if ( m_RTCP_actionListener != null )
-	    m_RTCP_actionListener.handleRTCPEvent ( rrpkt );
+	for (int cnt=0; cnt<m_RTCP_actionListeners.length; cnt++)
+	    m_RTCP_actionListeners[cnt].handleRTCPEvent ( rrpkt );
     }
 
     /**
@@ -958,8 +1214,8 @@ public class Session extends java.lang.Object
      */
     public synchronized void postAction ( RTCPSenderReportPacket srpkt )
     {
-	if ( m_RTCP_actionListener != null )
-	    m_RTCP_actionListener.handleRTCPEvent ( srpkt );
+	for (int cnt=0; cnt<m_RTCP_actionListeners.length; cnt++)
+	    m_RTCP_actionListeners[cnt].handleRTCPEvent ( srpkt );
 
     }
 
@@ -971,8 +1227,8 @@ public class Session extends java.lang.Object
      */
     public synchronized void postAction ( RTCPSDESPacket sdespkt )
     {
-	if ( m_RTCP_actionListener != null )
-	    m_RTCP_actionListener.handleRTCPEvent ( sdespkt );
+	for (int cnt=0; cnt<m_RTCP_actionListeners.length; cnt++)
+	    m_RTCP_actionListeners[cnt].handleRTCPEvent ( sdespkt );
     }
 
     /**
@@ -983,8 +1239,8 @@ public class Session extends java.lang.Object
      */
     public synchronized void postAction ( RTCPBYEPacket byepkt )
     {
-	if ( m_RTCP_actionListener != null )
-	    m_RTCP_actionListener.handleRTCPEvent ( byepkt );
+	for (int cnt=0; cnt<m_RTCP_actionListeners.length; cnt++)
+	    m_RTCP_actionListeners[cnt].handleRTCPEvent ( byepkt );
     }
 
     /**
@@ -1075,6 +1331,11 @@ public class Session extends java.lang.Object
     public void start (MulticastSocket socket,int rtpLocalPort, int rtcpLocalPort, int rtpRemotePort,
 		       int rtcpRemotePort)
     {
+	if (isRtcpMux()) {
+	    rtcpLocalPort = rtpLocalPort;
+	    rtcpRemotePort = rtpRemotePort;
+	}
+
 	createAndStartRTCPSenderThread(rtcpLocalPort, rtcpRemotePort);
 	createAndStartRTCPReceiverThread(rtcpLocalPort);
 	openRTPReceiveSocket(rtpLocalPort);
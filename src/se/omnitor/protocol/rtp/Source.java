@@ -31,12 +31,6 @@ import java.util.Date;
 */
 public class Source extends Object {
 
-    /**
-     * Since Packets lost is a 24 bit number, it should be clamped at
-     * WRAPMAX = 0xFFFFFFFF
-     */
-    protected static final long WRAPMAX = 0xFFFFFFFF;
-
     /**
      * source SSRC uint 32.
      */
@@ -61,9 +55,33 @@ public class Source extends Object {
     protected long last_seq; // unsigned 32 bits
     
     /**
-     * Interarrival jitter.
+     * Interarrival jitter, in RTP timestamp units.
      */
     protected long jitter; // unsigned 32 bits
+
+    /**
+     * Interarrival jitter times 16, the estimate kept between packets so
+     * that rounding does not add up (RFC 3550 A.8).
+     */
+    protected long jitterScaled;
+
+    /**
+     * Relative transit time of the previous RTP packet, in RTP timestamp
+     * units.
+     */
+    protected int transit;
+
+    /**
+     * True when transit holds the transit time of a packet.
+     */
+    protected boolean hasTransit;
+
+    /**
+     * Round-trip time between this source and us, in milliseconds, as
+     * calculated from the last report block the source sent about us. -1
+     * if not known.
+     */
+    protected long roundTripTime;
     
     /**
      * Last SR Packet from this source.
@@ -127,9 +145,14 @@ public class Source extends Object {
 	
     /**
      * Keep track of the wrapping around of RTP sequence numbers, since RTP 
-     * Seq No. are only 16 bits
+     * Seq No. are only 16 bits. This is the number of cycles times 65536.
      */
     protected long cycles;
+
+    /**
+     * Extends the RTP sequence numbers received from this source
+     */
+    protected SequenceNumberUnwrapper seqUnwrapper;
     
     /**
      * Constructor requires an SSRC for it to be a valid source. The
@@ -145,6 +168,9 @@ public class Source extends Object {
         lost =0;
         last_seq=0;
         jitter =0;
+        jitterScaled =0;
+        hasTransit =false;
+        roundTripTime =-1;
         lst =0;
         dlsr=0;
         activeSender =false;
@@ -153,6 +179,7 @@ public class Source extends Object {
         timeofLastSRRcvd=time;
         noOfRTPPacketsRcvd=0;
         base_seq=0;
+        seqUnwrapper = new SequenceNumberUnwrapper();
         expected_prior = 0;
         received_prior = 0;
     }
@@ -174,27 +201,105 @@ public class Source extends Object {
     * determine if seq has wrapped over resulting in a
     * new cycle.  It sets the cycle -- source level 
     * variable which keeps track of wraparounds.
+    * Late packets do not change the highest sequence number.
     *
     * @param seq  Sequence Number
+    *
+    * @return The extended sequence number of seq
     */
-    public void updateSeq( long seq )
+    public long updateSeq( long seq )
     {
-        // If the diferrence between max_seq and seq 
-        // is more than 1000, then we can assume that 
-        // cycle has wrapped around.
-        if ( max_seq == 0 )
-            max_seq = seq;
-        else
-        {
-            if ( max_seq - seq  > 0.5*WRAPMAX )
-                cycles += WRAPMAX;
+        long extended = seqUnwrapper.unwrap(seq);
+        long highest = seqUnwrapper.getHighest();
 
-        max_seq =  seq;
-        }
-        
+        max_seq = highest & 0xFFFF;
+        cycles = highest - max_seq;
+
+        return extended;
     }
  
     
+    /**
+     * Updates the interarrival jitter with an RTP packet from this source,
+     * as in RFC 3550 A.8. The jitter is the smoothed mean deviation of the
+     * difference in transit time between consecutive packets.
+     *
+     * @param rtpTimeStamp The RTP timestamp of the packet
+     * @param arrival The arrival time of the packet, in milliseconds
+     * @param clockRate The RTP clock rate of the payload, in Hz
+     */
+    public void updateJitter( int rtpTimeStamp, long arrival, int clockRate )
+    {
+        // The int arithmetic wraps the same way the timestamps do
+        int transitNow = (int) ( arrival * clockRate / 1000 ) - rtpTimeStamp;
+
+        if ( hasTransit ) {
+            int d = transitNow - transit;
+            if ( d < 0 )
+                d = -d;
+
+            jitterScaled += d - ( ( jitterScaled + 8 ) >> 4 );
+            jitter = jitterScaled >> 4;
+        }
+
+        transit = transitNow;
+        hasTransit = true;
+    }
+
+    /**
+     * Updates the round-trip time from a report block this source sent
+     * about us. The time is A - LSR - DLSR, where A is the arrival time of
+     * the report.
+     *
+     * @param arrival The arrival time of the report, in milliseconds
+     * @param lsr The LSR field of the report block
+     * @param dlsr The DLSR field of the report block
+     */
+    public void updateRoundTripTime( long arrival, long lsr, long dlsr )
+    {
+        // No SR from us had reached the source yet
+        if ( lsr == 0 )
+            return;
+
+        long rtt = ( PacketUtils.toCompactNtpTimeStamp( arrival ) - lsr -
+                     dlsr ) & 0xffffffffL;
+
+        // A negative time, from a bogus report, wraps to a huge one
+        if ( rtt < 0x80000000L )
+            roundTripTime = rtt * 1000 / 65536;
+    }
+
+    /**
+     * Gets the SSRC of this source.
+     *
+     * @return The SSRC
+     */
+    public long getSsrc()
+    {
+        return ssrc;
+    }
+
+    /**
+     * Gets the interarrival jitter of the RTP packets from this source.
+     *
+     * @return The jitter in RTP timestamp units
+     */
+    public long getJitter()
+    {
+        return jitter;
+    }
+
+    /**
+     * Gets the round-trip time between this source and us, calculated
+     * from the LSR and DLSR of the reports it sends.
+     *
+     * @return The round-trip time in milliseconds, or -1 if not known
+     */
+    public long getRoundTripTime()
+    {
+        return roundTripTime;
+    }
+
     /**
      * Updates the various statistics for this source , for example Packets 
      * Lost, Fraction lost, Delay since last SR etc, according to the data
@@ -235,8 +340,12 @@ public class Source extends Object {
         else
             fraction = (lost_interval << 8) / (double)expected_interval;
               
-        //dlsr - express it in units of 1/65336 seconds
-        dlsr = (timeofLastSRRcvd - currentTime())/ 65536;
+        //dlsr - express it in units of 1/65536 seconds, zero if no SR has
+        //been received
+        if (lst == 0)
+            dlsr = 0;
+        else
+            dlsr = (currentTime() - timeofLastSRRcvd) * 65536 / 1000;
               
         return 0;
     }
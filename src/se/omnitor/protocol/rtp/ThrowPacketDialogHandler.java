@@ -148,6 +148,12 @@ public class ThrowPacketDialogHandler {
 	}
 	
 	public void throwedPacket(RTPPacket packet) {
+		// Packets may be views into a larger buffer, keep a compact copy
+		if (packet.getPayloadOffset() != 0 ||
+		    packet.getPayloadLength() != packet.getPayloadData().length) {
+			packet = packet.copy();
+		}
+
 		byte[] payload = packet.getPayloadData();
 		byte[] newPayloadData = new byte[payload.length];
 		System.arraycopy(payload, 0, newPayloadData, 0, payload.length);
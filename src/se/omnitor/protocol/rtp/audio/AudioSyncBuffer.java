@@ -30,7 +30,9 @@
  */
 package se.omnitor.protocol.rtp.audio;
 
+import se.omnitor.util.BufferFlushListener;
 import se.omnitor.util.FifoBuffer;
+import se.omnitor.util.WheelTimer;
 
 //import LogClasses and Classes
 import java.util.logging.Level;
@@ -47,17 +49,26 @@ import java.util.logging.Logger;
  * the RTP sender. <br>
  * <br>
  * All data added to this class must be in T.140 format. <br>
+ * <br>
+ * The buffer times are kept by the shared WheelTimer, so a buffer has no
+ * thread of its own. The RTP sender either blocks in getData, or registers
+ * a BufferFlushListener which is called on every flush. With a buffer time
+ * of zero the timer is not used, data is flushed by the thread that adds
+ * it. <br>
  *
  * @author Andreas Piirimets, Omnitor AB
  */
-public class AudioSyncBuffer extends FifoBuffer implements Runnable {
+public class AudioSyncBuffer extends FifoBuffer {
 
 	private byte[] dataWaiting;
 	private byte[] dataToSend;
 	private int bufferTime;
 	private boolean running;
-	private Thread thread;
-	private Integer dataSetSemaphore;
+
+	private WheelTimer timer;
+	private FlushTimeout flushTimeout;
+	private boolean flushing;
+	private BufferFlushListener flushListener;
 
 	private boolean sendOnCR = false;
 
@@ -82,19 +93,24 @@ public class AudioSyncBuffer extends FifoBuffer implements Runnable {
 		// log when entering a method
 		logger.entering(CLASS_NAME, METHOD);
 
-		this.bufferTime = 0;
-
-		dataSetSemaphore = Integer.valueOf(0);
+		this.bufferTime = bufferTime;
 
 		dataWaiting = new byte[0];
 		dataToSend = new byte[0];
 
 		running = false;
-		thread = null;
+		timer = WheelTimer.getShared();
+		flushTimeout = new FlushTimeout();
+		flushing = false;
+		flushListener = null;
 
 		logger.exiting(CLASS_NAME, METHOD);
 	}
 
+	/**
+	 * Starts keeping the buffer times.
+	 *
+	 */
 	public void start() {
 
 		// write methodname
@@ -102,20 +118,43 @@ public class AudioSyncBuffer extends FifoBuffer implements Runnable {
 		// log when entering a method
 		logger.entering(CLASS_NAME, METHOD);
 
+		boolean flushNow = false;
 
-		if (!running) {
-			running = true;
+		synchronized (this) {
+			if (!running) {
+				running = true;
+
+				if (dataWaiting.length > 0) {
+					flushNow = scheduleFlush();
+				}
+			}
+		}
 
-			thread = new Thread(this, "SyncBuffer");
-			thread.start();
+		if (flushNow) {
+			flush();
 		}
 
 		logger.exiting(CLASS_NAME, METHOD);
 	}
 
-	public void stop() {
+	/**
+	 * Stops keeping the buffer times. Data already in the buffer is kept.
+	 *
+	 */
+	public synchronized void stop() {
 		running = false;
-		thread.interrupt();
+		flushing = false;
+		timer.cancel(flushTimeout);
+	}
+
+	/**
+	 * Registers a listener that is called on every flush, instead of waking
+	 * up a thread blocked in getData. Set to null to go back to getData.
+	 *
+	 * @param listener The listener
+	 */
+	public synchronized void setFlushListener(BufferFlushListener listener) {
+		flushListener = listener;
 	}
 
 	/**
@@ -127,22 +166,41 @@ public class AudioSyncBuffer extends FifoBuffer implements Runnable {
 	 * @todo Backspace handling - If a backspace is in the middle of the
 	 * buffer, remove characters from buffer instead of sending backspace.
 	 */
-	public synchronized void setData(byte[] newData) {
-		synchronized (dataSetSemaphore) {
-			byte[] temp = null;
+	public void setData(byte[] newData) {
+		boolean flushNow = false;
 
-			if (dataWaiting.length == 0) {
-				dataWaiting = newData;
-			}
-			else {
-				temp = dataWaiting;
-				dataWaiting = new byte[temp.length + newData.length];
-				System.arraycopy(temp, 0, dataWaiting, 0, temp.length);
-				System.arraycopy(newData, 0, dataWaiting, temp.length,
-						newData.length);
-			}
+		synchronized (this) {
+			flushNow = addData(newData);
+		}
+
+		// Outside the lock, the flush listener may take other locks
+		if (flushNow) {
+			flush();
+		}
+	}
+
+	/**
+	 * Appends data and starts the buffer time if the buffer was idle.
+	 *
+	 * @param newData The data to append
+	 *
+	 * @return true if the data should be flushed right away
+	 */
+	private boolean addData(byte[] newData) {
+		byte[] temp = null;
+
+		if (dataWaiting.length == 0) {
+			dataWaiting = newData;
+		}
+		else {
+			temp = dataWaiting;
+			dataWaiting = new byte[temp.length + newData.length];
+			System.arraycopy(temp, 0, dataWaiting, 0, temp.length);
+			System.arraycopy(newData, 0, dataWaiting, temp.length,
+					newData.length);
+		}
 
-			/*
+		/*
 	      int arrayCnt = temp.length;
 	      int cnt;
 	      for (cnt=0; cnt<data.length; cnt++) {
@@ -164,10 +222,31 @@ public class AudioSyncBuffer extends FifoBuffer implements Runnable {
 	      this.data = new byte[arrayCnt];
 	      System.arraycopy(temp, 0, this.data, 0, arrayCnt);
 	      }
-			 */
+		 */
 
-			dataSetSemaphore.notify();
+		// Idle, send the data one buffer time from now
+		if (running && !flushing) {
+			return scheduleFlush();
 		}
+		return false;
+	}
+
+	/**
+	 * Schedules a flush one buffer time from now. Must be called with the
+	 * lock held.
+	 *
+	 * @return true if the buffer time is zero and the caller should flush
+	 * right away, after releasing the lock
+	 */
+	private boolean scheduleFlush() {
+		flushing = true;
+
+		if (bufferTime <= 0) {
+			return true;
+		}
+
+		timer.schedule(flushTimeout, bufferTime);
+		return false;
 	}
 
 
@@ -186,11 +265,20 @@ public class AudioSyncBuffer extends FifoBuffer implements Runnable {
 		// log when entering a method
 		logger.entering(CLASS_NAME, METHOD);
 
-		byte[] temp = null;
-
 		wait();
 
-		temp = dataToSend;
+		return takeData();
+	}
+
+	/**
+	 * Gets the data that is due to be sent, without waiting. This is
+	 * what a BufferFlushListener calls when it is told about a flush.
+	 * Data is consumed when it is retrieved.
+	 *
+	 * @return The data
+	 */
+	public synchronized byte[] takeData() {
+		byte[] temp = dataToSend;
 		dataToSend = new byte[0];
 
 		return temp;
@@ -224,70 +312,53 @@ public class AudioSyncBuffer extends FifoBuffer implements Runnable {
 	}
 
 	/**
-	 * Handles buffer times.
+	 * Handles buffer times. Called by the timer when the buffer time has
+	 * passed.
 	 *
 	 * @todo CPS handling - According to RFC 4103, we must respect remote's
 	 * CPS demand.
 	 */
-	public void run() {
+	private void flush() {
 
 		// write methodname
-		final String METHOD = "run()";
-		// log when entering a method
-		logger.entering(CLASS_NAME, METHOD);
+		final String METHOD = "flush()";
 
+		BufferFlushListener listener;
 
-		while (running) {
+		synchronized (this) {
 
-			try {
-				synchronized (dataSetSemaphore) {
-
-					if (dataWaiting.length == 0) {
-						dataSetSemaphore.wait(55000);
-					}
-				}
-			}
-			catch (InterruptedException ie) {
-				logger.logp(Level.FINE, CLASS_NAME, METHOD,
-						"Thread was interrupted, possibly caused by hangup",
-						ie);
+			if (!running || dataWaiting.length == 0) {
+				flushing = false;
+				return;
 			}
 
 			logger.logp(Level.FINEST, CLASS_NAME, METHOD, "the buffertime is", Integer.valueOf(bufferTime));
-			while (dataWaiting.length > 0) {
-				try {
-					Thread.sleep(bufferTime);
-				}
-				catch (InterruptedException ie) {
-				}
 
-				synchronized (this) {
-
-					if (dataWaiting.length > 0) {
-
-						if (dataToSend.length > 0) {
-							byte[] temp = dataToSend;
-							dataToSend =
-								new byte[temp.length + dataWaiting.length];
-							System.arraycopy(temp, 0, dataToSend, 0,
-									temp.length);
-							System.arraycopy(dataWaiting, 0, dataToSend,
-									temp.length, dataWaiting.length);
-						}
-						else {
-							dataToSend = dataWaiting;
-						}
-
-						dataWaiting = new byte[0];
-						notify();
-					}
-					
-				}
+			if (dataToSend.length > 0) {
+				byte[] temp = dataToSend;
+				dataToSend =
+					new byte[temp.length + dataWaiting.length];
+				System.arraycopy(temp, 0, dataToSend, 0,
+						temp.length);
+				System.arraycopy(dataWaiting, 0, dataToSend,
+						temp.length, dataWaiting.length);
+			}
+			else {
+				dataToSend = dataWaiting;
 			}
 
+			dataWaiting = new byte[0];
+			flushing = false;
+
+			listener = flushListener;
+			if (listener == null) {
+				notify();
+			}
 		}
 
-		logger.exiting(CLASS_NAME, METHOD);
+		if (listener != null) {
+			listener.bufferFlushed(this);
+		}
 	}
 
 	/**
@@ -307,4 +378,19 @@ public class AudioSyncBuffer extends FifoBuffer implements Runnable {
 	public int getBufferTime() {
 		return bufferTime;
 	}
-}
\ No newline at end of file
+
+	/**
+	 * The flush timeout of this buffer, scheduled one buffer time ahead
+	 * when data arrives.
+	 */
+	private class FlushTimeout extends WheelTimer.Entry {
+
+		/**
+		 * Flushes the buffer.
+		 *
+		 */
+		public void expire() {
+			flush();
+		}
+	}
+}
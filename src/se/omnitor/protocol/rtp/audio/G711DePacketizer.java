@@ -31,10 +31,11 @@
 package se.omnitor.protocol.rtp.audio;
 
 import java.util.Hashtable;
-import java.util.Timer;
-import java.util.TimerTask;
 import java.util.logging.Logger;
 
+import se.omnitor.protocol.rtp.SequenceNumberUnwrapper;
+import se.omnitor.util.WheelTimer;
+
 /**
  * Extracts data from incoming RTP-Text packets. <br>
  * Also handles missing packets. <br>
@@ -62,12 +63,18 @@ public class G711DePacketizer {
      */
     public static final int SIGNED_MASK                    = 0x80;
 
+    //Extends the received sequence numbers, all sequence numbers below
+    //are extended.
+    private SequenceNumberUnwrapper unwrapper = null;
+
     //The sequence number of the last received packet.
     private long lastSequenceNumber    = 0;
 
     //The sequence number of the last output packet
     private long lastOutput            = 0;
 
+    //Sequence numbers of missing packets, mapped to the time when they
+    //are given up
     private Hashtable<Long, Long> missingPackets  = null;
     private Hashtable<Long, byte[]> receivedPackets = null;
 
@@ -77,7 +84,8 @@ public class G711DePacketizer {
     private int t140PayloadType;
     private byte signedT140PayloadType;
 
-    private Timer timer = null;
+    private WheelTimer lossTimer = null;
+    private LossTimeout lossTimeout = null;
 
     private boolean firstPacket = true;
 
@@ -101,7 +109,9 @@ public class G711DePacketizer {
        // this.redFlagIncoming = redFlagIncoming;
        this.redFlagIncoming = false;
 
-        timer = new Timer();
+        unwrapper = new SequenceNumberUnwrapper();
+        lossTimer = WheelTimer.getShared();
+        lossTimeout = new LossTimeout();
 
         signedT140PayloadType = (byte)((byte)t140PayloadType | (byte)0x80);
 
@@ -110,15 +120,6 @@ public class G711DePacketizer {
 
     }
 
-    /**
-     * Destructor. Preforms cleanup.
-     *
-     */
-    protected void finalize() {
-        timer.cancel();
-    }
-
-
     /**
      * Removes excess zeros that are received in the input buffer.
      *
@@ -192,8 +193,6 @@ public class G711DePacketizer {
     public synchronized int decode(RtpAudioBuffer inputBuffer,
 				   RtpAudioBuffer outputBuffer) {
 
-        long currentSequenceNumber = inputBuffer.getSequenceNumber();
-        long currentTimeStamp      = inputBuffer.getTimeStamp();
 
         byte[] outData    = new byte[0];
         byte[] newData    = null;
@@ -226,6 +225,17 @@ public class G711DePacketizer {
 	}*/
 
 
+	// If wrong SSRC, ignore
+	if (!firstPacket && inputBuffer.getSsrc() != ssrc) {
+	    outputBuffer.setData(new byte[0]);
+	    return 1;
+	}
+
+	//Extend the sequence number, so that it keeps increasing when the
+	//16 bit sequence number wraps around.
+        long currentSequenceNumber =
+	    unwrapper.unwrap(inputBuffer.getSequenceNumber());
+
         //First packet received
         if (firstPacket) {
             firstPacket = false;
@@ -234,32 +244,6 @@ public class G711DePacketizer {
 	    ssrc = inputBuffer.getSsrc();
         }
 
-        //Check for sequencenumber wraparound
-        else if (lastSequenceNumber >
-                 AudioConstants.MAX_SEQUENCE_NUMBER-
-                 AudioConstants.WRAP_AROUND_MARGIN &&
-                 currentSequenceNumber <
-                 AudioConstants.WRAP_AROUND_MARGIN) {
-
-            //No packets lost
-            if (lastSequenceNumber == AudioConstants.MAX_SEQUENCE_NUMBER &&
-                currentSequenceNumber==0) {
-                lastSequenceNumber=currentSequenceNumber-1;
-            }
-
-            //Lost packets
-            else {
-                lastSequenceNumber=lastSequenceNumber-
-                    AudioConstants.MAX_SEQUENCE_NUMBER;
-            }
-        }
-
-	// If wrong SSRC, ignore
-	if (inputBuffer.getSsrc() != ssrc) {
-	    outputBuffer.setData(new byte[0]);
-	    return 1;
-	}
-
         //Packet received in order.
         if (currentSequenceNumber == (lastSequenceNumber+1)) {
 
@@ -274,25 +258,30 @@ public class G711DePacketizer {
         else if ((currentSequenceNumber-lastSequenceNumber)>0) {
             receivedPackets.put(Long.valueOf(currentSequenceNumber),
                                 getData(0,data));
+
+	    long wait = AudioConstants.WAIT_FOR_MISSING_PACKET;
+	    if (redFlagIncoming) {
+		wait = AudioConstants.WAIT_FOR_MISSING_PACKET_RED;
+	    }
+	    Long deadline = Long.valueOf(System.currentTimeMillis() + wait);
+
             for (int i=(int)(currentSequenceNumber - lastSequenceNumber)-1;
                  i>0;
                  i--) {
                 if (!(missingPackets.containsKey(
                       Long.valueOf(currentSequenceNumber-i)))) {
 
-                    LossTimerTask ltt =
-			new LossTimerTask(currentSequenceNumber-i, this);
-                    if (redFlagIncoming) {
-                        timer.schedule((TimerTask)ltt,
-                              AudioConstants.WAIT_FOR_MISSING_PACKET_RED);
-                    } else {
-                        timer.schedule((TimerTask)ltt,
-                                       AudioConstants.WAIT_FOR_MISSING_PACKET);
-                    }
                     missingPackets.put(Long.valueOf(currentSequenceNumber-i),
-                                       Long.valueOf(currentTimeStamp));
+                                       deadline);
                 }
             }
+
+	    //Earlier deadlines are never later than this one, so an already
+	    //scheduled timeout is left as it is.
+	    if (!missingPackets.isEmpty() &&
+		!lossTimer.isScheduled(lossTimeout)) {
+		lossTimer.schedule(lossTimeout, wait);
+	    }
             lastSequenceNumber = currentSequenceNumber;
         }
 
@@ -552,6 +541,10 @@ public class G711DePacketizer {
 	if (missingPackets.containsKey(Long.valueOf(sequenceNumber))) {
 
 	    missingPackets.remove(Long.valueOf(sequenceNumber));
+	    if (missingPackets.isEmpty()) {
+		lossTimer.cancel(lossTimeout);
+	    }
+
             if (!receivedPackets.containsKey(Long.valueOf(sequenceNumber))) {
                 receivedPackets.put(new Long(sequenceNumber),
                                     (byte[])getData((i),
@@ -593,64 +586,50 @@ public class G711DePacketizer {
 
 
     /**
-     * Inner class that defines what to do when a packet is lost.
+     * Gives up the missing packets whose deadline has passed, and schedules
+     * the loss timeout again for the next deadline. Called from the timer
+     * thread.
      *
-     * @author Andreas Piirimets, Omnitor AB
      */
-    private class LossTimerTask extends TimerTask {
+    private synchronized void lossTimeoutExpired() {
+	long now = System.currentTimeMillis();
+	long next = Long.MAX_VALUE;
 
-        private long sequenceNumber = 0;
-        private G711DePacketizer parent = null;
+	Long[] seqs = missingPackets.keySet().toArray(new Long[0]);
+	for (int cnt=0; cnt<seqs.length; cnt++) {
+	    Long deadline = missingPackets.get(seqs[cnt]);
 
-        /**
-         * Create a new LossTimerTask.
-         *
-         * @param seq The sequence number of the missingpacket.
-         * @param parent The creator of this object.
-         */
-        public LossTimerTask(long seq, G711DePacketizer parent) {
-            sequenceNumber=seq;
-            this.parent=parent;
-        }
+	    if (deadline == null) {
+		continue;
+	    }
+	    if (deadline.longValue() <= now) {
+		lostPacket(seqs[cnt].longValue());
+	    }
+	    else if (deadline.longValue() < next) {
+		next = deadline.longValue();
+	    }
+	}
 
+	if (next != Long.MAX_VALUE) {
+	    lossTimer.schedule(lossTimeout, next - now);
+	}
+    }
+
+
+    /**
+     * The loss timeout of this depacketizer. One entry serves all missing
+     * packets, it is scheduled for the earliest deadline.
+     */
+    private class LossTimeout extends WheelTimer.Entry {
 
         /**
          * Preform the work.
 	 *
          */
-        public void run() {
-
-	    //EZ: Removed below. Unessecary to make parseable data.
-	    //    Just add LOSS CHAR to output.
-
-	    // Changed by Andreas Piirimets 2004-03-11
-	    // The LOSS_CHAR has to be sent in UTF-8 format
-            //parent.receivedMissingPacket(sequenceNumber,
-            //                             0,
-            //                             TextConstants.LOSS_CHAR);
-	    //try {
-
-	    //parent.receivedMissingPacket
-	    //    (sequenceNumber,
-	    ///     0,
-	    //     TextConstants.LOSS_CHAR);
-		     //(new String(""+TextConstants.LOSS_CHAR_CHAR)).
-		     //getBytes("UTF-8"));
-		//}
-		//catch (java.io.UnsupportedEncodingException uee) {
-		//parent.receivedMissingPacket
-		//    (sequenceNumber,
-		//     0,
-		//     new byte[0]);
-		//}
-	    // End of change
-
-	    //EZ 041114: Add LOSS CHAR to output.
-	    parent.lostPacket(sequenceNumber);
-
-            this.cancel();
+        public void expire() {
+	    lossTimeoutExpired();
         }
 
     }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,639 @@
+/*
+ * Copyright (C) 2004-2008  University of Wisconsin-Madison and Omnitor AB
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ */
+package se.omnitor.protocol.rtp.packets;
+
+/**
+ * Reads a compound RTCP packet in place. <br>
+ * <br>
+ * The reader is positioned over the receive buffer with wrap(), and next()
+ * steps from one RTCP packet to the next. The accessors read the fields of
+ * the current packet straight from the buffer, so parsing allocates
+ * nothing. Packet objects for the RTCP_actionListeners are only created
+ * when one of the to...Packet methods is called. <br>
+ * <br>
+ * Which accessors apply depends on the packet type. The sender report
+ * accessors are valid for SR, the sender SSRC and report block accessors
+ * for SR and RR, nextSdesItem and the SDES accessors for SDES and the
+ * BYE accessors for BYE. Fields are never read beyond the length of the
+ * packet. <br>
+ * <br>
+ * SSRCs are returned the way the RTP receiver reads them, as a signed 32
+ * bit number widened to a long, so they can be used as source keys of the
+ * session. Other 32 bit fields are returned unsigned. <br>
+ * <br>
+ * The reader keeps state between calls and is not synchronized, one
+ * reader should be used by one thread.
+ *
+ * @author Unknown
+ */
+public class RTCPPacketReader {
+
+    private static final int TYPE_SR = 200;
+    private static final int TYPE_RR = 201;
+
+    private static final int HEADER_LENGTH = 4;
+    private static final int SENDER_SSRC_LENGTH = 4;
+    private static final int SENDER_INFO_LENGTH = 20;
+    private static final int REPORT_BLOCK_LENGTH = 24;
+
+    private byte[] data;
+    private int start;
+    private int end;
+
+    // The current packet
+    private int offset;
+    private int length;
+    private int nextOffset;
+    private boolean malformed;
+
+    // SDES walk
+    private int sdesChunk;
+    private int sdesChunkOffset;
+    private int sdesPos;
+    private long sdesSsrc;
+    private int sdesItem;
+
+    /**
+     * Positions the reader before the first packet of a compound packet.
+     *
+     * @param data The buffer holding the compound packet
+     * @param offset The index of the compound packet in data
+     * @param length The length of the compound packet
+     */
+    public void wrap(byte[] data, int offset, int length) {
+	this.data = data;
+	start = offset;
+	end = offset + length;
+	nextOffset = offset;
+	this.offset = offset;
+	this.length = 0;
+	malformed = false;
+    }
+
+    /**
+     * Moves to the next packet. A packet is only accepted if it has
+     * version 2 and its length field fits in the compound packet. An SR
+     * or RR must also be long enough to hold the sender SSRC.
+     *
+     * @return true if there is a next packet, false at the end of the
+     * compound packet or at a malformed packet
+     */
+    public boolean next() {
+	if (nextOffset >= end) {
+	    return false;
+	}
+	if (nextOffset + HEADER_LENGTH > end) {
+	    malformed = true;
+	    return false;
+	}
+
+	int packetLength = 4 * (getShort(nextOffset + 2) + 1);
+
+	if (((data[nextOffset] & 0xff) >> 6) != 2 ||
+	    nextOffset + packetLength > end) {
+	    malformed = true;
+	    return false;
+	}
+
+	int type = data[nextOffset + 1] & 0xff;
+	if ((type == TYPE_SR || type == TYPE_RR) &&
+	    packetLength < HEADER_LENGTH + SENDER_SSRC_LENGTH) {
+	    malformed = true;
+	    return false;
+	}
+
+	offset = nextOffset;
+	length = packetLength;
+	nextOffset += packetLength;
+
+	sdesChunk = 0;
+	sdesChunkOffset = offset + HEADER_LENGTH;
+	sdesPos = -1;
+	sdesItem = -1;
+
+	return true;
+    }
+
+    /**
+     * Indicates whether reading stopped at a malformed packet.
+     *
+     * @return true if a packet had a bad version or length, or was an SR
+     * or RR without a sender SSRC
+     */
+    public boolean isMalformed() {
+	return malformed;
+    }
+
+    /**
+     * Gets the number of bytes of the packets read so far, including the
+     * current one.
+     *
+     * @return The number of bytes
+     */
+    public int getBytesRead() {
+	return nextOffset - start;
+    }
+
+    /**
+     * Gets the index of the current packet in the buffer.
+     *
+     * @return The index of the first byte of the packet
+     */
+    public int getOffset() {
+	return offset;
+    }
+
+    /**
+     * Gets the length of the current packet, including the header and any
+     * padding.
+     *
+     * @return The length in bytes
+     */
+    public int getLength() {
+	return length;
+    }
+
+    /**
+     * Gets the length field of the current packet, the length in 32 bit
+     * words minus one.
+     *
+     * @return The length field
+     */
+    public int getLengthField() {
+	return length / 4 - 1;
+    }
+
+    /**
+     * Gets the packet type of the current packet.
+     *
+     * @return The packet type, such as 200 for SR
+     */
+    public int getType() {
+	return data[offset + 1] & 0xff;
+    }
+
+    /**
+     * Gets the count field of the current packet, which is the number of
+     * report blocks, SDES chunks or BYE sources.
+     *
+     * @return The count, 0 to 31
+     */
+    public int getCount() {
+	return data[offset] & 0x1f;
+    }
+
+    /**
+     * Indicates whether the padding bit of the current packet is set.
+     *
+     * @return true if the packet is padded
+     */
+    public boolean isPadded() {
+	return (data[offset] & 0x20) != 0;
+    }
+
+    /**
+     * Gets the SSRC of the sender of an SR or RR.
+     *
+     * @return The sender SSRC
+     */
+    public long getSenderSsrc() {
+	return getSignedInt(offset + 4);
+    }
+
+    /**
+     * Indicates whether the current SR holds the sender info.
+     *
+     * @return true if the sender info fits in the packet
+     */
+    public boolean hasSenderInfo() {
+	return length >= HEADER_LENGTH + SENDER_SSRC_LENGTH +
+	    SENDER_INFO_LENGTH;
+    }
+
+    /**
+     * Gets the most significant word of the NTP timestamp of an SR.
+     *
+     * @return The seconds of the NTP timestamp
+     */
+    public long getNtpTimeStampMostSignificant() {
+	return getInt(offset + 8);
+    }
+
+    /**
+     * Gets the least significant word of the NTP timestamp of an SR.
+     *
+     * @return The fraction of the NTP timestamp
+     */
+    public long getNtpTimeStampLeastSignificant() {
+	return getInt(offset + 12);
+    }
+
+    /**
+     * Gets the middle 32 bits of the NTP timestamp of an SR, which is what
+     * the LSR field of a later report block refers to.
+     *
+     * @return The middle 32 bits of the NTP timestamp
+     */
+    public long getNtpTimeStampMiddle() {
+	return getInt(offset + 10);
+    }
+
+    /**
+     * Gets the RTP timestamp of an SR.
+     *
+     * @return The RTP timestamp
+     */
+    public long getRtpTimeStamp() {
+	return getInt(offset + 16);
+    }
+
+    /**
+     * Gets the sender's packet count of an SR.
+     *
+     * @return The packet count
+     */
+    public long getSenderPacketCount() {
+	return getInt(offset + 20);
+    }
+
+    /**
+     * Gets the sender's octet count of an SR.
+     *
+     * @return The octet count
+     */
+    public long getSenderOctetCount() {
+	return getInt(offset + 24);
+    }
+
+    /**
+     * Gets the number of report blocks of an SR or RR that fit in the
+     * packet.
+     *
+     * @return The number of report blocks
+     */
+    public int getReportBlockCount() {
+	int fit = (length - getReportBlockStart()) / REPORT_BLOCK_LENGTH;
+
+	return Math.max(0, Math.min(getCount(), fit));
+    }
+
+    /**
+     * Gets the SSRC a report block is about.
+     *
+     * @param index The index of the report block
+     *
+     * @return The SSRC
+     */
+    public long getReportSsrc(int index) {
+	return getSignedInt(getReportBlockOffset(index));
+    }
+
+    /**
+     * Gets the fraction lost of a report block.
+     *
+     * @param index The index of the report block
+     *
+     * @return The fraction lost, 0 to 255
+     */
+    public int getFractionLost(int index) {
+	return data[getReportBlockOffset(index) + 4] & 0xff;
+    }
+
+    /**
+     * Gets the cumulative number of packets lost of a report block.
+     *
+     * @param index The index of the report block
+     *
+     * @return The number of packets lost, a signed 24 bit number
+     */
+    public long getCumulativeNumberOfPacketsLost(int index) {
+	return ((int)getSignedInt(getReportBlockOffset(index) + 4) << 8) >> 8;
+    }
+
+    /**
+     * Gets the extended highest sequence number received of a report
+     * block.
+     *
+     * @param index The index of the report block
+     *
+     * @return The extended highest sequence number
+     */
+    public long getExtendedHighestSequenceNumberReceived(int index) {
+	return getInt(getReportBlockOffset(index) + 8);
+    }
+
+    /**
+     * Gets the interarrival jitter of a report block.
+     *
+     * @param index The index of the report block
+     *
+     * @return The jitter in timestamp units
+     */
+    public long getInterarrivalJitter(int index) {
+	return getInt(getReportBlockOffset(index) + 12);
+    }
+
+    /**
+     * Gets the last SR timestamp of a report block.
+     *
+     * @param index The index of the report block
+     *
+     * @return The middle 32 bits of the NTP timestamp of the last SR
+     */
+    public long getLastSr(int index) {
+	return getInt(getReportBlockOffset(index) + 16);
+    }
+
+    /**
+     * Gets the delay since the last SR of a report block.
+     *
+     * @param index The index of the report block
+     *
+     * @return The delay in units of 1/65536 seconds
+     */
+    public long getDelayLastSr(int index) {
+	return getInt(getReportBlockOffset(index) + 20);
+    }
+
+    /**
+     * Moves to the next item of an SDES packet. The items of all chunks
+     * are visited in order.
+     *
+     * @return true if there is a next item
+     */
+    public boolean nextSdesItem() {
+	int packetEnd = offset + length;
+
+	while (true) {
+	    if (sdesPos < 0) {
+		// Start the next chunk
+		if (sdesChunk >= getCount() ||
+		    sdesChunkOffset + 4 > packetEnd) {
+		    return false;
+		}
+		sdesSsrc = getSignedInt(sdesChunkOffset);
+		sdesPos = sdesChunkOffset + 4;
+	    }
+
+	    if (sdesPos >= packetEnd) {
+		return false;
+	    }
+
+	    // A null octet ends the chunk, the next one starts at the next
+	    // 32 bit boundary
+	    if (data[sdesPos] == 0) {
+		sdesChunkOffset = offset + ((sdesPos - offset + 4) & ~3);
+		sdesChunk++;
+		sdesPos = -1;
+		continue;
+	    }
+
+	    if (sdesPos + 2 > packetEnd ||
+		sdesPos + 2 + (data[sdesPos + 1] & 0xff) > packetEnd) {
+		return false;
+	    }
+
+	    sdesItem = sdesPos;
+	    sdesPos += 2 + (data[sdesPos + 1] & 0xff);
+	    return true;
+	}
+    }
+
+    /**
+     * Gets the SSRC of the chunk holding the current SDES item.
+     *
+     * @return The SSRC
+     */
+    public long getSdesSsrc() {
+	return sdesSsrc;
+    }
+
+    /**
+     * Gets the type of the current SDES item.
+     *
+     * @return The item type, such as 1 for CNAME
+     */
+    public int getSdesItemType() {
+	return data[sdesItem] & 0xff;
+    }
+
+    /**
+     * Gets the length of the text of the current SDES item.
+     *
+     * @return The length in bytes
+     */
+    public int getSdesItemLength() {
+	return data[sdesItem + 1] & 0xff;
+    }
+
+    /**
+     * Gets the index of the text of the current SDES item in the buffer.
+     *
+     * @return The index of the first byte of the text
+     */
+    public int getSdesItemOffset() {
+	return sdesItem + 2;
+    }
+
+    /**
+     * Gets the text of the current SDES item. This allocates a String.
+     *
+     * @return The text, each byte taken as one character
+     */
+    public String getSdesItemValue() {
+	return getText(getSdesItemOffset(), getSdesItemLength());
+    }
+
+    /**
+     * Gets the number of sources of a BYE that fit in the packet.
+     *
+     * @return The number of sources
+     */
+    public int getByeSsrcCount() {
+	return Math.min(getCount(), (length - HEADER_LENGTH) / 4);
+    }
+
+    /**
+     * Gets one of the sources of a BYE.
+     *
+     * @param index The index of the source
+     *
+     * @return The SSRC
+     */
+    public long getByeSsrc(int index) {
+	return getSignedInt(offset + HEADER_LENGTH + 4*index);
+    }
+
+    /**
+     * Gets the reason for leaving of a BYE. This allocates a String.
+     *
+     * @return The reason, an empty string if the packet has none
+     */
+    public String getByeReason() {
+	int pos = offset + HEADER_LENGTH + 4*getByeSsrcCount();
+	int packetEnd = offset + length;
+
+	if (pos >= packetEnd) {
+	    return "";
+	}
+	return getText(pos + 1, Math.min(data[pos] & 0xff,
+					 packetEnd - pos - 1));
+    }
+
+    /**
+     * Creates a sender report packet object from the current SR.
+     *
+     * @param reportSsrc The SSRC whose report block should be attached,
+     * normally the own SSRC
+     *
+     * @return The packet
+     */
+    public RTCPSenderReportPacket toSenderReportPacket(long reportSsrc) {
+	RTCPSenderReportPacket packet = new RTCPSenderReportPacket();
+
+	packet.setSenderSsrc(getSenderSsrc());
+
+	if (hasSenderInfo()) {
+	    SenderInfo senderInfo = new SenderInfo();
+	    senderInfo.setNtpTimeStampMostSignificant
+		(getNtpTimeStampMostSignificant());
+	    senderInfo.setNtpTimeStampLeastSignificant
+		(getNtpTimeStampLeastSignificant());
+	    senderInfo.setRtpTimeStamp(getRtpTimeStamp());
+	    senderInfo.setSenderPacketCount(getSenderPacketCount());
+	    senderInfo.setSenderOctetCount(getSenderOctetCount());
+	    packet.setSenderInfo(senderInfo);
+	}
+
+	attachReportBlock(packet, reportSsrc, false);
+	return packet;
+    }
+
+    /**
+     * Creates a receiver report packet object from the current RR.
+     *
+     * @param reportSsrc The SSRC whose report block should be attached,
+     * normally the own SSRC
+     *
+     * @return The packet
+     */
+    public RTCPReceiverReportPacket toReceiverReportPacket(long reportSsrc) {
+	RTCPReceiverReportPacket packet = new RTCPReceiverReportPacket();
+
+	packet.setSenderSsrc(getSenderSsrc());
+	attachReportBlock(packet, reportSsrc, true);
+	return packet;
+    }
+
+    /**
+     * Creates an SDES packet object from the current SDES item.
+     *
+     * @return The packet
+     */
+    public RTCPSDESPacket toSdesPacket() {
+	RTCPSDESPacket packet = new RTCPSDESPacket();
+	SDESItem item = new SDESItem();
+
+	item.setType(getSdesItemType());
+	item.setValue(getSdesItemValue());
+	packet.setSdesItem(item);
+	return packet;
+    }
+
+    /**
+     * Creates a BYE packet object for one of the sources of the current
+     * BYE.
+     *
+     * @param index The index of the source
+     *
+     * @return The packet
+     */
+    public RTCPBYEPacket toByePacket(int index) {
+	RTCPBYEPacket packet = new RTCPBYEPacket();
+
+	packet.setSsrc(getByeSsrc(index));
+	packet.setReasonForLeaving(getByeReason());
+	return packet;
+    }
+
+    /**
+     * Attaches the last report block about an SSRC, if there is one. The
+     * fraction lost is stored as 0 to 255 for sender reports and as a
+     * signed byte for receiver reports, as it always has been.
+     */
+    private void attachReportBlock(RTCPPacket packet, long reportSsrc,
+				   boolean signedFraction) {
+	for (int cnt=getReportBlockCount()-1; cnt>=0; cnt--) {
+	    if (getReportSsrc(cnt) == reportSsrc) {
+		ReportBlock block = new ReportBlock();
+
+		if (signedFraction) {
+		    block.setFractionLost((byte)getFractionLost(cnt));
+		}
+		else {
+		    block.setFractionLost(getFractionLost(cnt));
+		}
+		block.setCumulativeNumberOfPacketsLost
+		    (getCumulativeNumberOfPacketsLost(cnt));
+		block.setExtendedHighestSequenceNumberReceived
+		    (getExtendedHighestSequenceNumberReceived(cnt));
+		block.setInterarrivalJitter(getInterarrivalJitter(cnt));
+		block.setLastSr(getLastSr(cnt));
+		block.setDelayLastSr(getDelayLastSr(cnt));
+
+		packet.setReportBlock(block);
+		packet.doesContainReportBlock(true);
+		return;
+	    }
+	}
+    }
+
+    private int getReportBlockStart() {
+	return HEADER_LENGTH + SENDER_SSRC_LENGTH +
+	    ((getType() == TYPE_SR) ? SENDER_INFO_LENGTH : 0);
+    }
+
+    private int getReportBlockOffset(int index) {
+	return offset + getReportBlockStart() + REPORT_BLOCK_LENGTH*index;
+    }
+
+    private int getShort(int pos) {
+	return ((data[pos] & 0xff) << 8) | (data[pos + 1] & 0xff);
+    }
+
+    private long getSignedInt(int pos) {
+	return (((data[pos] & 0xff) << 24) |
+		((data[pos + 1] & 0xff) << 16) |
+		((data[pos + 2] & 0xff) << 8) |
+		(data[pos + 3] & 0xff));
+    }
+
+    private long getInt(int pos) {
+	return getSignedInt(pos) & 0xffffffffL;
+    }
+
+    private String getText(int pos, int textLength) {
+	char[] chars = new char[textLength];
+
+	for (int cnt=0; cnt<textLength; cnt++) {
+	    chars[cnt] = (char)(data[pos + cnt] & 0xff);
+	}
+	return new String(chars);
+    }
+}
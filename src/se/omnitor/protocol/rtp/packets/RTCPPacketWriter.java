@@ -0,0 +1,344 @@
+/*
+ * Copyright (C) 2004-2008  University of Wisconsin-Madison and Omnitor AB
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ */
+package se.omnitor.protocol.rtp.packets;
+
+/**
+ * Writes compound RTCP packets into one reusable buffer. <br>
+ * <br>
+ * A compound packet is started with reset(), followed by a sender or
+ * receiver report, its report blocks, an SDES packet and optionally a
+ * BYE. Every packet gets its length and count fields when the next one is
+ * started or when the compound packet is read with getLength(). A report
+ * holds at most 31 report blocks. Further blocks go into additional
+ * receiver reports that follow it, as RFC 3550 section 6.4.2 says. <br>
+ * <br>
+ * The SDES items are encoded once by setSdesItems() and copied into every
+ * packet until they change. The buffer grows when needed and is then
+ * kept, so writing normally does not allocate. <br>
+ * <br>
+ * The writer is not synchronized, one writer should be used by one
+ * thread.
+ *
+ * @author Unknown
+ */
+public class RTCPPacketWriter {
+
+    /**
+     * The largest number of report blocks in one SR or RR.
+     */
+    public static final int MAX_REPORT_BLOCKS = 31;
+
+    private static final int PT_SR   = 200;
+    private static final int PT_RR   = 201;
+    private static final int PT_SDES = 202;
+    private static final int PT_BYE  = 203;
+
+    private static final int SDES_CNAME = 1;
+    private static final int SDES_EMAIL = 3;
+
+    private byte[] buffer;
+    private int length;
+
+    // The packet being written, -1 if none
+    private int packetStart;
+    private int packetCount;
+
+    // The sender of the report, for additional receiver reports
+    private long reportSsrc;
+    private boolean inReport;
+
+    private byte[] cnameItem = new byte[0];
+    private byte[] emailItem = new byte[0];
+
+    /**
+     * Initializes a writer with a buffer for a typical compound packet.
+     *
+     */
+    public RTCPPacketWriter() {
+	this(512);
+    }
+
+    /**
+     * Initializes a writer.
+     *
+     * @param capacity The initial size of the buffer
+     */
+    public RTCPPacketWriter(int capacity) {
+	buffer = new byte[Math.max(capacity, 64)];
+	reset();
+    }
+
+    /**
+     * Starts a new, empty compound packet.
+     *
+     */
+    public void reset() {
+	length = 0;
+	packetStart = -1;
+	packetCount = 0;
+	inReport = false;
+    }
+
+    /**
+     * Gets the buffer the compound packet is written to. It starts at
+     * index 0 and is overwritten by the next compound packet.
+     *
+     * @return The buffer
+     */
+    public byte[] getBuffer() {
+	endPacket();
+	return buffer;
+    }
+
+    /**
+     * Gets the length of the compound packet written so far.
+     *
+     * @return The length in bytes
+     */
+    public int getLength() {
+	endPacket();
+	return length;
+    }
+
+    /**
+     * Copies the compound packet written so far to a new array.
+     *
+     * @return The compound packet
+     */
+    public byte[] toByteArray() {
+	byte[] packet = new byte[getLength()];
+
+	System.arraycopy(buffer, 0, packet, 0, length);
+	return packet;
+    }
+
+    /**
+     * Starts a sender report. Report blocks are added with
+     * addReportBlock.
+     *
+     * @param ssrc The SSRC of the sender
+     * @param ntpMsw The most significant word of the NTP timestamp
+     * @param ntpLsw The least significant word of the NTP timestamp
+     * @param rtpTimeStamp The RTP timestamp
+     * @param senderPacketCount The sender's packet count
+     * @param senderOctetCount The sender's octet count
+     */
+    public void startSenderReport(long ssrc, long ntpMsw, long ntpLsw,
+				  long rtpTimeStamp, long senderPacketCount,
+				  long senderOctetCount) {
+	startPacket(PT_SR, 28);
+	putInt(ssrc);
+	putInt(ntpMsw);
+	putInt(ntpLsw);
+	putInt(rtpTimeStamp);
+	putInt(senderPacketCount);
+	putInt(senderOctetCount);
+
+	reportSsrc = ssrc;
+	inReport = true;
+    }
+
+    /**
+     * Starts a receiver report. Report blocks are added with
+     * addReportBlock.
+     *
+     * @param ssrc The SSRC of the sender of the report
+     */
+    public void startReceiverReport(long ssrc) {
+	startPacket(PT_RR, 8);
+	putInt(ssrc);
+
+	reportSsrc = ssrc;
+	inReport = true;
+    }
+
+    /**
+     * Adds a report block to the current report. If the report already
+     * holds 31 blocks, an additional receiver report is started for it.
+     *
+     * @param ssrc The SSRC the block is about
+     * @param fractionLost The fraction lost, 0 to 255
+     * @param cumulativeLost The cumulative number of packets lost, 24 bits
+     * @param extendedHighestSeq The extended highest sequence number
+     * received
+     * @param jitter The interarrival jitter
+     * @param lastSr The middle 32 bits of the NTP timestamp of the last SR
+     * @param delayLastSr The delay since the last SR, in 1/65536 seconds
+     *
+     * @throws IllegalStateException If no report has been started
+     */
+    public void addReportBlock(long ssrc, int fractionLost,
+			       long cumulativeLost, long extendedHighestSeq,
+			       long jitter, long lastSr, long delayLastSr) {
+	if (!inReport) {
+	    throw new IllegalStateException("No report started");
+	}
+
+	if (packetCount == MAX_REPORT_BLOCKS) {
+	    startReceiverReport(reportSsrc);
+	}
+
+	ensureCapacity(24);
+	putInt(ssrc);
+	buffer[length++] = (byte)fractionLost;
+	buffer[length++] = (byte)(cumulativeLost >> 16);
+	buffer[length++] = (byte)(cumulativeLost >> 8);
+	buffer[length++] = (byte)cumulativeLost;
+	putInt(extendedHighestSeq);
+	putInt(jitter);
+	putInt(lastSr);
+	putInt(delayLastSr);
+
+	packetCount++;
+    }
+
+    /**
+     * Encodes the SDES items that putSdes writes. Each text is cut to 255
+     * bytes.
+     *
+     * @param cname The CNAME
+     * @param email The email address, or null
+     */
+    public void setSdesItems(String cname, String email) {
+	cnameItem = encodeItem(SDES_CNAME, cname);
+	emailItem = encodeItem(SDES_EMAIL, email);
+    }
+
+    /**
+     * Writes an SDES packet with one chunk, holding the items set by
+     * setSdesItems. The item list is ended by at least one null octet.
+     *
+     * @param ssrc The SSRC of the chunk
+     * @param includeEmail Whether to include the email item
+     */
+    public void putSdes(long ssrc, boolean includeEmail) {
+	int itemsLength = cnameItem.length +
+	    (includeEmail ? emailItem.length : 0);
+
+	startPacket(PT_SDES, 8 + itemsLength + 4);
+	putInt(ssrc);
+	putBytes(cnameItem, cnameItem.length);
+	if (includeEmail) {
+	    putBytes(emailItem, emailItem.length);
+	}
+
+	// The null octet ending the items, then padding
+	buffer[length++] = 0;
+	pad();
+
+	packetCount = 1;
+    }
+
+    /**
+     * Writes a BYE packet for one source.
+     *
+     * @param ssrc The SSRC that is leaving
+     * @param reason The reason for leaving, or null
+     */
+    public void putBye(long ssrc, String reason) {
+	byte[] text = (reason == null) ? new byte[0] : reason.getBytes();
+	int textLength = Math.min(text.length, 255);
+
+	startPacket(PT_BYE, 8 + 1 + textLength + 3);
+	putInt(ssrc);
+	buffer[length++] = (byte)textLength;
+	putBytes(text, textLength);
+	pad();
+
+	packetCount = 1;
+    }
+
+    /**
+     * Finishes the current packet and starts a new one.
+     *
+     * @param type The packet type
+     * @param room The largest number of bytes the packet will need
+     */
+    private void startPacket(int type, int room) {
+	endPacket();
+	ensureCapacity(room);
+
+	packetStart = length;
+	packetCount = 0;
+	inReport = false;
+
+	buffer[length++] = (byte)0x80;
+	buffer[length++] = (byte)type;
+	buffer[length++] = 0;
+	buffer[length++] = 0;
+    }
+
+    /**
+     * Writes the count and length fields of the current packet.
+     */
+    private void endPacket() {
+	if (packetStart < 0) {
+	    return;
+	}
+
+	int words = (length - packetStart) / 4 - 1;
+
+	buffer[packetStart] = (byte)(0x80 | packetCount);
+	buffer[packetStart + 2] = (byte)(words >> 8);
+	buffer[packetStart + 3] = (byte)words;
+
+	packetStart = -1;
+    }
+
+    private void pad() {
+	while (((length - packetStart) & 3) != 0) {
+	    buffer[length++] = 0;
+	}
+    }
+
+    private void putInt(long value) {
+	buffer[length++] = (byte)(value >> 24);
+	buffer[length++] = (byte)(value >> 16);
+	buffer[length++] = (byte)(value >> 8);
+	buffer[length++] = (byte)value;
+    }
+
+    private void putBytes(byte[] src, int n) {
+	System.arraycopy(src, 0, buffer, length, n);
+	length += n;
+    }
+
+    private void ensureCapacity(int room) {
+	if (length + room > buffer.length) {
+	    byte[] temp = new byte[Math.max(buffer.length*2, length + room)];
+	    System.arraycopy(buffer, 0, temp, 0, length);
+	    buffer = temp;
+	}
+    }
+
+    private static byte[] encodeItem(int type, String text) {
+	if (text == null) {
+	    return new byte[0];
+	}
+
+	byte[] bytes = text.getBytes();
+	int textLength = Math.min(bytes.length, 255);
+	byte[] item = new byte[2 + textLength];
+
+	item[0] = (byte)type;
+	item[1] = (byte)textLength;
+	System.arraycopy(bytes, 0, item, 2, textLength);
+	return item;
+    }
+}
@@ -23,20 +23,15 @@ package se.omnitor.protocol.rtp.packets;
  * receiving RTCP Packets.
  * Implementation for handleRTPEvent methods must be provided by such classes.
  * The method <b> addRTCP_actionListener() </b> in Session is responsible for
- * registerring the listener. ( Only one RTCP listener class per session. )
+ * registerring the listener. Several listeners may be registered with one
+ * session, every RTCP packet is posted to all of them.
  * RTCP packets will be posted only after the class implementing this
  * interface registers itself with the Session. <br>
  * <br>
- * Note: <br>
- * It is assumed that ONE and only one class in an application is implementing
- * this interface is registered with the Session. <br>
- * <br>
  * RTCP LoopBack: <br>
  * RTCP packets originated from this session are not posted.  Self RTCP
  * packets are filtered out and RTCP packets originated by other sources 
  * cause the RTCP events. <br>
- * <br>
- * Future releases might add multiple listener registeration. <br>
  *
  * @author Unknown
  *
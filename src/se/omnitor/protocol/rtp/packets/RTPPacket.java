@@ -32,6 +32,8 @@ public class RTPPacket {
     private long timeStamp;
     private long ssrc;
     private byte[] data;
+    private int dataOffset;
+    private int dataLength;
     private byte markerByte;
 
     /**
@@ -127,20 +129,85 @@ public class RTPPacket {
 
     /**
      * Gets the payload, that is the actual payload contained in an RTP Packet.
+     * <br>
+     * <br>
+     * The payload starts at getPayloadOffset() and is getPayloadLength()
+     * bytes long. Packets created by a Session that reuses received packets
+     * are views into the receive buffer, so the array may be larger than
+     * the payload.
      *
      * @return The payload data
+     *
+     * @see se.omnitor.protocol.rtp.Session#setReuseReceivedPackets
      */
     public byte[] getPayloadData() {
 	return data;
     }
 
     /**
-     * Sets the payload data
+     * Gets the position of the first payload byte in the payload data array.
+     *
+     * @return The payload offset
+     */
+    public int getPayloadOffset() {
+	return dataOffset;
+    }
+
+    /**
+     * Gets the number of payload bytes.
+     *
+     * @return The payload length
+     */
+    public int getPayloadLength() {
+	return dataLength;
+    }
+
+    /**
+     * Sets the payload data. The whole array is used as payload.
      *
      * @param payloadData The payload data to set
      */
     public void setPayloadData(byte[] payloadData) {
 	this.data = payloadData;
+	dataOffset = 0;
+	dataLength = (payloadData == null) ? 0 : payloadData.length;
+    }
+
+    /**
+     * Sets the payload to a part of an array. The array is not copied.
+     *
+     * @param payloadData The array holding the payload
+     * @param offset The position of the first payload byte
+     * @param length The number of payload bytes
+     */
+    public void setPayloadData(byte[] payloadData, int offset, int length) {
+	this.data = payloadData;
+	dataOffset = offset;
+	dataLength = length;
+    }
+
+    /**
+     * Creates a copy of this packet that owns its payload. The copy's
+     * payload array holds exactly the payload bytes. Use this to keep a
+     * packet that is a view into a buffer that will be reused.
+     *
+     * @return The copy
+     */
+    public RTPPacket copy() {
+	RTPPacket packet = new RTPPacket();
+	packet.csrcCount = csrcCount;
+	packet.sequenceNumber = sequenceNumber;
+	packet.timeStamp = timeStamp;
+	packet.ssrc = ssrc;
+	packet.markerByte = markerByte;
+
+	if (data != null) {
+	    byte[] payload = new byte[dataLength];
+	    System.arraycopy(data, dataOffset, payload, 0, dataLength);
+	    packet.setPayloadData(payload);
+	}
+
+	return packet;
     }
 
     /**
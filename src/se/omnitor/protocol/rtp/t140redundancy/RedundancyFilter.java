@@ -19,20 +19,27 @@
 
 package se.omnitor.protocol.rtp.t140redundancy;
 
-import java.util.Vector;
-import java.util.LinkedList;
-import java.util.Iterator;
-
 /**
  *  handles inserting and filtering of highlevel text redundancy data
  *
+ *  The input filter is a state machine that works directly on the bytes.
+ *  A redundancy block that is split between two calls to filterInput is
+ *  kept until its end arrives.
+ *
+ *  On the sending side the earlier generations are kept in a fixed ring,
+ *  and the digits of the header are written straight into the output.
+ *
  *  @author Staffan Hellstrm
  *  @autohr Erik Zetterstrm
  */
 public class RedundancyFilter {
 
-    //Add redundancy variables
-    private LinkedList<byte[]> fifoBuffer = new LinkedList<byte[]>();
+    //Add redundancy variables, the generations are stored oldest first
+    //from historyFirst
+    private byte[][] history;
+    private int[] historyLengths;
+    private int historyFirst=0;
+    private int historyCount=0;
 
     private int primarySeqNumber=0;
     private int redundancyLevels=3;
@@ -48,13 +55,26 @@ public class RedundancyFilter {
     // "packet" counter
     private int lastReceivedSeqNr=-1;
 
+    // The longest redundancy block that is waited for, anything longer is
+    // passed on as text
+    private static final int MAX_BLOCK_LENGTH = 1024;
+
+    private final byte[] lossBytes={(byte)0xEF,(byte)0xBF,(byte)0xBD};
+
+    // filterInput state
+    private boolean inBlock = false;
+    private byte[] block = new byte[MAX_BLOCK_LENGTH];
+    private int blockLength = 0;
+    private int sosMatch = 0;
+    private byte[] output = new byte[256];
+    private int outputLength = 0;
+
 
     /**
      * Creates the redundany filter with default settings.
      */
     public RedundancyFilter() {
-	// preallocate for sender
-	//fifoBuffer.add(new byte[0]);
+	initHistory();
     }
 
     /**
@@ -68,343 +88,355 @@ public class RedundancyFilter {
 			    int redundancyLevels) {
         this.redFlagOutgoing=redFlagOutgoing;
 	this.redundancyLevels=redundancyLevels;
+	initHistory();
     }
 
 
-
     /**
-     * Converts a char in byte form to a number.
-     *
-     * @param c The byte to convert.
-     * @return The converted number.
+     * Allocates the generation ring.
      */
-    private int charToNumber(byte c) {
-	char ch=(char)c;
-	String string=""+ch;
-	return Integer.parseInt(string);
-    }
+    private void initHistory() {
+	history = new byte[redundancyLevels][];
+	historyLengths = new int[redundancyLevels];
 
-
-    /**
-     * Converts an integer to bytes.
-     *
-     * @param n The number to convert.
-     * @return The converted bytes.
-     */
-    private byte[] numberToBytes(int n) {
-	String str=String.valueOf(n);
-	return str.getBytes();
+	for (int i=0; i<redundancyLevels; i++) {
+	    history[i] = new byte[16];
+	}
     }
 
 
+
     /**
-     * Converts a number of a specified length to bytes.
-     * @param n The number to convert.
-     * @param length The length of the numberto convert.
+     * Counts the digits needed to write a number.
      *
-     * @return The converted bytes.
+     * @param n The number, not negative.
+     * @param minDigits The least number of digits, with zero padding.
+     * @return The number of digits.
      */
-    private byte[] numberToBytes(int n, int length) {
-	String str=String.valueOf(n);
-	if (str.length()<length) {
-	    for (int i=0; i<length-str.length(); i++)
-		str="0"+str;
+    private static int digitCount(int n, int minDigits) {
+	int digits = 1;
+
+	while (n >= 10) {
+	    n /= 10;
+	    digits++;
 	}
-	return str.getBytes();
+	return Math.max(digits, minDigits);
     }
 
 
     /**
-     * Converts a char in byte form to a number.
+     * Writes a number as zero padded ASCII digits.
      *
-     * @param c The char to convert.
-     * @return The converted number.
+     * @param n The number, not negative.
+     * @param minDigits The least number of digits.
+     * @param dst The array to write to.
+     * @param pos The index to write the first digit to.
+     * @return The index after the last digit.
      */
-    /*
-    private int charToNumber(byte[] c) {
-	int result=0;
-	int j=c.length-1;
-	for (int i=0; i<c.length; i++) {
-	    int power=(int)Math.pow(10,j);
-	    int mult=charToNumber(c[i]);
-	    result+=power*mult;
-	    j--;
+    private static int putNumber(int n, int minDigits, byte[] dst, int pos) {
+	int end = pos + digitCount(n, minDigits);
+
+	for (int i=end-1; i>=pos; i--) {
+	    dst[i] = (byte)('0' + n % 10);
+	    n /= 10;
 	}
-	return result;
+	return end;
     }
-*/
+
 
     /**
-     * Converts two chars to a number.
-     *
-     * @param a The first byte of the char.
-     * @param b The second number of the char.
+     * Converts an ASCII digit to a number.
      *
-     * @return The cinverted number.
+     * @param c The digit.
+     * @return The number, or -1 if c is not a digit.
      */
-    private int charToNumber(byte a, byte b) {
-	return 10*charToNumber(a)+charToNumber(b);
+    private static int digit(byte c) {
+	if (c < '0' || c > '9') {
+	    return -1;
+	}
+	return c - '0';
     }
 
 
     /**
-     * Finds a specified bytes in an array of other bytes.
+     * Converts two ASCII digits to a number.
      *
-     * @param bytes The bytes to search in.
-     * @param startIdx Index to start searching from.
-     * @param endIdx Index to search to.
-     * @param toFind THe byte to search for.
-     * @return Returns the first index of the byte searched for,
-     *         -1 if not found or bad input.
+     * @param a The first digit.
+     * @param b The second digit.
+     * @return The number, or -1 if a or b is not a digit.
      */
-    int findByte(byte[] bytes, int startIdx, int endIdx, byte toFind) {
-	if (startIdx==-1) startIdx=0;
-	if (endIdx==-1) endIdx=bytes.length;
-	if (endIdx<startIdx) return -1;
-
-	for (int i=startIdx; i<endIdx; i++) {
-	    if (bytes[i] == toFind)
-		return i;
-	}
+    private static int twoDigits(byte a, byte b) {
+	int high = digit(a);
+	int low = digit(b);
 
-	return -1;
+	if (high < 0 || low < 0) {
+	    return -1;
+	}
+	return 10*high + low;
     }
 
 
     /**
-     * Finds a specfied set of bytes in an array of bytes.
+     *  Seek for SOSR-ST blocks and extracts any lost data using the
+     * 	redundancy data found in the blocks
+     * 	NOTE: packet loss characters between two blocks are removed - new
+     * 	ones will be inserted as need occurs.
      *
-     * @param bytes The bytes to search in.
-     * @param startIdx The Index to start searching from.
-     * @param endIdx The index to search to.
-     * @param toFind The bytes to search for.
-     * @param Returns The first index of the bytes searched for,
-     *                -1 if not found or bad input.
+     * @param inputString The data to search.
+     * @return The parsed data.
      */
-    int findBytes(byte[] bytes, int startIdx, int endIdx, byte[] toFind) {
-	if (startIdx==-1) startIdx=0;
-	if (endIdx==-1) endIdx=bytes.length;
-	if (endIdx<startIdx) return -1;
-
-	for (int i=startIdx; i<endIdx; i++) {
-	    int matches=0;
-	    for (int j=0; j<toFind.length && i+j<endIdx; j++) {
-		if (bytes[i+j]==toFind[j]) matches++;
+    public byte[] filterInput(byte[] inputString) {
+	int len = inputString.length;
+	int i = 0;
+
+	outputLength = 0;
+
+	// The start of the text that has not been output yet, and whether
+	// it follows a redundancy block in this input
+	int textStart = 0;
+	boolean afterBlock = false;
+
+	// Part of an SOS R was held back at the end of the last input
+	if (sosMatch > 0) {
+	    while (i < len && sosMatch < sosBytes.length &&
+		   inputString[i] == sosBytes[sosMatch]) {
+		sosMatch++;
+		i++;
+	    }
+
+	    if (sosMatch == sosBytes.length) {
+		inBlock = true;
+		blockLength = 0;
+		sosMatch = 0;
+		textStart = i;
+	    }
+	    else if (i == len) {
+		return copyOutput();
+	    }
+	    else {
+		// It was text after all
+		appendOutput(sosBytes, 0, sosMatch - i, false);
+		sosMatch = 0;
+		i = 0;
 	    }
-	    if (matches==toFind.length) return i;
 	}
-	return -1;
-    }
 
+	for (; i<len; i++) {
+	    byte b = inputString[i];
 
-    /**
-     * Finds a byte in an array.
-     *
-     * @param bytes The bytes to search in.
-     * @param toFind The bytes to search for.
-     * @return The index of the byte or -1.
-     */
-    int findByte(byte[] bytes, byte toFind) {
-	return findByte(bytes,-1,-1,toFind);
-    }
+	    if (inBlock) {
+		if (blockLength < block.length) {
+		    block[blockLength++] = b;
 
+		    if (blockLength >= stBytes.length &&
+			block[blockLength-2] == stBytes[0] &&
+			block[blockLength-1] == stBytes[1]) {
 
-    /**
-     * Finds a byte in an array.
-     *
-     * @param bytes The bytes to search in.
-     * @param startIdx The index to start searching from.
-     * @param toFind The byte to search for.
-     * @return The index of the byte or -1.
-     * /
-    int findByte(byte[] bytes, int startIdx, byte toFind) {
-	return findByte(bytes,startIdx,-1, toFind);
-    }
+			parseBlock(blockLength - stBytes.length);
+			inBlock = false;
+			textStart = i + 1;
+			afterBlock = true;
+		    }
+		    continue;
+		}
 
+		// No end found, this was not a redundancy block
+		appendOutput(sosBytes, 0, sosBytes.length, false);
+		appendOutput(block, 0, blockLength, false);
+		inBlock = false;
+		textStart = i;
+		afterBlock = false;
+	    }
 
-    /**
-     * Finds a set of bytes in an array.
-     *
-     * @param bytes The bytes to search in.
-     * @param startIdx The index to search from.
-     * @param toFind The bytes to find.
-     * @returnxsx The index of the bytes or -1.
-     */
-    int findByte(byte[] bytes, int startIdx, byte[] toFind) {
-	return findBytes(bytes,startIdx,-1, toFind);
+	    if (b == sosBytes[sosMatch]) {
+		sosMatch++;
+
+		if (sosMatch == sosBytes.length) {
+		    appendOutput(inputString, textStart,
+				 i + 1 - sosBytes.length, afterBlock);
+		    inBlock = true;
+		    blockLength = 0;
+		    sosMatch = 0;
+		}
+	    }
+	    else {
+		sosMatch = (b == sosBytes[0]) ? 1 : 0;
+	    }
+	}
+
+	// Output the rest, except the start of an SOS R
+	if (!inBlock) {
+	    appendOutput(inputString, textStart, len - sosMatch, false);
+	}
+
+	return copyOutput();
     }
 
 
     /**
-     *  Seek for SOSR-ST blocks and extracts any lost data using the
-     * 	redundancy data found in the blocks
-     * 	NOTE: all packet loss characters are removed - new ones will
-     * 	be inserted as need occurs.
+     * Recovers lost data from a redundancy block. The block is in block,
+     * without the leading SOS R and the trailing ST.
      *
-     * @param inputString The data to search.
-     * @return The parsed data.
+     * @param length The length of the block
      */
-    public byte[] filterInput(byte[] inputString) {
+    private void parseBlock(int length) {
+	if (length < 4) {
+	    return;
+	}
 
-	Vector<Byte> output = new Vector<Byte>();
+	int rfcSupport = digit(block[0]);
+	int redLevel = digit(block[1]);
+	int priSeqNr = twoDigits(block[2], block[3]);
 
-	boolean done=false;
-	int stIndex=-1;
-	boolean firstLoop=true;
+	if (rfcSupport < 0 || redLevel < 0 || priSeqNr < 0) {
+	    return;
+	}
 
-	while (!done) {
-	    int sosIndex=findByte(inputString,stIndex,sosBytes);
+	int nbrPacketsLost = priSeqNr - lastReceivedSeqNr - 1;
 
-	    stIndex=findByte(inputString,sosIndex,stBytes);
+	if ( nbrPacketsLost < 0 )
+	    nbrPacketsLost += 100;
 
-	    if (firstLoop && sosIndex != -1) {
+	lastReceivedSeqNr = priSeqNr;
 
-		// add everything before the redundancy block
+	//EZ: Added check to see if sending endpoint supports
+	//    RFC 4103 redundancy.
+	//    If RFC 4103 is supported T.140 redundancy
+	//    should be ignored.
+	if (nbrPacketsLost == 0 || rfcSupport == 1) {
+	    return;
+	}
 
-		for (int i=0; i<sosIndex; i++) {
-		    output.add(new Byte(inputString[i]));
-		}
+	int skip = 0;
 
-		firstLoop=false;
+	if (nbrPacketsLost <= redLevel) {
+	    // Manageable loss, recover using redundancy, skip undamaged data
+	    skip = redLevel - nbrPacketsLost;
+	}
+	else {
+	    //EZ: Recover what we can. Replace each non-recoverable
+	    //    lost packet with a loss char.
+	    for (int cnt=0; cnt<nbrPacketsLost-redLevel; cnt++) {
+		appendOutput(lossBytes, 0, lossBytes.length, false);
 	    }
+	}
 
-	    if (sosIndex != -1 && stIndex != -1 && stIndex>sosIndex) {
-				// Inside a redundancy block
-
-		int startIdx=sosIndex+sosBytes.length;
-		int rfcSupport=charToNumber(inputString[startIdx]);
-		int redLevel = charToNumber(inputString[startIdx+1]);
-
-		int priSeqNr = charToNumber(inputString[startIdx+2],
-					    inputString[startIdx+3]);
-
-		int nbrPacketsLost = priSeqNr - lastReceivedSeqNr - 1;
-
-		if ( nbrPacketsLost < 0 )
-		    nbrPacketsLost += 100;
-
-		//EZ: Added check to see if sending endpoint supports
-		//    RFC 4103 redundancy.
-		//    If RFC 4103 is supported T.140 redundancy
-		//    should be ignored.
-		if ( nbrPacketsLost > 0 && (rfcSupport != 1)) {
-
-		    // packet loss
-		    if (nbrPacketsLost <= redLevel) {
-			// Manageable loss, recover using redundancy
-			int recoverStart = redLevel - nbrPacketsLost;
-			int rIdx=startIdx+4;
-			int pos=0;
-
-			// skip undamaged data
-			for (int i=0; i<recoverStart; i++) {
-			    int length = charToNumber(inputString[rIdx+pos],
-						      inputString[rIdx+pos+1]);
-			    pos += length+2;
-			}
-
-			// recover lost data
-			for (int i=0; i<nbrPacketsLost; i++) {
-			    int length = charToNumber(inputString[rIdx+pos],
-						      inputString[rIdx+pos+1]);
-			    pos += 2;
-			    for (int j=0; j<length; j++) {
-				output.add(new Byte(inputString[rIdx+pos+j]));
-			    }
-			    pos+=length;
-			}
+	int pos = 4;
+	for (int cnt=0; cnt<redLevel; cnt++) {
+	    if (pos + 2 > length) {
+		return;
+	    }
 
+	    int dataLength = twoDigits(block[pos], block[pos+1]);
+	    pos += 2;
 
-		    }
-		    else {
-			//EZ: Recover what we can. Replace each non-recoverable
-			//    lost packet with a loss char.
-
-			int rIdx = startIdx+4;
-			int pos = 0;
-
-			//EZ: Add a loss char for each unrecoverable packet.
-			for (int i=0;i<(nbrPacketsLost-redLevel);i++) {
-			    output.add(new Byte((byte)0xef));
-			    output.add(new Byte((byte)0xbf));
-			    output.add(new Byte((byte)0xbd));
-			}
-
-			//EZ: Extract and add all available redundant data.
-			for (int i=0;i<redLevel;i++) {
-			    int length = charToNumber(inputString[rIdx+pos],
-						      inputString[rIdx+pos+1]);
-			    pos += 2;
-			    for (int j=0;j<length;j++) {
-				output.add(new Byte(inputString[rIdx+pos+j]));
-			    }
-			    pos+=length;
-
-			}
+	    if (dataLength < 0 || pos + dataLength > length) {
+		return;
+	    }
+	    if (cnt >= skip) {
+		appendOutput(block, pos, pos + dataLength, false);
+	    }
+	    pos += dataLength;
+	}
+    }
 
-		    }
 
-		}
+    /**
+     * Appends data to the output.
+     *
+     * @param src The data
+     * @param start The index of the first byte to append
+     * @param end The index after the last byte to append
+     * @param removeLoss True to leave out packet loss chars
+     */
+    private void appendOutput(byte[] src, int start, int end,
+			      boolean removeLoss) {
+	if (end <= start) {
+	    return;
+	}
 
-		lastReceivedSeqNr=priSeqNr;
-	   }
+	if (outputLength + end - start > output.length) {
+	    byte[] temp = new byte[Math.max(output.length*2,
+					    outputLength + end - start)];
+	    System.arraycopy(output, 0, temp, 0, outputLength);
+	    output = temp;
+	}
 
-	    // Check for more redundancy blocks in the input
-	    int nextSOS=findByte(inputString,sosIndex+1,sosBytes);
+	for (int i=start; i<end; i++) {
+	    if (removeLoss && i + 2 < end &&
+		src[i] == lossBytes[0] &&
+		src[i+1] == lossBytes[1] &&
+		src[i+2] == lossBytes[2]) {
+		i += 2;
+		continue;
+	    }
+	    output[outputLength++] = src[i];
+	}
+    }
 
-	    if (stIndex<nextSOS) {
 
-		// between redundancy blocks, add everything apart
-		// from packet loss chars to the output
-		int st=(stIndex==-1)?0:stIndex+stBytes.length;
-		for (int i=st; i<nextSOS; i++) {
-		    if (inputString[i]==(byte)0xef &&
-			inputString[i+1]==(byte)0xbf &&
-			inputString[i+2]==(byte)0xbd) {
-			i+=2;
-			continue;
-		    }
-		    output.add(new Byte(inputString[i]));
-		}
-	    }
+    /**
+     * Copies the output to a new array of its exact length.
+     *
+     * @return The output
+     */
+    private byte[] copyOutput() {
+	byte[] result = new byte[outputLength];
+	System.arraycopy(output, 0, result, 0, outputLength);
+	return result;
+    }
 
 
-	    if (nextSOS==-1) {
-		int startCopyPos=0;
-		if (stIndex!= -1) {
-		    startCopyPos=stIndex+stBytes.length;
-		}
+    /**
+     * Gets the largest amount of data that can be sent in one call to
+     * addRedundancy. The length fields are two digits.
+     *
+     * @return The largest input length in bytes
+     */
+    public int getMaxInputLength() {
+	return 99;
+    }
 
-		// end of redundancy block, add everything afterwards
-		// except packet loss chars
-		done=true;
-		for (int i=startCopyPos; i<inputString.length; i++) {
-		    // EZ 041114: Removed. Should not filter away
-		    //            any incoming data.
-		    /*if (inputString[i]==0xef &&
-		      inputString[i+1]==0xbf &&
-		      inputString[i+2]==0xbd)
-		    {
-		        i+=2;
-		        continue;
-			}*/
-		    output.add(new Byte(inputString[i]));
-		}
+    /**
+     * Gets the number of bytes addRedundancy adds to its input, not
+     * counting the redundant copies of earlier input.
+     *
+     * @return The overhead in bytes
+     */
+    public int getOverhead() {
+	return sosBytes.length + 1 + digitCount(redundancyLevels, 1) +
+	    2 + 2*redundancyLevels + stBytes.length;
+    }
 
-	    }
+    /**
+     * Gets the number of redundant generations.
+     *
+     * @return The number of redundant generations
+     */
+    public int getRedundancyLevels() {
+	return redundancyLevels;
+    }
 
-	}
 
-	// convert to byte array
+    /**
+     * Gets the length of the data addRedundancy produces for an input.
+     *
+     * @param inputLength The length of the input.
+     * @return The length of the input plus redundancy.
+     */
+    public int getEncodedLength(int inputLength) {
+	int length = sosBytes.length + 1 + digitCount(redundancyLevels, 1) +
+	    digitCount(primarySeqNumber, 2) + stBytes.length + inputLength;
 
-	Object[] objarray=output.toArray();
-	byte[] result=new byte[objarray.length];
+	// zero lengths for nonused redundancy levels
+	length += 2*(redundancyLevels - historyCount);
 
-	for (int cnt=0; cnt<objarray.length; cnt++) {
-	    result[cnt] = ((Byte)objarray[cnt]).byteValue();
+	for (int i=0; i<historyCount; i++) {
+	    int l = historyLengths[(historyFirst + i) % redundancyLevels];
+	    length += digitCount(l, 2) + l;
 	}
 
-	return result;
+	return length;
     }
 
 
@@ -415,125 +447,93 @@ public class RedundancyFilter {
      * @return The T.140 text plus redundancy.
      */
     public byte[] addRedundancy(byte[] input) {
+	int length = (input == null) ? 0 : input.length;
+	byte[] result = new byte[getEncodedLength(length)];
+
+	addRedundancy(input, 0, length, result, 0);
+
+	return result;
+    }
 
-	byte[] rlevelsBytes=numberToBytes(redundancyLevels);
-	byte[] priseqBytes=numberToBytes(primarySeqNumber,2);
+
+    /**
+     * Adds T.140 redundancy to T.140 text, writing the result into an
+     * existing array. getEncodedLength tells how much room is needed.
+     * Nothing is allocated once the generation ring has grown to the
+     * data sizes in use.
+     *
+     * @param input The T.140 text, may be null if length is 0.
+     * @param offset The index of the text in input.
+     * @param length The length of the text, 0 to send old generations only.
+     * @param dst The array to write to.
+     * @param dstOffset The index in dst to write the first byte to.
+     * @return The index in dst after the last written byte.
+     */
+    public int addRedundancy(byte[] input, int offset, int length,
+			     byte[] dst, int dstOffset) {
+
+	int pos = dstOffset;
 
 	// the header
-	byte[] header=new byte[4+rlevelsBytes.length+priseqBytes.length];
-	header[0]=sosBytes[0];
-	header[1]=sosBytes[1];
-	header[2]=sosBytes[2];
+	System.arraycopy(sosBytes, 0, dst, pos, sosBytes.length);
+	pos += sosBytes.length;
 
 	//EZ 041114: Added rfc4103 redundancy support indicator.
-	if (redFlagOutgoing)
-	    header[3]=(byte)('1');
-	else
-	    header[3]=(byte)('0');
-
-	for (int i=0; i<rlevelsBytes.length; i++)
-	    header[4+i]=rlevelsBytes[i];
-
-	for (int i=0; i<priseqBytes.length; i++)
-	    header[4+rlevelsBytes.length+i]=priseqBytes[i];
-
-	// the body
-	int nbytes=0;
-	if (fifoBuffer.size()<redundancyLevels)
-	    for (int i=0;i<redundancyLevels-fifoBuffer.size(); i++)
-		nbytes+=2;
-
-	for (Iterator itor=fifoBuffer.iterator(); itor.hasNext(); ) {
-	    byte[] elmt=(byte[])itor.next();
-	    //EZ: Added check if last element was null
-	    //    Empty generation used to send old ones.
-	    byte[] lengthBytes = null;
-	    if (elmt!=null) {
-		lengthBytes=this.numberToBytes(elmt.length,2);
-		nbytes+=elmt.length+lengthBytes.length;
-	    }
-	    else {
-		lengthBytes=this.numberToBytes(0,2);
-		nbytes+=lengthBytes.length;
-	    }
-	}
+	dst[pos++] = (byte)(redFlagOutgoing ? '1' : '0');
 
-	byte[] body=new byte[nbytes];
-	int pos=0;
+	pos = putNumber(redundancyLevels, 1, dst, pos);
+	pos = putNumber(primarySeqNumber, 2, dst, pos);
 
 	// zero out nonused redundancy levels
-	if (fifoBuffer.size()<redundancyLevels) {
-	    for (int i=0;i<redundancyLevels-fifoBuffer.size(); i++){
-		body[pos]=(byte)'0';
-		body[pos+1]=(byte)'0';
-		pos+=2;
-	    }
+	for (int i=historyCount; i<redundancyLevels; i++) {
+	    dst[pos++] = (byte)'0';
+	    dst[pos++] = (byte)'0';
+	}
+
+	//EZ: Empty generations are used to send old ones.
+	for (int i=0; i<historyCount; i++) {
+	    int slot = (historyFirst + i) % redundancyLevels;
+
+	    pos = putNumber(historyLengths[slot], 2, dst, pos);
+	    System.arraycopy(history[slot], 0, dst, pos, historyLengths[slot]);
+	    pos += historyLengths[slot];
 	}
 
-	for (Iterator itor=fifoBuffer.iterator(); itor.hasNext(); ) {
-	    byte[] elmt=(byte[])itor.next();
+	System.arraycopy(stBytes, 0, dst, pos, stBytes.length);
+	pos += stBytes.length;
+
+	if (length > 0) {
+	    System.arraycopy(input, offset, dst, pos, length);
+	    pos += length;
+	}
 
-	    // length of the data
-	    byte[] lengthBytes = null;
-	    if (elmt==null) {
-		lengthBytes=this.numberToBytes(0,2);
+	// update the generation ring, replacing the oldest generation if
+	// it is full
+	if (redundancyLevels > 0) {
+	    int slot;
+	    if (historyCount < redundancyLevels) {
+		slot = (historyFirst + historyCount) % redundancyLevels;
+		historyCount++;
 	    }
 	    else {
-		lengthBytes=this.numberToBytes(elmt.length,2);
+		slot = historyFirst;
+		historyFirst = (historyFirst + 1) % redundancyLevels;
 	    }
-	    //EZ:  Added check if last element was null
-	    //     Empty generation used to send old ones
-	    for (int i=0; i<lengthBytes.length; i++)
-		body[pos+i]=lengthBytes[i];
-	    pos+=lengthBytes.length;
-
-	    // the data
-	    if (elmt!=null) {
-		for (int j=0; j<elmt.length; j++)
-		    body[pos+j]=elmt[j];
-
-		pos+=elmt.length;
+
+	    if (history[slot].length < length) {
+		history[slot] = new byte[length];
+	    }
+	    if (length > 0) {
+		System.arraycopy(input, offset, history[slot], 0, length);
 	    }
+	    historyLengths[slot] = length;
 	}
 
-	// convert to byte array
-	//EZ: Added check if called with no data. For
-	//    transmitting old redundant data.
-	byte[] result = null;
-	if (input == null)
-	    result = new byte[header.length +
-			     body.length +
-			     stBytes.length];// + 1];
-	else
-	    result=new byte[header.length +
-			   body.length +
-			   stBytes.length +
-			   input.length];//+1];
-
-	System.arraycopy(header,0,result,0,header.length);
-	System.arraycopy(body,0,result,header.length,body.length);
-	System.arraycopy(stBytes,0,result,header.length+
-			                  body.length,
-			                  stBytes.length);
-	//EZ: If function was called with no new data.
-	//    For transmitting old redundant data.
-	if (input != null)
-	    System.arraycopy(input,0,result,header.length+
-			                    body.length+
-   			                    stBytes.length,
-			                    input.length);
-
-	// update FIFO buffer
-	if (fifoBuffer.size() >= redundancyLevels)
-	    fifoBuffer.removeFirst();
-
-	fifoBuffer.addLast(input);
-
 	primarySeqNumber++;
 	if (primarySeqNumber==100)
 	    primarySeqNumber=0;
 
-	return result;
+	return pos;
     }
 
 }
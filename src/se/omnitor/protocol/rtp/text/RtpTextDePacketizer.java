@@ -30,11 +30,11 @@
  */
 package se.omnitor.protocol.rtp.text;
 
-import java.util.Hashtable;
-import java.util.Timer;
-import java.util.TimerTask;
 import java.util.logging.Logger;
 
+import se.omnitor.protocol.rtp.SequenceNumberUnwrapper;
+import se.omnitor.util.WheelTimer;
+
 /**
  * Extracts data from incoming RTP-Text packets. <br>
  * Also handles missing packets. <br>
@@ -62,25 +62,49 @@ public class RtpTextDePacketizer {
      */
     public static final int SIGNED_MASK                    = 0x80;
 
+    //Extends the received sequence numbers, all sequence numbers below
+    //are extended.
+    private SequenceNumberUnwrapper unwrapper = null;
+
     //The sequence number of the last received packet.
     private long lastSequenceNumber    = 0;
 
     //The sequence number of the last output packet
     private long lastOutput            = 0;
 
-    private Hashtable<Long, Long> missingPackets  = null;
-    private Hashtable<Long, byte[]> receivedPackets = null;
+    //Received, missing and lost packets not yet output
+    private SequenceWindow window = null;
+
+    //Whether the last data output was a LOSS_CHAR
+    private boolean lastOutputWasLoss = false;
+
+    //The number of MISSING slots in the window
+    private int missingCount = 0;
+
+    //Data output by the current call to decode, reused between calls
+    private byte[] outBytes = new byte[256];
+    private int outLength = 0;
 
     private int redundantGenerations = 0;
     private boolean redFlagIncoming = false;
 
+    //The RFC 2198 blocks of the last parsed packet, in header order. The
+    //primary block is last, generation g is at blockCount-1-g.
+    private int blockCount = 0;
+    private int[] blockPayloadType = new int[4];
+    private int[] blockTimeStampOffset = new int[4];
+    private int[] blockOffset = new int[4];
+    private int[] blockLength = new int[4];
+
     private int t140PayloadType;
-    private byte signedT140PayloadType;
 
-    private Timer timer = null;
+    private WheelTimer lossTimer = null;
+    private LossTimeout lossTimeout = null;
 
     private boolean firstPacket = true;
 
+    private boolean closed = false;
+
     private Logger logger;
 
     private long ssrc;
@@ -100,82 +124,12 @@ public class RtpTextDePacketizer {
         this.t140PayloadType = t140PayloadType;
         this.redFlagIncoming = redFlagIncoming;
 
-        timer = new Timer();
-
-        signedT140PayloadType = (byte)((byte)t140PayloadType | (byte)0x80);
-
-        missingPackets  = new Hashtable<Long, Long>(10);
-        receivedPackets = new Hashtable<Long, byte[]>(30);
-
-    }
-
-    /**
-     * Destructor. Preforms cleanup.
-     *
-     */
-    protected void finalize() {
-        timer.cancel();
-    }
-
-
-    /**
-     * Removes excess zeros that are received in the input buffer.
-     *
-     * @param in The received data
-     *
-     * @return Received data without excess zeros.
-     */
-    private byte[] filterZeros(byte[] in) {
-        byte[] filtered = null;
-        int start=0;
-        int end=in.length;
-        boolean lastData=true;
-
-        //Find start of data
-        int i=0;
-	boolean foundData = false;
-	for (i=0;i<in.length;i++) {
-            if (in[i]!=0) {
-                start=i;
-		foundData = true;
-                break;
-            }
-        }
-
-        //No data found
-	// Changed by Andreas Piirimets 2004-02-12
-        // if (i==(in.length-1)) {
-	if (!foundData) {
-            return new byte[0];
-        }
+        unwrapper = new SequenceNumberUnwrapper();
+        lossTimer = WheelTimer.getShared();
+        lossTimeout = new LossTimeout();
 
-        //Find end of data
-        for (int j=start;j<in.length;j++) {
-            if (in[j]==0) {
-                for (int k=(j+1);k<in.length;k++) {
-                    if (in[k]!=0) {
-                        lastData=false;
-                        break;
-                    }
-                }
-                if (lastData) {
-		    // Changed by Andreas Piirimets 2004-02-22
-		    // end=j-1;
-                    end=j;
-                    break;
-                }
-                lastData=true;
-            }
-        }
+        window = new SequenceWindow();
 
-	// Changed by Andreas Piirimets 2004-02-11
-        // int length = end-start+1;
-        int length = end-start;
-        filtered = new byte[length];
-
-	java.lang.System.arraycopy(in,start,filtered,0,length);
-
-        return filtered;
     }
 
     /**
@@ -191,34 +145,40 @@ public class RtpTextDePacketizer {
     public synchronized int decode(RtpTextBuffer inputBuffer,
 				   RtpTextBuffer outputBuffer) {
 
-        long currentSequenceNumber = inputBuffer.getSequenceNumber();
-        long currentTimeStamp      = inputBuffer.getTimeStamp();
-
-        byte[] outData    = new byte[0];
-        byte[] newData    = null;
-        byte[] oldOutData = null;
-        byte[] bufferData = new byte[inputBuffer.getLength()];
-	byte[] rawData    =(byte[])inputBuffer.getData();
-
 
-	//Get the data from the buffer
-	System.arraycopy((byte[])inputBuffer.getData(),
-			 inputBuffer.getOffset(),
-			 bufferData,
-			 0,
-			 inputBuffer.getLength());
+	byte[] data = inputBuffer.getData();
+	int start = inputBuffer.getOffset();
+	int end = start + inputBuffer.getLength();
 
+	outLength = 0;
 
-	//Get rid of any zeros
-	byte[] data = filterZeros(bufferData);
+	//Get rid of any zeros around the data
+	while (start < end && data[start] == 0) {
+	    start++;
+	}
+	while (end > start && data[end-1] == 0) {
+	    end--;
+	}
 
 	if (redFlagIncoming) {
-	    redundantGenerations=getRedundantGenerations(data);
+	    parseBlocks(data, start, end);
 	} else {
-	    redundantGenerations=0;
+	    setPrimaryBlock(0, start, end);
 	}
+	redundantGenerations = blockCount - 1;
 
 
+	// If wrong SSRC, ignore
+	if (!firstPacket && inputBuffer.getSsrc() != ssrc) {
+	    outputBuffer.setData(new byte[0]);
+	    return 1;
+	}
+
+	//Extend the sequence number, so that it keeps increasing when the
+	//16 bit sequence number wraps around.
+        long currentSequenceNumber =
+	    unwrapper.unwrap(inputBuffer.getSequenceNumber());
+
         //First packet received
         if (firstPacket) {
             firstPacket = false;
@@ -227,65 +187,49 @@ public class RtpTextDePacketizer {
 	    ssrc = inputBuffer.getSsrc();
         }
 
-        //Check for sequencenumber wraparound
-        else if (lastSequenceNumber >
-                 TextConstants.MAX_SEQUENCE_NUMBER-
-                 TextConstants.WRAP_AROUND_MARGIN &&
-                 currentSequenceNumber <
-                 TextConstants.WRAP_AROUND_MARGIN) {
-
-            //No packets lost
-            if (lastSequenceNumber == TextConstants.MAX_SEQUENCE_NUMBER &&
-                currentSequenceNumber==0) {
-                lastSequenceNumber=currentSequenceNumber-1;
-            }
-
-            //Lost packets
-            else {
-                lastSequenceNumber=lastSequenceNumber-
-                    TextConstants.MAX_SEQUENCE_NUMBER;
-            }
-        }
-
-	// If wrong SSRC, ignore
-	if (inputBuffer.getSsrc() != ssrc) {
-	    outputBuffer.setData(new byte[0]);
-	    return 1;
+	//Give up the oldest packets if the new one does not fit in the
+	//window together with them.
+	if (currentSequenceNumber - lastOutput > window.size()) {
+	    skipTo(currentSequenceNumber - window.size());
 	}
 
         //Packet received in order.
         if (currentSequenceNumber == (lastSequenceNumber+1)) {
 
-            byte[] d = getData(0, data);
-            receivedPackets.put(Long.valueOf(currentSequenceNumber),(byte [])d);
-            d=(byte[])receivedPackets.get(Long.valueOf(currentSequenceNumber));
+            window.setReceived(currentSequenceNumber, data,
+			       blockOffset[blockCount-1],
+			       blockLength[blockCount-1]);
             lastSequenceNumber = currentSequenceNumber;
 
         }
 
         //New packet(s) missing.
         else if ((currentSequenceNumber-lastSequenceNumber)>0) {
-            receivedPackets.put(Long.valueOf(currentSequenceNumber),
-                                getData(0,data));
-            for (int i=(int)(currentSequenceNumber - lastSequenceNumber)-1;
-                 i>0;
-                 i--) {
-                if (!(missingPackets.containsKey(
-                      Long.valueOf(currentSequenceNumber-i)))) {
-
-                    LossTimerTask ltt =
-			new LossTimerTask(currentSequenceNumber-i, this);
-                    if (redFlagIncoming) {
-                        timer.schedule((TimerTask)ltt,
-                              TextConstants.WAIT_FOR_MISSING_PACKET_RED);
-                    } else {
-                        timer.schedule((TimerTask)ltt,
-                                       TextConstants.WAIT_FOR_MISSING_PACKET);
-                    }
-                    missingPackets.put(Long.valueOf(currentSequenceNumber-i),
-                                       Long.valueOf(currentTimeStamp));
+            window.setReceived(currentSequenceNumber, data,
+			       blockOffset[blockCount-1],
+			       blockLength[blockCount-1]);
+
+	    long wait = TextConstants.WAIT_FOR_MISSING_PACKET;
+	    if (redFlagIncoming) {
+		wait = TextConstants.WAIT_FOR_MISSING_PACKET_RED;
+	    }
+	    long deadline = System.currentTimeMillis() + wait;
+
+            for (long seq=Math.max(lastSequenceNumber, lastOutput)+1;
+                 seq<currentSequenceNumber;
+                 seq++) {
+                if (window.getState(seq) == SequenceWindow.EMPTY) {
+                    window.setMissing(seq, deadline);
+		    missingCount++;
                 }
             }
+
+	    //Earlier deadlines are never later than this one, so an already
+	    //scheduled timeout is left as it is.
+	    if (missingCount > 0 && !closed &&
+		!lossTimer.isScheduled(lossTimeout)) {
+		lossTimer.schedule(lossTimeout, wait);
+	    }
             lastSequenceNumber = currentSequenceNumber;
         }
 
@@ -298,42 +242,22 @@ public class RtpTextDePacketizer {
         //Check if the redundant data in the received packet can be used to
         //restore missing packets.
         for (int i=0;i<=redundantGenerations;i++) {
-            receivedMissingPacket(currentSequenceNumber-i,i,data);
+            recoverPacket(currentSequenceNumber-i, i, data);
         }
 
         //Output data if possible.
         //Get packets in order from last output.
-        boolean rKey=receivedPackets.containsKey(Long.valueOf(lastOutput+1));
-	byte[] lastData = null;
-        while (rKey) {// || !mKey) {
-
-            //Get packets that are ready
-            if (rKey) {
-                oldOutData=outData;
-                newData   =(byte[])receivedPackets.get(Long.valueOf(lastOutput+1));
-
-		if (!(lastData == TextConstants.LOSS_CHAR &&
-		      newData == TextConstants.LOSS_CHAR)) {
-
-		    outData   =new byte[oldOutData.length + newData.length];
-		    System.arraycopy(oldOutData,
-				     0,
-				     outData,
-				     0,
-				     oldOutData.length);
-		    System.arraycopy(newData,
-				     0,
-				     outData,
-				     oldOutData.length,
-				     newData.length);
-
-		    lastData = newData;
-		}
+        int state = window.getState(lastOutput+1);
+        while (state == SequenceWindow.RECEIVED ||
+	       state == SequenceWindow.LOST) {
 
-		lastOutput++;
-		rKey=receivedPackets.containsKey(Long.valueOf(lastOutput+1));
+	    lastOutput++;
+	    appendOutput(window.getData(lastOutput),
+			 window.getLength(lastOutput),
+			 state == SequenceWindow.LOST);
+	    window.clear(lastOutput);
 
-            }
+	    state = window.getState(lastOutput+1);
         }
 
 
@@ -364,149 +288,208 @@ public class RtpTextDePacketizer {
             TextConstants.printDebug(""+outData[k],4);
             }*/
 
-        outputBuffer.setData(outData);
-        data=null;
+	//The only copy of the output
+	byte[] outData = new byte[outLength];
+	System.arraycopy(outBytes, 0, outData, 0, outLength);
 
-	//Make sure the buffer is cleared!
-	for (int k=0;k<rawData.length;k++) {
-	    rawData[k]=0;
-	}
-        inputBuffer.setData(rawData);
+        outputBuffer.setData(outData);
+	outputBuffer.setOffset(0);
+	outputBuffer.setLength(outLength);
 
         return 1;
     }
 
     /**
-     * Find out how many redundantGenerations there are in the received packet.
+     * Outputs everything up to and including a sequence number, whether it
+     * has arrived or not. Used when a gap is too large for the window.
+     * Packets that have not arrived are output as one LOSS_CHAR per run of
+     * missing packets.
      *
-     * @param data The packet.
-     *
-     * @return The number of redundant generations in this packet.
+     * @param sequenceNumber The last sequence number to output
      */
-    public int getRedundantGenerations(byte[] data) {
+    private void skipTo(long sequenceNumber) {
+
+	//Only sequence numbers up to the last received can be in the window
+	long last = Math.min(sequenceNumber, lastSequenceNumber);
+
+	while (lastOutput < last) {
+	    lastOutput++;
+
+	    int state = window.getState(lastOutput);
+	    if (state == SequenceWindow.RECEIVED ||
+		state == SequenceWindow.LOST) {
+		appendOutput(window.getData(lastOutput),
+			     window.getLength(lastOutput),
+			     state == SequenceWindow.LOST);
+	    } else {
+		if (state == SequenceWindow.MISSING) {
+		    missingCount--;
+		}
+		appendOutput(TextConstants.LOSS_CHAR,
+			     TextConstants.LOSS_CHAR.length, true);
+	    }
+	    window.clear(lastOutput);
+	}
 
-	int walker = 0;
-	int redGens = 0;
+	if (missingCount == 0) {
+	    lossTimer.cancel(lossTimeout);
+	}
 
-	while (data[walker] == signedT140PayloadType) {
-	    redGens++;
-	    walker += TextConstants.REDUNDANT_HEADER_SIZE;
+	if (lastOutput < sequenceNumber) {
+	    appendOutput(TextConstants.LOSS_CHAR,
+			 TextConstants.LOSS_CHAR.length, true);
+	    lastOutput = sequenceNumber;
 	}
+    }
 
-	if (data[walker] != t140PayloadType) {
-	    logger.warning("Malformed redundancy in RTP text packet, could " +
-			   "not fint primary data!");
+    /**
+     * Appends data to the output. A LOSS_CHAR directly following another
+     * LOSS_CHAR is dropped, one is enough to mark the loss. The output
+     * buffer grows by doubling, so appending is linear in the total length.
+     *
+     * @param newData The array holding the data, starting at index 0
+     * @param length The length of the data
+     * @param loss Whether the data is a LOSS_CHAR
+     */
+    private void appendOutput(byte[] newData, int length, boolean loss) {
+	if (length == 0) {
+	    return;
+	}
 
-	    redGens = 0;
+	if (loss && lastOutputWasLoss) {
+	    return;
 	}
+	lastOutputWasLoss = loss;
 
-	return redGens;
+	if (outLength + length > outBytes.length) {
+	    byte[] larger =
+		new byte[Math.max(outBytes.length * 2, outLength + length)];
+	    System.arraycopy(outBytes, 0, larger, 0, outLength);
+	    outBytes = larger;
+	}
 
+	System.arraycopy(newData, 0, outBytes, outLength, length);
+	outLength += length;
     }
 
     /**
-     * Utility function that extracts the data associated with a certain
-     * redundant generation. Generation 0 extracts the primary data.
+     * Parses the RFC 2198 headers of a packet in one pass and records the
+     * payload type, timestamp offset, position and length of every block.
+     * Nothing is copied. A packet with malformed headers is logged and used
+     * as primary data only.
      *
-     * @param generation The generation of data to be extracted.
-     * @param data       The packet.
-     *
-     * @return The extracted data. null if invalid generation.
+     * @param data The array holding the packet
+     * @param start The start of the packet in data
+     * @param end The end of the packet in data
      */
-    private byte[] getData(int generation,byte[] data) {
-        byte blockLengthByteHigh = 0x00;
-        byte blockLengthByteLow  = 0x00;
-        long startLength         = 0;
-        long blockLength         = 0;
+    private void parseBlocks(byte[] data, int start, int end) {
+	int walker = start;
+	int headers = 0;
+
+	//An empty packet has no headers at all
+	if (start == end) {
+	    setPrimaryBlock(0, start, end);
+	    return;
+	}
 
-        byte[] extractedData     = null;
+	//Redundant headers have the F bit set
+	while (walker < end && (data[walker] & SIGNED_MASK) != 0) {
+	    if (walker + TextConstants.REDUNDANT_HEADER_SIZE > end) {
+		break;
+	    }
 
-        long[] blockLengths      = new long[redundantGenerations];
+	    ensureBlocks(headers + 2);
+	    blockPayloadType[headers] = data[walker] & 0x7f;
+	    blockTimeStampOffset[headers] =
+		((data[walker+1] & 0xff) << 6) | ((data[walker+2] & 0xff) >> 2);
+	    blockLength[headers] =
+		((data[walker+2] & RTP_DEPACK_BLOCKLEN_UPPER_MASK) << 8) |
+		(data[walker+3] & RTP_DEPACK_BLOCKLEN_LOWER_MASK);
 
+	    headers++;
+	    walker += TextConstants.REDUNDANT_HEADER_SIZE;
+	}
 
-        //No redundancy
+	boolean valid = (walker < end && data[walker] == t140PayloadType);
+	walker += TextConstants.PRIMARY_HEADER_SIZE;
 
-        //Parse the length of the individual blocks.
-        for (int i=0;i<redundantGenerations;i++) {
-	    blockLengthByteHigh =
-		data[TextConstants.REDUNDANT_HEADER_SIZE*i+2];
-            blockLengthByteLow =
-		data[TextConstants.REDUNDANT_HEADER_SIZE*i+3];
-            blockLength = (long)(((blockLengthByteHigh &
-				   RTP_DEPACK_BLOCKLEN_UPPER_MASK) << 8)
-				 | (blockLengthByteLow &
-				    RTP_DEPACK_BLOCKLEN_LOWER_MASK));
-            blockLengths[i] = blockLength;
+	for (int cnt=0; cnt<headers && valid; cnt++) {
+	    blockOffset[cnt] = walker;
+	    walker += blockLength[cnt];
 
-        }
+	    valid = (blockPayloadType[cnt] == t140PayloadType &&
+		     walker <= end);
+	}
 
-        //Each generation takes 4 bytes header space + end header 1 byte.
-        if (redundantGenerations>0) {
-            startLength = redundantGenerations*
-                TextConstants.REDUNDANT_HEADER_SIZE+
-                TextConstants.PRIMARY_HEADER_SIZE;
-        }
+	if (!valid) {
+	    logger.warning("Malformed redundancy in RTP text packet, could " +
+			   "not fint primary data!");
 
-	//EZ 041114: Removed below, easier to use the stored
-	// blocklengths above.
-        //Get the correct startpoint for data.
-        //tempGeneration=redundantGenerations-generation;
-
-        //Find start index for primary data.
-        /*for (int i=0;i<tempGeneration;i++) {
-            blockLengthByteHigh=data[TextConstants.REDUNDANT_HEADER_SIZE*(i)+2];
-            blockLengthByteLow =data[TextConstants.REDUNDANT_HEADER_SIZE*(i)+3];
-            startLength += (long)(((blockLengthByteHigh &
-                                    RTP_DEPACK_BLOCKLEN_UPPER_MASK)<<8 ) |
-                                  (blockLengthByteLow &
-                                   RTP_DEPACK_BLOCKLEN_LOWER_MASK)) ;
-				   }*/
-
-	//Extract primary data.
-        if (generation==0) {
-	    long primaryStart = startLength;
-
-	    for (int i=0;i<blockLengths.length;i++) {
-		primaryStart+=blockLengths[i];
-	    }
+	    setPrimaryBlock(0, start, end);
+	    return;
+	}
 
-            extractedData = new byte[(int)(data.length-primaryStart)];
-            System.arraycopy(data,
-                             (int)primaryStart,
-                             extractedData,
-                             0,
-                             (data.length-(int)primaryStart));
+	setPrimaryBlock(headers, walker, end);
+    }
 
-            return extractedData;
-        }
+    /**
+     * Records the primary block as the last block of the packet.
+     *
+     * @param headers The number of redundant blocks before it
+     * @param start The start of the primary data
+     * @param end The end of the primary data
+     */
+    private void setPrimaryBlock(int headers, int start, int end) {
+	ensureBlocks(headers + 1);
+
+	blockPayloadType[headers] = t140PayloadType;
+	blockTimeStampOffset[headers] = 0;
+	blockOffset[headers] = start;
+	blockLength[headers] = end - start;
+	blockCount = headers + 1;
+    }
+
+    /**
+     * Makes sure the block descriptors have room for a number of blocks.
+     *
+     * @param count The number of blocks
+     */
+    private void ensureBlocks(int count) {
+	if (count <= blockOffset.length) {
+	    return;
+	}
 
-	//EZ: Removed below. Use the stored blocklengths.
-        //Get length of wanted block.
-        /*blockLengthByteHigh = data[TextConstants.REDUNDANT_HEADER_SIZE*
-                                   (redundantGenerations-generation)+2];
-        blockLengthByteLow  = data[TextConstants.REDUNDANT_HEADER_SIZE*
-                                   (redundantGenerations-generation)+3];
-        blockLength         = (long)(((blockLengthByteHigh &
-                                       RTP_DEPACK_BLOCKLEN_UPPER_MASK) << 8) |
-                                     (blockLengthByteLow &
-				     RTP_DEPACK_BLOCKLEN_LOWER_MASK));*/
-
-	//EZ 041114: Get the blocklength of the redundant generation
-	blockLength = blockLengths[redundantGenerations-generation];
-	for (int i=0;i<(redundantGenerations-generation);i++)
-	    startLength +=blockLengths[i];
-
-        //Extract wanted block.
-        extractedData = new byte[(int)blockLength]; //POSSIBLE LOSS
-        System.arraycopy(data,
-                         (int)startLength,
-                         extractedData,
-                         0,
-                         (int)blockLength);
-
-        return extractedData;
+	int size = Math.max(count, blockOffset.length * 2);
+	int[] tmp;
+
+	tmp = new int[size];
+	System.arraycopy(blockPayloadType, 0, tmp, 0, blockPayloadType.length);
+	blockPayloadType = tmp;
+	tmp = new int[size];
+	System.arraycopy(blockTimeStampOffset, 0, tmp, 0, blockTimeStampOffset.length);
+	blockTimeStampOffset = tmp;
+	tmp = new int[size];
+	System.arraycopy(blockOffset, 0, tmp, 0, blockOffset.length);
+	blockOffset = tmp;
+	tmp = new int[size];
+	System.arraycopy(blockLength, 0, tmp, 0, blockLength.length);
+	blockLength = tmp;
     }
 
+    /**
+     * Find out how many redundantGenerations there are in the received packet.
+     *
+     * @param data The packet.
+     *
+     * @return The number of redundant generations in this packet.
+     */
+    public synchronized int getRedundantGenerations(byte[] data) {
+
+	parseBlocks(data, 0, data.length);
+
+	return blockCount - 1;
+
+    }
 
     /**
      * Converts received UTF-8 text to the desired format.
@@ -541,15 +524,32 @@ public class RtpTextDePacketizer {
      * desired data.
      * @param data The data of the received packet.
      */
-    public void receivedMissingPacket(long sequenceNumber, int i,byte[] data) {
-	if (missingPackets.containsKey(Long.valueOf(sequenceNumber))) {
-
-	    missingPackets.remove(Long.valueOf(sequenceNumber));
-            if (!receivedPackets.containsKey(Long.valueOf(sequenceNumber))) {
-                receivedPackets.put(new Long(sequenceNumber),
-                                    (byte[])getData((i),
-                                                    data));
-            }
+    public synchronized void receivedMissingPacket(long sequenceNumber,
+						   int i, byte[] data) {
+	parseBlocks(data, 0, data.length);
+	recoverPacket(sequenceNumber, i, data);
+    }
+
+    /**
+     * Stores a generation of the last parsed packet if its packet is
+     * missing.
+     *
+     * @param sequenceNumber The sequence number the generation belongs to
+     * @param generation The generation, 0 is the primary data
+     * @param data The array holding the parsed packet
+     */
+    private void recoverPacket(long sequenceNumber, int generation,
+			       byte[] data) {
+	if (generation < blockCount &&
+	    window.getState(sequenceNumber) == SequenceWindow.MISSING) {
+
+	    int block = blockCount - 1 - generation;
+	    window.setReceived(sequenceNumber, data, blockOffset[block],
+			       blockLength[block]);
+
+	    if (--missingCount == 0) {
+		lossTimer.cancel(lossTimeout);
+	    }
         }
     }
 
@@ -559,91 +559,89 @@ public class RtpTextDePacketizer {
      *
      * @param sequenceNumber The sequence number of the lost packet.
      */
-    public void lostPacket(long sequenceNumber) {
-	missingPackets.remove(Long.valueOf(sequenceNumber));
-	if (!receivedPackets.containsKey(Long.valueOf(sequenceNumber))) {
-	    byte[] dataToAdd = TextConstants.LOSS_CHAR;
+    public synchronized void lostPacket(long sequenceNumber) {
 
-	    if (receivedPackets.containsKey(Long.valueOf(sequenceNumber+1)) &&
-		(receivedPackets.get(Long.valueOf(sequenceNumber+1)) ==
-		 TextConstants.LOSS_CHAR)) {
+	//The packet may have been recovered, or skipped because the window
+	//was full.
+	if (window.getState(sequenceNumber) == SequenceWindow.MISSING) {
+	    int length = TextConstants.LOSS_CHAR.length;
 
-		dataToAdd = new byte[0];
+	    //A lost slot with data holds a LOSS_CHAR
+	    if ((window.getState(sequenceNumber+1) == SequenceWindow.LOST &&
+		 window.getLength(sequenceNumber+1) > 0) ||
+		(window.getState(sequenceNumber-1) == SequenceWindow.LOST &&
+		 window.getLength(sequenceNumber-1) > 0)) {
 
-	    }
-	    else if (receivedPackets.containsKey(Long.valueOf(sequenceNumber-1)) &&
-		     (receivedPackets.get(Long.valueOf(sequenceNumber-1)) ==
-		      TextConstants.LOSS_CHAR)) {
-
-		dataToAdd = new byte[0];
+		length = 0;
 
 	    }
 
-	    receivedPackets.put(Long.valueOf(sequenceNumber), dataToAdd);
+	    window.setLost(sequenceNumber, TextConstants.LOSS_CHAR, 0, length);
+	    missingCount--;
 
 	}
     }
 
 
     /**
-     * Inner class that defines what to do when a packet is lost.
+     * Cancels the loss timeout, so that the shared timer no longer refers
+     * to this depacketizer. Packets decoded after this are still output,
+     * but missing packets are only given up when a later packet skips
+     * them.
      *
-     * @author Andreas Piirimets, Omnitor AB
      */
-    private class LossTimerTask extends TimerTask {
+    public synchronized void close() {
+	closed = true;
+	lossTimer.cancel(lossTimeout);
+    }
 
-        private long sequenceNumber = 0;
-        private RtpTextDePacketizer parent = null;
+    /**
+     * Gives up the missing packets whose deadline has passed, and schedules
+     * the loss timeout again for the next deadline. Called from the timer
+     * thread.
+     *
+     */
+    private synchronized void lossTimeoutExpired() {
+	if (closed) {
+	    return;
+	}
 
-        /**
-         * Create a new LossTimerTask.
-         *
-         * @param seq The sequence number of the missingpacket.
-         * @param parent The creator of this object.
-         */
-        public LossTimerTask(long seq, RtpTextDePacketizer parent) {
-            sequenceNumber=seq;
-            this.parent=parent;
-        }
+	long now = System.currentTimeMillis();
+	long next = Long.MAX_VALUE;
+
+	for (long seq=lastOutput+1;
+	     seq<=lastSequenceNumber && missingCount>0;
+	     seq++) {
 
+	    long deadline = window.getDeadline(seq);
+	    if (deadline <= now) {
+		lostPacket(seq);
+	    }
+	    else if (deadline < next) {
+		next = deadline;
+	    }
+	}
+
+	if (missingCount > 0 && next != Long.MAX_VALUE) {
+	    lossTimer.schedule(lossTimeout, next - now);
+	}
+    }
+
+
+    /**
+     * The loss timeout of this depacketizer. One entry serves all missing
+     * packets, it is scheduled for the earliest deadline.
+     */
+    private class LossTimeout extends WheelTimer.Entry {
 
         /**
          * Preform the work.
 	 *
          */
-        public void run() {
-
-	    //EZ: Removed below. Unessecary to make parseable data.
-	    //    Just add LOSS CHAR to output.
-
-	    // Changed by Andreas Piirimets 2004-03-11
-	    // The LOSS_CHAR has to be sent in UTF-8 format
-            //parent.receivedMissingPacket(sequenceNumber,
-            //                             0,
-            //                             TextConstants.LOSS_CHAR);
-	    //try {
-
-	    //parent.receivedMissingPacket
-	    //    (sequenceNumber,
-	    ///     0,
-	    //     TextConstants.LOSS_CHAR);
-		     //(new String(""+TextConstants.LOSS_CHAR_CHAR)).
-		     //getBytes("UTF-8"));
-		//}
-		//catch (java.io.UnsupportedEncodingException uee) {
-		//parent.receivedMissingPacket
-		//    (sequenceNumber,
-		//     0,
-		//     new byte[0]);
-		//}
-	    // End of change
-
-	    //EZ 041114: Add LOSS CHAR to output.
-	    parent.lostPacket(sequenceNumber);
-
-            this.cancel();
+        public void expire() {
+	    lossTimeoutExpired();
         }
 
     }
 
-}
\ No newline at end of file
+}
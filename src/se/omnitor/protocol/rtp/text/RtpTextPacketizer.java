@@ -30,7 +30,8 @@
  */
 package se.omnitor.protocol.rtp.text;
 
-import java.util.Vector;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 
 /**
  * Constructs an RTP-Text packet. <br>
@@ -85,8 +86,14 @@ public class RtpTextPacketizer {
     private int t140Pt;
     private int redGen;
 
-    //Previous generations that are to be transmitted redundantely.
-    private Vector<RTPTextRedData> redundantBuffer   = null;
+    //Previous generations that are to be transmitted redundantely, kept in
+    //a circular store of redGen slots. genFirst is the slot of the oldest
+    //generation. The slot arrays are reused and only grow.
+    private long[] genTimeStamps = null;
+    private byte[][] genData = null;
+    private int[] genLengths = null;
+    private int genFirst = 0;
+    private int genCount = 0;
 
     private long theTimeStamp        = 0;
     private long sequenceNumber      = 1;   //BEGIN AT WHICH NUMBER?
@@ -126,8 +133,91 @@ public class RtpTextPacketizer {
 
 	this.t140Pt = t140Pt;
 	this.redGen = redGen;
-	redundantBuffer = new Vector<RTPTextRedData>(0, 1);
 
+	genTimeStamps = new long[redGen];
+	genData = new byte[redGen][];
+	genLengths = new int[redGen];
+	for (int cnt=0; cnt<redGen; cnt++) {
+	    genData[cnt] = new byte[16];
+	}
+
+    }
+
+    /**
+     * Gets the number of redundant generations currently sent.
+     *
+     * @return The number of redundant generations
+     */
+    public synchronized int getRedundantGenerations() {
+	return redGen;
+    }
+
+    /**
+     * Changes the number of redundant generations between two packets. The
+     * newest generations that fit in the new number are kept, so raising
+     * the number takes effect at once and lowering it never drops the
+     * latest data. <br>
+     * <br>
+     * Going between zero and a positive number changes the payload format,
+     * which the receiver only follows if it is told about the new payload
+     * type. Changes while redundancy is in use should stay at one or more.
+     *
+     * @param newRedGen The number of redundant generations
+     */
+    public synchronized void setRedundantGenerations(int newRedGen) {
+	if (newRedGen < 0) {
+	    newRedGen = 0;
+	}
+	if (newRedGen == redGen) {
+	    return;
+	}
+
+	long[] newTimeStamps = new long[newRedGen];
+	byte[][] newData = new byte[newRedGen][];
+	int[] newLengths = new int[newRedGen];
+	int newCount = Math.min(genCount, newRedGen);
+
+	//Keep the newest generations, oldest first. Slot arrays are reused.
+	for (int cnt=0; cnt<newCount; cnt++) {
+	    int slot = (genFirst + genCount - newCount + cnt) % redGen;
+
+	    newTimeStamps[cnt] = genTimeStamps[slot];
+	    newData[cnt] = genData[slot];
+	    newLengths[cnt] = genLengths[slot];
+	}
+	for (int cnt=newCount; cnt<newRedGen; cnt++) {
+	    newData[cnt] = new byte[16];
+	}
+
+	genTimeStamps = newTimeStamps;
+	genData = newData;
+	genLengths = newLengths;
+	genFirst = 0;
+	genCount = newCount;
+	redGen = newRedGen;
+    }
+
+    /**
+     * Gets the number of bytes the next packet will take, if it is encoded
+     * with the given amount of primary data.
+     *
+     * @param inDataLength The number of primary data bytes
+     *
+     * @return The payload size in bytes
+     */
+    public synchronized int getEncodedLength(int inDataLength) {
+	int size = inDataLength;
+
+	if (redGen > 0) {
+	    size += redGen * TextConstants.REDUNDANT_HEADER_SIZE +
+		TextConstants.PRIMARY_HEADER_SIZE;
+
+	    for (int cnt=0; cnt<genCount; cnt++) {
+		size += genLengths[(genFirst + cnt) % redGen];
+	    }
+	}
+
+	return size;
     }
 
 
@@ -142,158 +232,134 @@ public class RtpTextPacketizer {
     public synchronized void encode(RtpTextBuffer inBuffer,
 				    RtpTextBuffer outBuffer) {
 
-	int i=0; //Packet index
+	ByteBuffer dst =
+	    ByteBuffer.allocate(getEncodedLength(inBuffer.getLength()));
 
-	theTimeStamp = java.lang.System.currentTimeMillis();//today.getTime();
-        byte[] inData = inBuffer.getData();
+	encode(inBuffer, outBuffer, dst);
+
+	return;
+    }
+
+    /**
+     * Encodes an RTP packet according to RFC 4103, straight into a buffer.
+     * The payload is written at the position of dst, which is moved past
+     * it. getEncodedLength tells how much room is needed. Nothing is
+     * allocated once the generation store has grown to the data sizes in
+     * use. <br>
+     * <br>
+     * The length, offset, timestamp and sequence number of the payload are
+     * written to outInfo. Its data is set to the array of dst, or to null
+     * if dst has no accessible array.
+     *
+     * @param inBuffer The data to be packetized.
+     * @param outInfo Receives information about the packet.
+     * @param dst The buffer to write the payload to.
+     *
+     * @throws BufferOverflowException If dst does not have room for the
+     * payload. Nothing is written and the packetizer state is unchanged.
+     */
+    public synchronized void encode(RtpTextBuffer inBuffer,
+				    RtpTextBuffer outInfo,
+				    ByteBuffer dst) {
+
+	byte[] inData = inBuffer.getData();
+	int inDataOffset = inBuffer.getOffset();
 	int inDataLength = inBuffer.getLength();
-        byte[] outData = null;
-	byte[] tempOutData = null;
-	int outDataSize = 0;
 
-	//Allocate memory for redundant headers
-	outData = new byte[redGen * TextConstants.REDUNDANT_HEADER_SIZE];
+	if (inData == null) {
+	    inDataLength = 0;
+	}
 
-	if (redundantBuffer == null) {
-	    redundantBuffer = new Vector<RTPTextRedData>(redGen, 0);
+	int start = dst.position();
+	if (dst.remaining() < getEncodedLength(inDataLength)) {
+	    throw new BufferOverflowException();
 	}
 
+	theTimeStamp = java.lang.System.currentTimeMillis();//today.getTime();
+
 	//Redundant data will be sent.
 	if (redGen > 0) {
-	    int gen = 0;
 
-	    int timestampOffset = 0;
-	    int dataLength = 0;
-
-	    //Compensate for insufficient redundant data.
-
-	    int border = redGen - redundantBuffer.size();
-	    for (int g=0;g<border;g++) {
-		//Timestamp 14 bits long
-		timestampOffset=0;
-		dataLength=0;
-
-		//Add redundant header to packet
-		outData[i++] = (byte)( RTP_RED_SET_BIT |
-				       t140Pt);
-		outData[i++] = (byte)(( RTP_PACK_TIMEOFFSET_UPPER_MASK &
-					timestampOffset) >>> 6);
-		outData[i++] = (byte)((( RTP_PACK_TIMEOFFSET_LOWER_MASK &
-					 timestampOffset) << 2) |
-				      (( RTP_PACK_BLOCKLEN_UPPER_MASK &
-					 dataLength) >>> 8));
-		outData[i++] = (byte)(( RTP_PACK_BLOCKLEN_LOWER_MASK &
-					dataLength));
+	    //Compensate for insufficient redundant data with empty
+	    //generations.
+	    for (int g=genCount;g<redGen;g++) {
+		putRedundantHeader(dst, 0, 0);
 	    }
 
 	    //Add headers for all redundant data, latest data LAST.
-	    for (gen=0;gen<redGen;gen++) {
-
-		//Check that enough redundant generations have been stored.
-		if (gen<redundantBuffer.size()) {
-		    RTPTextRedData dataObj =(RTPTextRedData)
-			(redundantBuffer.elementAt(gen));
-
-		    //Build the extra header info
-		    //Timestamp 14 bits long
-		    timestampOffset = (int)((theTimeStamp -
-					     dataObj.getTimeStamp())
-					    & 0x3FFF);
-		    if (dataObj.getData() == null) {
-			dataLength = 0;
-		    }
-		    else {
-			dataLength = dataObj.getData().length;
-		    }
-
-
-		    //Add redundant header to packet
-		    outData[i++] = (byte)( RTP_RED_SET_BIT |
-					   t140Pt);
-		    outData[i++] = (byte)((RTP_PACK_TIMEOFFSET_UPPER_MASK &
-					   timestampOffset) >>> 6);
-		    outData[i++] = (byte)(((RTP_PACK_TIMEOFFSET_LOWER_MASK &
-					    timestampOffset) << 2) |
-					  ((RTP_PACK_BLOCKLEN_UPPER_MASK &
-					    dataLength) >>> 8));
-		    outData[i++] = (byte)((RTP_PACK_BLOCKLEN_LOWER_MASK &
-					   dataLength));
-		}
+	    for (int gen=0;gen<genCount;gen++) {
+		int slot = (genFirst + gen) % redGen;
 
+		//Timestamp 14 bits long
+		putRedundantHeader(dst,
+				   (int)((theTimeStamp - genTimeStamps[slot])
+					 & 0x3FFF),
+				   genLengths[slot]);
 	    }
 
-	    //Allocate memory for primary header
-	    tempOutData = outData;
-	    outDataSize = outData.length;
-	    outData = new byte[outDataSize+TextConstants.PRIMARY_HEADER_SIZE];
-	    System.arraycopy(tempOutData, 0, outData, 0, outDataSize);
-
 	    //Add final header
-	    outData[i++] = (byte)( RTP_RED_CLEAR_BIT | t140Pt);
+	    dst.put((byte)( RTP_RED_CLEAR_BIT | t140Pt));
 
 	    //Add redundant data, latest data LAST.
-	    for (gen=0;gen < redGen;gen++) {
-
-		if (gen < redundantBuffer.size()) {
-		    RTPTextRedData dataObjData=(RTPTextRedData)
-			(redundantBuffer.elementAt(gen));
-
-		    //Add redundant data to packet
-		    byte[] dataArr = dataObjData.getData();
-
-		    if (dataArr != null) {
-
-			//Allocate memory for redundant data
-			tempOutData=outData;
-			outDataSize=outData.length;
-			outData = new byte[outDataSize+dataArr.length];
-			System.arraycopy(tempOutData,0,outData,0,outDataSize);
-
-			System.arraycopy(dataArr, 0, outData, i,
-					 dataArr.length);
-			i += dataArr.length;
-
-			dataArr = null;
-		    }
-
-		    dataObjData = null;
-		}
+	    for (int gen=0;gen<genCount;gen++) {
+		int slot = (genFirst + gen) % redGen;
 
+		dst.put(genData[slot], 0, genLengths[slot]);
 	    }
 
-	    //Remove first redundant element in vector.
-	    if (redundantBuffer.size() >= redGen) {
-		redundantBuffer.removeElementAt(0);
+	    //Store the new data, replacing the oldest generation if the
+	    //store is full.
+	    int slot;
+	    if (genCount < redGen) {
+		slot = (genFirst + genCount) % redGen;
+		genCount++;
+	    } else {
+		slot = genFirst;
+		genFirst = (genFirst + 1) % redGen;
 	    }
 
-	    //Add a new redundant element to vector.
-	    redundantBuffer.addElement(new RTPTextRedData(theTimeStamp,
-							  inData,
-							  0,
-							  inDataLength));
+	    if (genData[slot].length < inDataLength) {
+		genData[slot] = new byte[inDataLength];
+	    }
+	    if (inDataLength > 0) {
+		System.arraycopy(inData, inDataOffset, genData[slot], 0,
+				 inDataLength);
+	    }
+	    genTimeStamps[slot] = theTimeStamp;
+	    genLengths[slot] = inDataLength;
 	}
 
 	if (inDataLength > 0) {
 
-	    //Allocate memory for primary data
-	    tempOutData=outData;
-	    outDataSize=outData.length;
-	    outData = new byte[outDataSize+inDataLength];
-	    System.arraycopy(tempOutData,0,outData,0,outDataSize);
-
 	    //Add primary data to packet.
-	    System.arraycopy(inData, 0, outData, i, inData.length);
-	    i += inData.length;
+	    dst.put(inData, inDataOffset, inDataLength);
 	}
 
-	outBuffer.setData(outData);
-	outBuffer.setLength(outData.length);
-	outBuffer.setOffset(0);
-	outBuffer.setTimeStamp(theTimeStamp);
-	outBuffer.setSequenceNumber(sequenceNumber);
+	outInfo.setData(dst.hasArray() ? dst.array() : null);
+	outInfo.setLength(dst.position() - start);
+	outInfo.setOffset((dst.hasArray() ? dst.arrayOffset() : 0) + start);
+	outInfo.setTimeStamp(theTimeStamp);
+	outInfo.setSequenceNumber(sequenceNumber);
 	sequenceNumber++;
+    }
 
-	return;
+    /**
+     * Writes one redundant header.
+     *
+     * @param dst The buffer to write to
+     * @param timestampOffset The timestamp offset of the generation
+     * @param dataLength The length of the generation
+     */
+    private void putRedundantHeader(ByteBuffer dst, int timestampOffset,
+				    int dataLength) {
+	dst.put((byte)( RTP_RED_SET_BIT | t140Pt));
+	dst.put((byte)(( RTP_PACK_TIMEOFFSET_UPPER_MASK &
+			 timestampOffset) >>> 6));
+	dst.put((byte)((( RTP_PACK_TIMEOFFSET_LOWER_MASK &
+			  timestampOffset) << 2) |
+		       (( RTP_PACK_BLOCKLEN_UPPER_MASK &
+			  dataLength) >>> 8)));
+	dst.put((byte)(( RTP_PACK_BLOCKLEN_LOWER_MASK & dataLength)));
     }
 
 
@@ -0,0 +1,256 @@
+/*
+ * RTP text/t140 Library
+ *
+ * Copyright (C) 2004-2008 Board of Regents of the University of Wisconsin System
+ * (Univ. of Wisconsin-Madison, Trace R&D Center)
+ * Copyright (C) 2004-2008 Omnitor AB
+ *
+ * This software was developed with support from the National Institute on
+ * Disability and Rehabilitation Research, US Dept of Education under Grant
+ * # H133E990006 and H133E040014
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * Please send a copy of any improved versions of the library to:
+ * Gunnar Hellstrom, Omnitor AB, Renathvagen 2, SE 121 37 Johanneshov, SWEDEN
+ * Gregg Vanderheiden, Trace Center, U of Wisconsin, Madison, Wi 53706
+ *
+ */
+package se.omnitor.protocol.rtp.text;
+
+/**
+ * A fixed size reorder window for incoming packets. <br>
+ * <br>
+ * Every sequence number maps to the slot (sequence number modulo window
+ * size). A slot remembers which sequence number it currently holds, so a
+ * slot that still belongs to an older or newer packet reads as EMPTY. The
+ * depacketizer clears slots when their data has been output, which keeps
+ * the memory used by a session constant however long the call is. <br>
+ * <br>
+ * Every slot owns a data array, which the stored data is copied into. The
+ * array grows when needed and is kept when the slot is cleared, so storing
+ * data normally does not allocate. <br>
+ * <br>
+ * The window is not synchronized, the owner must serialize the calls.
+ *
+ * @author Unknown
+ */
+public class SequenceWindow {
+
+    /**
+     * Default number of slots.
+     */
+    public static final int DEFAULT_SIZE = 256;
+
+    /**
+     * Nothing is known about the sequence number.
+     */
+    public static final int EMPTY    = 0;
+
+    /**
+     * The packet is missing and may still be recovered.
+     */
+    public static final int MISSING  = 1;
+
+    /**
+     * The packet, or its data from a redundant generation, has arrived.
+     */
+    public static final int RECEIVED = 2;
+
+    /**
+     * The packet was given up, the slot holds the data that replaces it.
+     */
+    public static final int LOST     = 3;
+
+    private int mask;
+    private long[] sequenceNumbers;
+    private byte[] states;
+    private byte[][] data;
+    private int[] lengths;
+    private long[] deadlines;
+
+    /**
+     * Initializes a window with the default number of slots.
+     *
+     */
+    public SequenceWindow() {
+	this(DEFAULT_SIZE);
+    }
+
+    /**
+     * Initializes a window. The size is rounded up to a power of two.
+     *
+     * @param size The minimum number of slots
+     */
+    public SequenceWindow(int size) {
+	int slots = 1;
+	while (slots < size) {
+	    slots <<= 1;
+	}
+
+	mask = slots - 1;
+	sequenceNumbers = new long[slots];
+	states = new byte[slots];
+	data = new byte[slots][];
+	lengths = new int[slots];
+	deadlines = new long[slots];
+    }
+
+    /**
+     * Gets the number of slots, which is the largest distance between the
+     * oldest and newest sequence number the window can hold.
+     *
+     * @return The number of slots
+     */
+    public int size() {
+	return mask + 1;
+    }
+
+    /**
+     * Gets the state of a sequence number.
+     *
+     * @param seq The sequence number
+     *
+     * @return EMPTY, MISSING, RECEIVED or LOST
+     */
+    public int getState(long seq) {
+	int index = (int)(seq & mask);
+
+	if (sequenceNumbers[index] != seq) {
+	    return EMPTY;
+	}
+	return states[index];
+    }
+
+    /**
+     * Gets the array holding the data of a sequence number. The data starts
+     * at index 0, its length is given by getLength. The array belongs to the
+     * window and is overwritten when the slot is reused.
+     *
+     * @param seq The sequence number
+     *
+     * @return The data array of the slot
+     */
+    public byte[] getData(long seq) {
+	return data[(int)(seq & mask)];
+    }
+
+    /**
+     * Gets the length of the data stored for a sequence number.
+     *
+     * @param seq The sequence number
+     *
+     * @return The length, or 0 if the slot holds no data for seq
+     */
+    public int getLength(long seq) {
+	int index = (int)(seq & mask);
+
+	if (sequenceNumbers[index] != seq || states[index] == EMPTY) {
+	    return 0;
+	}
+	return lengths[index];
+    }
+
+    /**
+     * Gets the time when a missing packet is given up.
+     *
+     * @param seq The sequence number
+     *
+     * @return The deadline in milliseconds, or Long.MAX_VALUE if seq is not
+     * missing
+     */
+    public long getDeadline(long seq) {
+	if (getState(seq) != MISSING) {
+	    return Long.MAX_VALUE;
+	}
+	return deadlines[(int)(seq & mask)];
+    }
+
+    /**
+     * Marks a sequence number as missing.
+     *
+     * @param seq The sequence number
+     * @param deadline The time in milliseconds when the packet is given up
+     */
+    public void setMissing(long seq, long deadline) {
+	set(seq, MISSING, null, 0, 0);
+	deadlines[(int)(seq & mask)] = deadline;
+    }
+
+    /**
+     * Stores the data of a received packet. The data is copied.
+     *
+     * @param seq The sequence number
+     * @param src The array holding the data
+     * @param offset The start of the data in src
+     * @param length The length of the data
+     */
+    public void setReceived(long seq, byte[] src, int offset, int length) {
+	set(seq, RECEIVED, src, offset, length);
+    }
+
+    /**
+     * Stores the data that replaces a lost packet. The data is copied.
+     *
+     * @param seq The sequence number
+     * @param src The array holding the replacement data
+     * @param offset The start of the data in src
+     * @param length The length of the data, may be 0
+     */
+    public void setLost(long seq, byte[] src, int offset, int length) {
+	set(seq, LOST, src, offset, length);
+    }
+
+    /**
+     * Empties the slot of a sequence number, if it holds that number.
+     *
+     * @param seq The sequence number
+     */
+    public void clear(long seq) {
+	int index = (int)(seq & mask);
+
+	if (sequenceNumbers[index] == seq) {
+	    states[index] = EMPTY;
+	    lengths[index] = 0;
+	}
+    }
+
+    /**
+     * Empties all slots.
+     *
+     */
+    public void clear() {
+	for (int cnt=0; cnt<states.length; cnt++) {
+	    states[cnt] = EMPTY;
+	    lengths[cnt] = 0;
+	}
+    }
+
+    private void set(long seq, int state, byte[] src, int offset,
+		     int length) {
+	int index = (int)(seq & mask);
+
+	if (data[index] == null || data[index].length < length) {
+	    data[index] = new byte[Math.max(length, 16)];
+	}
+	if (length > 0) {
+	    System.arraycopy(src, offset, data[index], 0, length);
+	}
+
+	sequenceNumbers[index] = seq;
+	states[index] = (byte)state;
+	lengths[index] = length;
+    }
+}
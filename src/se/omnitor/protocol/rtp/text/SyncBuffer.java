@@ -30,7 +30,10 @@
  */
 package se.omnitor.protocol.rtp.text;
 
+import se.omnitor.util.BufferFlushListener;
+import se.omnitor.util.ByteRingBuffer;
 import se.omnitor.util.FifoBuffer;
+import se.omnitor.util.WheelTimer;
 
 //import LogClasses and Classes
 import java.util.logging.Level;
@@ -47,19 +50,75 @@ import java.util.logging.Logger;
  * the RTP sender. <br>
  * <br>
  * All data added to this class must be in T.140 format. <br>
+ * <br>
+ * The buffer times are kept by the shared WheelTimer, so a buffer has no
+ * thread of its own. The RTP sender either blocks in getData, or registers
+ * a BufferFlushListener which is called on every flush. <br>
+ * <br>
+ * Data is kept in one ring buffer. The first readyLength bytes have been
+ * flushed and are ready to be sent, the rest is waiting for the buffer
+ * time to pass. A flush only moves the mark, and sent data is removed from
+ * the front without moving the rest. <br>
+ * <br>
+ * For sending on CR, the end of the last CR is tracked as data is added,
+ * also when a CR is split over several calls to setData. A flush records
+ * the last CR within the ready data, so complete lines are released
+ * without searching the buffer. <br>
+ * <br>
+ * A backspace that follows a character which has not been sent yet
+ * cancels that character, and neither of them is sent. Characters are
+ * decoded as UTF-8 as they arrive, so a multi-byte character is removed
+ * whole. Line breaks, backspaces, the zero width no break space, other
+ * controls and the parts of control sequences are never cancelled, and
+ * neither is anything before them. <br>
  *
  * @author Andreas Piirimets, Omnitor AB
  */
-public class SyncBuffer extends FifoBuffer implements Runnable {
+public class SyncBuffer extends FifoBuffer {
 
-	private byte[] dataWaiting;
-	private byte[] dataToSend;
+	/**
+	 * If nothing is sent in this many milliseconds, a zero width no break
+	 * space is sent. This will prevent NATs closing the UDP hole.
+	 */
+	public static final int KEEP_ALIVE_TIME = 55000;
+
+	/**
+	 * CR (LINE SEPARATOR) in UTF-8.
+	 */
+	private static final byte[] CR_BYTES =
+		{ (byte)0xE2, (byte)0x80, (byte)0xA8 };
+
+	private ByteRingBuffer pending;
+	private int readyLength;
+
+	// Position after the last CR in pending, and after the last CR in the
+	// ready data. 0 if there is none.
+	private int lastCREnd;
+	private int readyCREnd;
+	// Number of bytes of a CR matched at the end of pending
+	private int crMatch;
+
+	// Position after the last character a backspace must not cancel
+	private int protectEnd;
+	// Continuation bytes missing from the last character, and its value
+	private int charRemaining;
+	private int codePoint;
+	// Control sequence state of the last character
+	private int sequenceState;
+
+	private static final int SEQUENCE_NONE   = 0;
+	private static final int SEQUENCE_ESC    = 1;
+	private static final int SEQUENCE_CSI    = 2;
+	private static final int SEQUENCE_STRING = 3;
 	private int redGensToSend;
 	private int redGen;
 	private int bufferTime;
 	private boolean running;
-	private Thread thread;
-	private Integer dataSetSemaphore;
+
+	private WheelTimer timer;
+	private FlushTimeout flushTimeout;
+	private boolean flushing;
+	private BufferFlushListener flushListener;
 
 	private boolean sendOnCR = false;
 
@@ -87,20 +146,32 @@ public class SyncBuffer extends FifoBuffer implements Runnable {
 		this.redGen = redGen;
 		this.bufferTime = bufferTime;
 
-		dataSetSemaphore = Integer.valueOf(0);
-
-		dataWaiting = new byte[0];
-		dataToSend = new byte[0];
+		pending = new ByteRingBuffer();
+		readyLength = 0;
+		lastCREnd = 0;
+		readyCREnd = 0;
+		crMatch = 0;
+		protectEnd = 0;
+		charRemaining = 0;
+		codePoint = 0;
+		sequenceState = SEQUENCE_NONE;
 
 		redGensToSend = 0;
 
 		running = false;
-		thread = null;
+		timer = WheelTimer.getShared();
+		flushTimeout = new FlushTimeout();
+		flushing = false;
+		flushListener = null;
 
 		logger.exiting(CLASS_NAME, METHOD);
 	}
 
-	public void start() {
+	/**
+	 * Starts keeping the buffer times.
+	 *
+	 */
+	public synchronized void start() {
 
 		// write methodname
 		final String METHOD = "start()";
@@ -111,67 +182,58 @@ public class SyncBuffer extends FifoBuffer implements Runnable {
 		if (!running) {
 			running = true;
 
-			thread = new Thread(this, "SyncBuffer");
-			thread.start();
+			if (pending.length() > readyLength) {
+				flushing = true;
+				timer.schedule(flushTimeout, bufferTime);
+			}
+			else {
+				flushing = false;
+				timer.schedule(flushTimeout, KEEP_ALIVE_TIME);
+			}
 		}
 
 		logger.exiting(CLASS_NAME, METHOD);
 	}
 
-	public void stop() {
+	/**
+	 * Stops keeping the buffer times. Data already in the buffer is kept.
+	 *
+	 */
+	public synchronized void stop() {
 		running = false;
-		thread.interrupt();
+		timer.cancel(flushTimeout);
+	}
+
+	/**
+	 * Registers a listener that is called on every flush, instead of waking
+	 * up a thread blocked in getData. Set to null to go back to getData.
+	 *
+	 * @param listener The listener
+	 */
+	public synchronized void setFlushListener(BufferFlushListener listener) {
+		flushListener = listener;
 	}
 
 	/**
 	 * Sets new data, this should be called from GUI. If data exists it is
-	 * appended to the existing data.
+	 * appended to the existing data. Backspaces cancel characters that
+	 * have not been sent yet.
 	 *
 	 * @param newData The data to set/append.
-	 *
-	 * @todo Backspace handling - If a backspace is in the middle of the
-	 * buffer, remove characters from buffer instead of sending backspace.
 	 */
 	public synchronized void setData(byte[] newData) {
-		synchronized (dataSetSemaphore) {
-			byte[] temp = null;
+		for (int cnt=0; cnt<newData.length; cnt++) {
+			if (newData[cnt] != TextConstants.BACKSPACE ||
+					!cancelLastCharacter()) {
 
-			if (dataWaiting.length == 0) {
-				dataWaiting = newData;
-			}
-			else {
-				temp = dataWaiting;
-				dataWaiting = new byte[temp.length + newData.length];
-				System.arraycopy(temp, 0, dataWaiting, 0, temp.length);
-				System.arraycopy(newData, 0, dataWaiting, temp.length,
-						newData.length);
+				addByte(newData[cnt]);
 			}
+		}
 
-			/*
-	      int arrayCnt = temp.length;
-	      int cnt;
-	      for (cnt=0; cnt<data.length; cnt++) {
-	      if (data[cnt] == TextConstants.BACKSPACE &&
-	      arrayCnt > 0 &&
-	      (int)this.data[arrayCnt-1] != 8) {
-
-	      arrayCnt--;
-	      }
-	      else {
-	      this.data[arrayCnt] = data[cnt];
-
-	      arrayCnt++;
-	      }
-	      }
-
-	      if (arrayCnt != cnt+temp.length) {
-	      temp = this.data;
-	      this.data = new byte[arrayCnt];
-	      System.arraycopy(temp, 0, this.data, 0, arrayCnt);
-	      }
-			 */
-
-			dataSetSemaphore.notify();
+		// Idle, send the data one buffer time from now
+		if (running && !flushing) {
+			flushing = true;
+			timer.schedule(flushTimeout, bufferTime);
 		}
 	}
 
@@ -191,60 +253,100 @@ public class SyncBuffer extends FifoBuffer implements Runnable {
 		// log when entering a method
 		logger.entering(CLASS_NAME, METHOD);
 
-		byte[] temp = null;
+		wait();
+
+		return takeData();
+	}
+
+	/**
+	 * Gets the data of this object into an array.
+	 * Data is consumed it is retrieved. Data that is due but does not fit
+	 * is kept, and is returned by takeData without waiting.
+	 * This method blocks until data is available.
+	 *
+	 * @param dst The array to copy the data to
+	 * @param offset The position in dst of the first byte
+	 * @param length The largest number of bytes to get
+	 *
+	 * @throws InterruptedException If the wait was interrupted.
+	 * @return The number of bytes copied to dst, zero if the flush only
+	 * called for redundancy
+	 */
+	public synchronized int getData(byte[] dst, int offset, int length)
+		throws InterruptedException {
 
 		wait();
 
-		try {
+		return takeData(dst, offset, length);
+	}
 
-			temp = dataToSend;
+	/**
+	 * Gets the data that is due to be sent, without waiting. This is
+	 * what a BufferFlushListener calls when it is told about a flush.
+	 * Data is consumed when it is retrieved.
+	 *
+	 * @return The data, an empty array if the flush only called for
+	 * redundancy
+	 */
+	public synchronized byte[] takeData() {
+		byte[] temp = new byte[getDueLength()];
 
-			if (sendOnCR) {
-				int containsCR = -100;
-				// check if temp contains CR, and if it does you get the position of the first element
-				containsCR = containsCR(temp);
+		return (takeData(temp, 0, temp.length) == temp.length) ?
+			temp : null;
+	}
 
-				// if data does not contain CR
-				if (containsCR == -1) {
-					temp = new byte[0];
-				}
-				//  data contains CR
-				else {
-					logger.logp(Level.FINEST, CLASS_NAME, METHOD, "data contains one or more CR");
-					byte[] temp2 = temp;
-					int lastPositionOfCR = containsCR;
-
-					// while we don't find the last CR
-					while((containsCR = getPositionOfNextCR(temp, lastPositionOfCR))>-1) {
-						lastPositionOfCR = containsCR;
-					}
-
-					temp = new byte[lastPositionOfCR+3];
-					System.arraycopy(temp2, 0, temp, 0, temp.length);
-
-					// if the data ended with an CR
-					if(lastPositionOfCR+3 == temp2.length) {
-						logger.logp(Level.FINEST, CLASS_NAME, METHOD, "the data ended with an CR");
-						dataToSend = new byte[0];
-					}
-					// else we have to save the data after the last CR
-					else {
-						logger.logp(Level.FINEST, CLASS_NAME, METHOD, "the data ended with data after last CR");
-						dataToSend = new byte[temp2.length -(lastPositionOfCR + 3)];
-						System.arraycopy(temp2, lastPositionOfCR+3, dataToSend, 0, dataToSend.length);
-					}
-				}
-			}
-			// else don't wait for CR
-			else {
-				dataToSend = new byte[0];
-			}
+	/**
+	 * Gets the data that is due to be sent into an array, without
+	 * waiting. Data is consumed when it is retrieved, data that does not
+	 * fit is kept.
+	 *
+	 * @param dst The array to copy the data to
+	 * @param offset The position in dst of the first byte
+	 * @param length The largest number of bytes to get
+	 *
+	 * @return The number of bytes copied to dst, -1 on failure
+	 */
+	public synchronized int takeData(byte[] dst, int offset, int length) {
+
+		// write methodname
+		final String METHOD = "takeData(byte[], int, int)";
+
+		int count = -1;
+
+		try {
+			count = pending.take(dst, offset,
+					Math.min(length, getDueLength()));
+			readyLength -= count;
+			readyCREnd = Math.max(0, readyCREnd - count);
+			lastCREnd = Math.max(0, lastCREnd - count);
+			protectEnd = Math.max(0, protectEnd - count);
 		}
 		catch(Throwable t) {
 			logger.logp(Level.SEVERE, CLASS_NAME, METHOD, "unexpected throwable caught (swallowed), probably due to a bug", t);
 		}
 
-		return temp;
+		return count;
+	}
+
+	/**
+	 * Gets the number of bytes that are due to be sent.
+	 *
+	 * @return The number of bytes
+	 */
+	private int getDueLength() {
+
+		// write methodname
+		final String METHOD = "getDueLength()";
+
+		if (sendOnCR) {
+			// Send up to and including the last CR, keep the rest
+			if (readyCREnd > 0) {
+				logger.logp(Level.FINEST, CLASS_NAME, METHOD, "data contains one or more CR");
+			}
+			return readyCREnd;
+		}
+
+		return readyLength;
 	}
 
 	/* A Java byte has a value of -128 to 127.  With eight bits and no
@@ -266,158 +368,239 @@ public class SyncBuffer extends FifoBuffer implements Runnable {
 	}
 
 	/**
-	 * checks if a bytearray contains a CR (carrige return)
-	 * @param byte[] aDataArray the byte array to be examined
-	 * @return int first position of the CR, returns -1 if aDataArray is null or
-	 * does not contain a CR
+	 * Appends one byte, and updates the CR position and the characters a
+	 * backspace may cancel.
+	 *
+	 * @param b The byte
 	 */
-	private int containsCR(byte[] aDataArray) {
+	private void addByte(byte b) {
+		int end = pending.length() + 1;
 
-		// if null or lenght<3, CR takes at least 3 bytes
-		if(aDataArray==null || aDataArray.length<3) {
-			return -1;
+		pending.append(b);
+
+		crMatch = matchCR(crMatch, b);
+		if (crMatch == CR_BYTES.length) {
+			lastCREnd = end;
+			crMatch = 0;
 		}
-		// else might contain CR, lets check
-		else {
-			// check for the value of CR in three bytes
-			for (int i = 0; i < aDataArray.length-2; i++) {
-				if (byteToPositiveInt(aDataArray[i]) == 0xE2 &&
-						byteToPositiveInt(aDataArray[i+1]) == 0x80 &&
-						byteToPositiveInt(aDataArray[i+2]) == 0xA8) {
-					return i;
-				}
+
+		if (charRemaining > 0 && (b & 0xC0) == 0x80) {
+			codePoint = (codePoint << 6) | (b & 0x3F);
+			charRemaining--;
+			if (charRemaining == 0) {
+				addCharacter(codePoint, end);
 			}
-			// we have checked the bytearray and it did not contain CR
-			return -1;
+			return;
 		}
-	}
 
-	/**
-	 * checks if for the position of next CR (carrige return) (if any)
-	 * @param byte[] aDataArray the byte array to be examined
-	 * @param int aStartPosition where to start looking for CR
-	 * @return int the first position of a CR from aStartPosition+3,
-	 * returns -1 if aDataArray is null or if aStartPosition+3 til end does not contain a CR
-	 * */
-	private int getPositionOfNextCR(byte[] aDataArray, int aStartPosition) {
-
-		byte[] temp = null;
-		int position = -1;
-		if(aDataArray==null || aStartPosition>(aDataArray.length-1)) {
-			return position;
+		// A new character. Broken UTF-8 is kept as it is and protected.
+		if ((b & 0x80) == 0) {
+			charRemaining = 0;
+			addCharacter(b, end);
+		}
+		else if ((b & 0xE0) == 0xC0) {
+			charRemaining = 1;
+			codePoint = b & 0x1F;
+		}
+		else if ((b & 0xF0) == 0xE0) {
+			charRemaining = 2;
+			codePoint = b & 0x0F;
+		}
+		else if ((b & 0xF8) == 0xF0) {
+			charRemaining = 3;
+			codePoint = b & 0x07;
 		}
 		else {
-			temp = new byte[aDataArray.length-(aStartPosition+3)];
-			System.arraycopy(aDataArray, aStartPosition+3, temp, 0, temp.length);
-			position = containsCR(temp);
-			if(position==-1) {
-				return position;
+			charRemaining = 0;
+			protectEnd = end;
+		}
+	}
+
+	/**
+	 * Decides whether a complete character may be cancelled by a later
+	 * backspace.
+	 *
+	 * @param c The character
+	 * @param end The position after the character
+	 */
+	private void addCharacter(int c, int end) {
+		boolean inSequence = sequenceState != SEQUENCE_NONE;
+
+		switch (sequenceState) {
+		case SEQUENCE_ESC:
+			if (c == '[') {
+				sequenceState = SEQUENCE_CSI;
+			}
+			else if (c == ']' || c == 'P' || c == 'X' || c == '^' ||
+					c == '_') {
+				sequenceState = SEQUENCE_STRING;
 			}
 			else {
-				return aStartPosition+position+3;
+				sequenceState = SEQUENCE_NONE;
+			}
+			break;
+		case SEQUENCE_CSI:
+			if (c >= 0x40 && c <= 0x7E) {
+				sequenceState = SEQUENCE_NONE;
+			}
+			break;
+		case SEQUENCE_STRING:
+			if (c == TextConstants.ST || c == TextConstants.BELL) {
+				sequenceState = SEQUENCE_NONE;
+			}
+			else if (c == TextConstants.ESC) {
+				sequenceState = SEQUENCE_ESC;
+			}
+			break;
+		default:
+			if (c == TextConstants.ESC) {
+				sequenceState = SEQUENCE_ESC;
+			}
+			else if (c == TextConstants.GRAPHIC_START) {
+				sequenceState = SEQUENCE_CSI;
+			}
+			else if (c == TextConstants.SOS || c == 0x90 || c == 0x9D ||
+					c == 0x9E || c == 0x9F) {
+				sequenceState = SEQUENCE_STRING;
 			}
+			break;
+		}
+
+		// Controls, including backspace and line breaks, and the zero
+		// width no break space are never cancelled
+		if (inSequence || sequenceState != SEQUENCE_NONE ||
+				c < 0x20 || (c >= 0x7F && c <= 0x9F) ||
+				c == TextConstants.LINE_SEPERATOR ||
+				c == TextConstants.ZERO_WIDTH_NO_BREAK_SPACE_CHAR) {
+
+			protectEnd = end;
 		}
 	}
 
+	/**
+	 * Removes the last character, if it has not been sent and may be
+	 * cancelled by a backspace.
+	 *
+	 * @return true if a character was removed
+	 */
+	private boolean cancelLastCharacter() {
+		int floor = Math.max(readyLength, Math.max(lastCREnd, protectEnd));
+		int start = pending.length() - 1;
+
+		if (charRemaining > 0 || start < floor) {
+			return false;
+		}
+
+		// Everything after floor is complete characters, find the first
+		// byte of the last one
+		while (start > floor && (pending.get(start) & 0xC0) == 0x80) {
+			start--;
+		}
+
+		pending.truncate(start);
+		return true;
+	}
+
+	/**
+	 * Advances the search for a CR (carrige return, LINE SEPARATOR in
+	 * UTF-8) by one byte.
+	 *
+	 * @param matched The number of CR bytes matched before b
+	 * @param b The next byte
+	 *
+	 * @return The number of CR bytes matched including b
+	 */
+	private static int matchCR(int matched, byte b) {
+		if (b == CR_BYTES[matched]) {
+			return matched + 1;
+		}
+		// A mismatch may still start a new CR
+		return (b == CR_BYTES[0]) ? 1 : 0;
+	}
+
 	/**
 	 * Empties the buffers.
 	 *
 	 */
 	public synchronized void empty() {
-		dataWaiting = new byte[0];
-		dataToSend = new byte[0];
+		pending.clear();
+		readyLength = 0;
+		lastCREnd = 0;
+		readyCREnd = 0;
+		crMatch = 0;
+		protectEnd = 0;
+		charRemaining = 0;
+		sequenceState = SEQUENCE_NONE;
 	}
 
 	/**
-	 * Handles buffer times.
+	 * Handles buffer times. Called by the timer when the buffer time has
+	 * passed, or when nothing has been sent for KEEP_ALIVE_TIME.
 	 *
 	 * @todo CPS handling - According to RFC 4103, we must respect remote's
 	 * CPS demand.
 	 */
-	public void run() {
+	private void flush() {
 
 		// write methodname
-		final String METHOD = "run()";
-		// log when entering a method
-		logger.entering(CLASS_NAME, METHOD);
-
+		final String METHOD = "flush()";
 
-		while (running) {
+		BufferFlushListener listener;
 
-			try {
-				synchronized (dataSetSemaphore) {
+		synchronized (this) {
 
-					if (dataWaiting.length == 0) {
-						dataSetSemaphore.wait(55000);
-					}
-				}
-			}
-			catch (InterruptedException ie) {
-				logger.logp(Level.FINE, CLASS_NAME, METHOD,
-						"Thread was interrupted, possibly caused by hangup",
-						ie);
+			if (!running) {
+				return;
 			}
 
 			// If nothing is sent in 55 seconds, send a zero width no break
 			// space. This will prevent NATs closing the UDP hole.
-			if (dataWaiting.length == 0) {
+			if (!flushing) {
 				setData(TextConstants.ZERO_WIDTH_NO_BREAK_SPACE);
+				return;
 			}
-			
 
 			logger.logp(Level.FINEST, CLASS_NAME, METHOD, "the buffertime is", Integer.valueOf(bufferTime));
-			while (dataWaiting.length > 0 || redGensToSend > 0) {
-				try {
-					Thread.sleep(bufferTime);
-				}
-				catch (InterruptedException ie) {
-				}
 
-				synchronized (this) {
-
-					if (dataWaiting.length > 0) {
-
-						if (dataToSend.length > 0) {
-							byte[] temp = dataToSend;
-							dataToSend =
-								new byte[temp.length + dataWaiting.length];
-							System.arraycopy(temp, 0, dataToSend, 0,
-									temp.length);
-							System.arraycopy(dataWaiting, 0, dataToSend,
-									temp.length, dataWaiting.length);
-						}
-						else {
-							dataToSend = dataWaiting;
-						}
-
-						dataWaiting = new byte[0];
-						notify();
-						redGensToSend = redGen;
-					}
-					else if (redGensToSend > 0) {
-
-						notify();
-
-						if (dataToSend.length == 0) {
-							redGensToSend--;
-						}
-					}
-					
+			if (pending.length() > readyLength) {
+				readyLength = pending.length();
+				readyCREnd = lastCREnd;
+				redGensToSend = redGen;
+			}
+			else if (redGensToSend > 0) {
+
+				if (readyLength == 0) {
+					redGensToSend--;
 				}
 			}
 
+			if (pending.length() > readyLength || redGensToSend > 0) {
+				timer.schedule(flushTimeout, bufferTime);
+			}
+			else {
+				flushing = false;
+				timer.schedule(flushTimeout, KEEP_ALIVE_TIME);
+			}
+
+			listener = flushListener;
+			if (listener == null) {
+				notify();
+			}
 		}
 
-		logger.exiting(CLASS_NAME, METHOD);
+		if (listener != null) {
+			listener.bufferFlushed(this);
+		}
 	}
 
 	/**
 	 * Sets the number of redundant generations.
 	 *
 	 * @param redGen The number of redundant generations to use, a value of
-	 * zero disables redundancy.
+	 * zero disables redundancy. A change takes effect the next time new
+	 * data is sent.
 	 */
-	public void setRedGen(int redGen) {
+	public synchronized void setRedGen(int redGen) {
 		this.redGen = redGen;
 	}
 
@@ -457,4 +640,20 @@ public class SyncBuffer extends FifoBuffer implements Runnable {
 	public int getBufferTime() {
 		return bufferTime;
 	}
+
+	/**
+	 * The flush timeout of this buffer. It is scheduled one buffer time
+	 * ahead while data or redundancy is to be sent, and KEEP_ALIVE_TIME
+	 * ahead while idle.
+	 */
+	private class FlushTimeout extends WheelTimer.Entry {
+
+		/**
+		 * Flushes the buffer.
+		 *
+		 */
+		public void expire() {
+			flush();
+		}
+	}
 }
\ No newline at end of file
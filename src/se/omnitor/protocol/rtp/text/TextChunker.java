@@ -0,0 +1,278 @@
+/*
+ * RTP text/t140 Library
+ *
+ * Copyright (C) 2004-2008 Board of Regents of the University of Wisconsin System
+ * (Univ. of Wisconsin-Madison, Trace R&D Center)
+ * Copyright (C) 2004-2008 Omnitor AB
+ *
+ * This software was developed with support from the National Institute on
+ * Disability and Rehabilitation Research, US Dept of Education under Grant
+ * # H133E990006 and H133E040014
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * Please send a copy of any improved versions of the library to:
+ * Gunnar Hellstrom, Omnitor AB, Renathvagen 2, SE 121 37 Johanneshov, SWEDEN
+ * Gregg Vanderheiden, Trace Center, U of Wisconsin, Madison, Wi 53706
+ *
+ */
+package se.omnitor.protocol.rtp.text;
+
+/**
+ * Splits T.140 data into pieces that fit in one RTP text packet. <br>
+ * <br>
+ * The RFC 2198 block length is 10 bits, the length fields of T.140
+ * redundancy are two digits and the whole packet has to fit in one
+ * datagram, so a large paste cannot be sent in one packet. Data added here
+ * is handed out in pieces of at most a given number of bytes. A piece
+ * never ends inside a UTF-8 character, so every packet holds complete
+ * characters even if the pieces before it are lost. <br>
+ * <br>
+ * The chunker is not synchronized, it is used by the transmit thread only.
+ *
+ * @author Unknown
+ */
+public class TextChunker {
+
+    /**
+     * The smallest piece size, large enough for any UTF-8 character.
+     */
+    public static final int MIN_CHUNK_SIZE = 4;
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private byte[] pending;
+    private int pendingOffset;
+    private int pendingLength;
+
+    /**
+     * Initializes an empty chunker.
+     *
+     */
+    public TextChunker() {
+	pending = new byte[256];
+	pendingOffset = 0;
+	pendingLength = 0;
+    }
+
+    /**
+     * Appends data to send.
+     *
+     * @param data The data, may be null
+     */
+    public void add(byte[] data) {
+	if (data != null) {
+	    add(data, 0, data.length);
+	}
+    }
+
+    /**
+     * Appends data to send.
+     *
+     * @param data The array holding the data
+     * @param offset The position of the first byte in data
+     * @param length The number of bytes
+     */
+    public void add(byte[] data, int offset, int length) {
+	if (length <= 0) {
+	    return;
+	}
+
+	if (pendingLength == 0) {
+	    pendingOffset = 0;
+	}
+	if (pendingOffset + pendingLength + length > pending.length) {
+	    byte[] temp = pending;
+	    if (pendingLength + length > temp.length) {
+		pending = new byte[Math.max(temp.length * 2,
+					    pendingLength + length)];
+	    }
+	    System.arraycopy(temp, pendingOffset, pending, 0, pendingLength);
+	    pendingOffset = 0;
+	}
+
+	System.arraycopy(data, offset, pending, pendingOffset + pendingLength,
+			 length);
+	pendingLength += length;
+    }
+
+    /**
+     * Indicates whether data is waiting to be sent.
+     *
+     * @return true if there is data left
+     */
+    public boolean hasMore() {
+	return pendingLength > 0;
+    }
+
+    /**
+     * Gets the number of bytes waiting to be sent.
+     *
+     * @return The number of bytes
+     */
+    public int getPendingLength() {
+	return pendingLength;
+    }
+
+    /**
+     * Takes the next piece of data. If all data fits it is returned in one
+     * piece, otherwise the piece ends at the last character boundary within
+     * maxLength.
+     *
+     * @param maxLength The largest piece size in bytes, values below
+     * MIN_CHUNK_SIZE are raised to it
+     *
+     * @return The piece, an empty array if there is no data
+     */
+    public byte[] next(int maxLength) {
+	return next(maxLength, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Takes the next piece of data, with at most a given number of
+     * characters.
+     *
+     * @param maxLength The largest piece size in bytes, values below
+     * MIN_CHUNK_SIZE are raised to it
+     * @param maxCharacters The largest number of characters in the piece
+     *
+     * @return The piece, an empty array if there is no data or
+     * maxCharacters is zero
+     */
+    public byte[] next(int maxLength, int maxCharacters) {
+	int length = nextLength(maxLength, maxCharacters);
+
+	if (length == 0) {
+	    return EMPTY;
+	}
+
+	byte[] chunk = new byte[length];
+	System.arraycopy(pending, pendingOffset, chunk, 0, length);
+	pendingOffset += length;
+	pendingLength -= length;
+
+	return chunk;
+    }
+
+    /**
+     * Takes the next piece of data into an array, with at most a given
+     * number of characters.
+     *
+     * @param dst The array to copy the piece to, with room for maxLength
+     * bytes, or MIN_CHUNK_SIZE if that is larger
+     * @param dstOffset The position in dst of the first byte
+     * @param maxLength The largest piece size in bytes, values below
+     * MIN_CHUNK_SIZE are raised to it
+     * @param maxCharacters The largest number of characters in the piece
+     *
+     * @return The number of bytes in the piece, zero if there is no data or
+     * maxCharacters is zero
+     */
+    public int next(byte[] dst, int dstOffset, int maxLength,
+		    int maxCharacters) {
+
+	int length = nextLength(maxLength, maxCharacters);
+
+	System.arraycopy(pending, pendingOffset, dst, dstOffset, length);
+	pendingOffset += length;
+	pendingLength -= length;
+
+	return length;
+    }
+
+    /**
+     * Finds the length of the next piece.
+     *
+     * @param maxLength The largest piece size in bytes
+     * @param maxCharacters The largest number of characters in the piece
+     *
+     * @return The number of bytes
+     */
+    private int nextLength(int maxLength, int maxCharacters) {
+	if (pendingLength == 0 || maxCharacters <= 0) {
+	    return 0;
+	}
+
+	if (maxLength < MIN_CHUNK_SIZE) {
+	    maxLength = MIN_CHUNK_SIZE;
+	}
+
+	int length = pendingLength;
+	if (length > maxLength) {
+	    length = maxLength;
+
+	    // Do not split a character, back up to its first byte
+	    while (length > 0 &&
+		   isContinuationByte(pending[pendingOffset + length])) {
+		length--;
+	    }
+
+	    // Only continuation bytes, which is invalid UTF-8. Send it as it
+	    // is rather than stalling.
+	    if (length == 0) {
+		length = maxLength;
+	    }
+	}
+
+	if (maxCharacters < length) {
+	    int characters = 0;
+
+	    for (int cnt=0; cnt<length; cnt++) {
+		if (!isContinuationByte(pending[pendingOffset + cnt])) {
+		    if (characters == maxCharacters) {
+			length = cnt;
+			break;
+		    }
+		    characters++;
+		}
+	    }
+	}
+
+	return length;
+    }
+
+    /**
+     * Removes all waiting data.
+     *
+     */
+    public void clear() {
+	pendingOffset = 0;
+	pendingLength = 0;
+    }
+
+    /**
+     * Counts the UTF-8 characters in some data.
+     *
+     * @param data The data
+     * @param offset The start of the data
+     * @param length The number of bytes
+     *
+     * @return The number of characters
+     */
+    public static int countCharacters(byte[] data, int offset, int length) {
+	int count = 0;
+
+	for (int cnt=offset; cnt<offset+length; cnt++) {
+	    if (!isContinuationByte(data[cnt])) {
+		count++;
+	    }
+	}
+	return count;
+    }
+
+    private static boolean isContinuationByte(byte b) {
+	return (b & 0xC0) == 0x80;
+    }
+}
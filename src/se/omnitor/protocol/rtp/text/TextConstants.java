@@ -99,6 +99,11 @@ public abstract class TextConstants {
      */
     public static final int PRIMARY_HEADER_SIZE   = 1;
 
+    /**
+     * Largest block length that fits in a redundant header.
+     */
+    public static final int MAX_BLOCK_LENGTH      = 1023;
+
 
     //Sequence number constants
 
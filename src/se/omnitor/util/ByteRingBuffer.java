@@ -0,0 +1,273 @@
+/*
+ * RTP text/t140 Library
+ *
+ * Copyright (C) 2004-2008 Board of Regents of the University of Wisconsin System
+ * (Univ. of Wisconsin-Madison, Trace R&D Center)
+ * Copyright (C) 2004-2008 Omnitor AB
+ *
+ * This software was developed with support from the National Institute on
+ * Disability and Rehabilitation Research, US Dept of Education under Grant
+ * # H133E990006 and H133E040014
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * Please send a copy of any improved versions of the library to:
+ * Gunnar Hellstrom, Omnitor AB, Renathvagen 2, SE 121 37 Johanneshov, SWEDEN
+ * Gregg Vanderheiden, Trace Center, U of Wisconsin, Madison, Wi 53706
+ *
+ */
+package se.omnitor.util;
+
+/**
+ * A growable FIFO of bytes stored in a circular array. <br>
+ * <br>
+ * Appending copies the new bytes only, and the array doubles when it is
+ * full, so filling the buffer one byte at a time takes linear time.
+ * Removing bytes from the front or the back just moves an index. Bytes can
+ * be read anywhere in the buffer without removing them. <br>
+ * <br>
+ * The buffer is not synchronized, the owner must serialize the calls.
+ *
+ * @author Unknown
+ */
+public class ByteRingBuffer {
+
+    private static final int MIN_CAPACITY = 16;
+
+    private byte[] buffer;
+    private int mask;
+    private int head;
+    private int length;
+
+    /**
+     * Initializes an empty buffer.
+     *
+     */
+    public ByteRingBuffer() {
+	this(MIN_CAPACITY);
+    }
+
+    /**
+     * Initializes an empty buffer.
+     *
+     * @param capacity The initial capacity, rounded up to a power of two
+     */
+    public ByteRingBuffer(int capacity) {
+	int size = MIN_CAPACITY;
+	while (size < capacity) {
+	    size <<= 1;
+	}
+
+	buffer = new byte[size];
+	mask = size - 1;
+	head = 0;
+	length = 0;
+    }
+
+    /**
+     * Gets the number of bytes in the buffer.
+     *
+     * @return The number of bytes
+     */
+    public int length() {
+	return length;
+    }
+
+    /**
+     * Indicates whether the buffer is empty.
+     *
+     * @return true if there are no bytes in the buffer
+     */
+    public boolean isEmpty() {
+	return length == 0;
+    }
+
+    /**
+     * Gets a byte without removing it.
+     *
+     * @param index The position of the byte, 0 is the oldest byte
+     *
+     * @return The byte
+     *
+     * @throws IndexOutOfBoundsException If index is outside the buffer
+     */
+    public byte get(int index) {
+	if (index < 0 || index >= length) {
+	    throw new IndexOutOfBoundsException("Index: " + index +
+						", length: " + length);
+	}
+	return buffer[(head + index) & mask];
+    }
+
+    /**
+     * Appends all bytes of an array.
+     *
+     * @param data The bytes to append, may be null
+     */
+    public void append(byte[] data) {
+	if (data != null) {
+	    append(data, 0, data.length);
+	}
+    }
+
+    /**
+     * Appends bytes.
+     *
+     * @param data The array holding the bytes
+     * @param offset The position of the first byte in data
+     * @param count The number of bytes to append
+     */
+    public void append(byte[] data, int offset, int count) {
+	ensureCapacity(length + count);
+
+	int tail = (head + length) & mask;
+	int first = Math.min(count, buffer.length - tail);
+
+	System.arraycopy(data, offset, buffer, tail, first);
+	System.arraycopy(data, offset + first, buffer, 0, count - first);
+	length += count;
+    }
+
+    /**
+     * Appends one byte.
+     *
+     * @param b The byte
+     */
+    public void append(byte b) {
+	ensureCapacity(length + 1);
+	buffer[(head + length) & mask] = b;
+	length++;
+    }
+
+    /**
+     * Copies bytes to an array without removing them.
+     *
+     * @param index The position in the buffer of the first byte
+     * @param dst The array to copy to
+     * @param dstOffset The position in dst of the first byte
+     * @param count The number of bytes to copy
+     *
+     * @throws IndexOutOfBoundsException If the bytes are not all in the
+     * buffer
+     */
+    public void copy(int index, byte[] dst, int dstOffset, int count) {
+	if (index < 0 || count < 0 || index + count > length) {
+	    throw new IndexOutOfBoundsException("Index: " + index +
+						", count: " + count +
+						", length: " + length);
+	}
+
+	int start = (head + index) & mask;
+	int first = Math.min(count, buffer.length - start);
+
+	System.arraycopy(buffer, start, dst, dstOffset, first);
+	System.arraycopy(buffer, 0, dst, dstOffset + first, count - first);
+    }
+
+    /**
+     * Removes the oldest bytes and returns them in a new array.
+     *
+     * @param count The number of bytes
+     *
+     * @return The bytes
+     */
+    public byte[] take(int count) {
+	byte[] data = new byte[count];
+
+	copy(0, data, 0, count);
+	skip(count);
+	return data;
+    }
+
+    /**
+     * Removes the oldest bytes and copies them to an array.
+     *
+     * @param dst The array to copy to
+     * @param dstOffset The position in dst of the first byte
+     * @param count The largest number of bytes to take
+     *
+     * @return The number of bytes taken, less than count if the buffer
+     * holds fewer bytes
+     */
+    public int take(byte[] dst, int dstOffset, int count) {
+	count = Math.min(count, length);
+
+	copy(0, dst, dstOffset, count);
+	skip(count);
+	return count;
+    }
+
+    /**
+     * Removes the oldest bytes without copying them.
+     *
+     * @param count The number of bytes, no more than the length
+     */
+    public void skip(int count) {
+	if (count < 0 || count > length) {
+	    throw new IndexOutOfBoundsException("Count: " + count +
+						", length: " + length);
+	}
+
+	head = (head + count) & mask;
+	length -= count;
+	if (length == 0) {
+	    head = 0;
+	}
+    }
+
+    /**
+     * Removes the newest bytes, keeping the given number of bytes.
+     *
+     * @param newLength The number of bytes to keep, no more than the
+     * length
+     */
+    public void truncate(int newLength) {
+	if (newLength < 0 || newLength > length) {
+	    throw new IndexOutOfBoundsException("New length: " + newLength +
+						", length: " + length);
+	}
+
+	length = newLength;
+	if (length == 0) {
+	    head = 0;
+	}
+    }
+
+    /**
+     * Removes all bytes. The array is kept.
+     *
+     */
+    public void clear() {
+	head = 0;
+	length = 0;
+    }
+
+    private void ensureCapacity(int capacity) {
+	if (capacity <= buffer.length) {
+	    return;
+	}
+
+	int size = buffer.length;
+	while (size < capacity) {
+	    size <<= 1;
+	}
+
+	byte[] newBuffer = new byte[size];
+	copy(0, newBuffer, 0, length);
+	buffer = newBuffer;
+	mask = size - 1;
+	head = 0;
+    }
+}
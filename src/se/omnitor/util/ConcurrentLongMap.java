@@ -0,0 +1,310 @@
+/*
+ * RTP text/t140 Library
+ *
+ * Copyright (C) 2004-2008 Board of Regents of the University of Wisconsin System
+ * (Univ. of Wisconsin-Madison, Trace R&D Center)
+ * Copyright (C) 2004-2008 Omnitor AB
+ *
+ * This software was developed with support from the National Institute on
+ * Disability and Rehabilitation Research, US Dept of Education under Grant
+ * # H133E990006 and H133E040014
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * Please send a copy of any improved versions of the library to:
+ * Gunnar Hellstrom, Omnitor AB, Renathvagen 2, SE 121 37 Johanneshov, SWEDEN
+ * Gregg Vanderheiden, Trace Center, U of Wisconsin, Madison, Wi 53706
+ *
+ */
+package se.omnitor.util;
+
+import java.util.Enumeration;
+import java.util.NoSuchElementException;
+
+/**
+ * A map with primitive long keys, made for tables that are read far more
+ * often than they are changed, such as the SSRC table of an RTP session.
+ * <br>
+ * <br>
+ * Lookups never lock and never allocate. Changes are made to a copy of the
+ * table, which is then published in one volatile write, so readers always
+ * see a complete table. Writers are serialized. Enumerations walk the table
+ * as it was when they were created and are not affected by later changes.
+ *
+ * @author Unknown
+ */
+public class ConcurrentLongMap<V> {
+
+    private static final int MIN_CAPACITY = 8;
+
+    /**
+     * An immutable open addressing table. A slot is empty when its value is
+     * null.
+     */
+    private static final class Table {
+	final long[] keys;
+	final Object[] values;
+	final int size;
+	final int shift;
+
+	Table(int capacity, int size) {
+	    keys = new long[capacity];
+	    values = new Object[capacity];
+	    this.size = size;
+	    shift = 64 - Integer.numberOfTrailingZeros(capacity);
+	}
+    }
+
+    private volatile Table table;
+
+    /**
+     * Initializes an empty map.
+     *
+     */
+    public ConcurrentLongMap() {
+	table = new Table(MIN_CAPACITY, 0);
+    }
+
+    /**
+     * Gets the value stored for a key.
+     *
+     * @param key The key to look for
+     *
+     * @return The value, or null if the key is not in the map
+     */
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+	Table t = table;
+	int index = indexOf(t, key);
+
+	if (index < 0) {
+	    return null;
+	}
+	return (V)t.values[index];
+    }
+
+    /**
+     * Indicates whether a key is in the map.
+     *
+     * @param key The key to look for
+     *
+     * @return true if the key is in the map
+     */
+    public boolean containsKey(long key) {
+	return indexOf(table, key) >= 0;
+    }
+
+    /**
+     * Gets the number of entries.
+     *
+     * @return The number of entries
+     */
+    public int size() {
+	return table.size;
+    }
+
+    /**
+     * Stores a value, replacing any value already stored for the key.
+     *
+     * @param key The key
+     * @param value The value, must not be null
+     *
+     * @return The value that was replaced, or null
+     */
+    public synchronized V put(long key, V value) {
+	if (value == null) {
+	    throw new NullPointerException("Value must not be null");
+	}
+
+	V old = get(key);
+	Table t = copy(table, table.size + (old == null ? 1 : 0), false, key);
+	insert(t, key, value);
+	table = t;
+
+	return old;
+    }
+
+    /**
+     * Stores a value only if the key is not already in the map.
+     *
+     * @param key The key
+     * @param value The value, must not be null
+     *
+     * @return The value already stored for the key, or null if the new
+     * value was stored
+     */
+    public synchronized V putIfAbsent(long key, V value) {
+	V old = get(key);
+
+	if (old == null) {
+	    put(key, value);
+	}
+	return old;
+    }
+
+    /**
+     * Removes a key.
+     *
+     * @param key The key to remove
+     *
+     * @return The value that was removed, or null if the key was not in the
+     * map
+     */
+    public synchronized V remove(long key) {
+	V old = get(key);
+
+	if (old != null) {
+	    table = copy(table, table.size - 1, true, key);
+	}
+	return old;
+    }
+
+    /**
+     * Removes a key only if it is mapped to a given value.
+     *
+     * @param key The key to remove
+     * @param value The value the key must be mapped to
+     *
+     * @return true if the key was removed
+     */
+    public synchronized boolean remove(long key, V value) {
+	if (get(key) != value) {
+	    return false;
+	}
+
+	remove(key);
+	return true;
+    }
+
+    /**
+     * Removes all entries.
+     *
+     */
+    public synchronized void clear() {
+	table = new Table(MIN_CAPACITY, 0);
+    }
+
+    /**
+     * Enumerates the values of the map as it is right now. The enumeration
+     * is not affected by later changes to the map.
+     *
+     * @return The values
+     */
+    public Enumeration<V> elements() {
+	return new Snapshot<V>(table);
+    }
+
+    /**
+     * Finds the slot holding a key.
+     *
+     * @param t The table to search
+     * @param key The key to look for
+     *
+     * @return The slot index, or -1 if the key is not in the table
+     */
+    private static int indexOf(Table t, long key) {
+	int mask = t.keys.length - 1;
+	int index = hash(t, key);
+
+	while (t.values[index] != null) {
+	    if (t.keys[index] == key) {
+		return index;
+	    }
+	    index = (index + 1) & mask;
+	}
+	return -1;
+    }
+
+    /**
+     * Creates a copy of a table that is large enough for the given number of
+     * entries. Skipping a key is how entries are removed.
+     *
+     * @param t The table to copy
+     * @param newSize The number of entries the copy will hold
+     * @param skip true to leave out skipKey, false to copy all entries
+     * @param skipKey The key to leave out
+     *
+     * @return The copy
+     */
+    private static Table copy(Table t, int newSize, boolean skip,
+			      long skipKey) {
+	int capacity = MIN_CAPACITY;
+
+	// Keep the load factor at or below one half
+	while (capacity < newSize * 2) {
+	    capacity <<= 1;
+	}
+
+	Table n = new Table(capacity, newSize);
+	for (int cnt=0; cnt<t.values.length; cnt++) {
+	    if (t.values[cnt] != null &&
+		!(skip && t.keys[cnt] == skipKey)) {
+		insert(n, t.keys[cnt], t.values[cnt]);
+	    }
+	}
+	return n;
+    }
+
+    private static void insert(Table t, long key, Object value) {
+	int mask = t.keys.length - 1;
+	int index = hash(t, key);
+
+	while (t.values[index] != null && t.keys[index] != key) {
+	    index = (index + 1) & mask;
+	}
+	t.keys[index] = key;
+	t.values[index] = value;
+    }
+
+    private static int hash(Table t, long key) {
+	// Fibonacci hashing, SSRCs are random but other keys may not be
+	return (int)((key * 0x9E3779B97F4A7C15L) >>> t.shift);
+    }
+
+    /**
+     * Walks the slots of one table.
+     */
+    private static final class Snapshot<V> implements Enumeration<V> {
+	private final Object[] values;
+	private int index;
+
+	Snapshot(Table t) {
+	    values = t.values;
+	    index = 0;
+	    skipEmpty();
+	}
+
+	public boolean hasMoreElements() {
+	    return index < values.length;
+	}
+
+	@SuppressWarnings("unchecked")
+	public V nextElement() {
+	    if (index >= values.length) {
+		throw new NoSuchElementException();
+	    }
+
+	    V value = (V)values[index++];
+	    skipEmpty();
+	    return value;
+	}
+
+	private void skipEmpty() {
+	    while (index < values.length && values[index] == null) {
+		index++;
+	    }
+	}
+    }
+}
@@ -37,14 +37,14 @@ package se.omnitor.util;
  */
 public class FifoBuffer {
     
-    private byte[] dataWaiting;
+    private ByteRingBuffer dataWaiting;
     
     /**
      * Initializes.
      *
      */
     public FifoBuffer() {
-	dataWaiting = new byte[0];
+	dataWaiting = new ByteRingBuffer();
     }
 
     /**
@@ -54,16 +54,7 @@ public class FifoBuffer {
      */
     public synchronized void setData(byte[] newData) {
 
-	if (dataWaiting.length == 0) {
-	    dataWaiting = newData;
-	}
-	else {
-		byte[] temp = dataWaiting;
-	    dataWaiting = new byte[temp.length + newData.length];
-	    System.arraycopy(temp, 0, dataWaiting, 0, temp.length);
-	    System.arraycopy(newData, 0, dataWaiting, temp.length, 
-			     newData.length);
-	}
+	dataWaiting.append(newData);
 
 	notify();
 
@@ -77,16 +68,33 @@ public class FifoBuffer {
      * @return The data.
      */ 
     public synchronized byte[] getData() throws InterruptedException {
-	byte[] temp;
-
-	if (dataWaiting.length == 0) {
+	if (dataWaiting.isEmpty()) {
 	    wait();
 	}
 	
-	temp = dataWaiting;
-	dataWaiting = new byte[0];
-	
-	return temp;
+	return dataWaiting.take(dataWaiting.length());
+    }
+
+    /**
+     * Gets data of this object into an array, data is consumed when it is
+     * retrieved. Data that does not fit is kept for the next call.
+     * This method blocks until data is available.
+     *
+     * @param dst The array to copy the data to
+     * @param offset The position in dst of the first byte
+     * @param length The largest number of bytes to get
+     *
+     * @throws InterruptedException If the wait was interrupted.
+     * @return The number of bytes copied to dst.
+     */
+    public synchronized int getData(byte[] dst, int offset, int length)
+	throws InterruptedException {
+
+	if (dataWaiting.isEmpty()) {
+	    wait();
+	}
+
+	return dataWaiting.take(dst, offset, length);
     }
     
     /**
@@ -94,7 +102,7 @@ public class FifoBuffer {
      *
      */    
     public synchronized void empty() {
-	dataWaiting = new byte[0];
+	dataWaiting.clear();
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,122 @@
+/*
+ * RTP text/t140 Library
+ *
+ * Copyright (C) 2004-2008 Board of Regents of the University of Wisconsin System
+ * (Univ. of Wisconsin-Madison, Trace R&D Center)
+ * Copyright (C) 2004-2008 Omnitor AB
+ *
+ * This software was developed with support from the National Institute on
+ * Disability and Rehabilitation Research, US Dept of Education under Grant
+ * # H133E990006 and H133E040014
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * Please send a copy of any improved versions of the library to:
+ * Gunnar Hellstrom, Omnitor AB, Renathvagen 2, SE 121 37 Johanneshov, SWEDEN
+ * Gregg Vanderheiden, Trace Center, U of Wisconsin, Madison, Wi 53706
+ *
+ */
+package se.omnitor.util;
+
+/**
+ * A token bucket rate limiter. <br>
+ * <br>
+ * Tokens are added at a fixed rate up to a maximum, the burst size. Taking
+ * tokens lets that many units through, so the long term rate is limited
+ * to the fill rate while up to a burst of units can pass at once after an
+ * idle period. A new bucket is full. <br>
+ * <br>
+ * Times are given by the caller in milliseconds, which keeps the bucket
+ * free of clock calls and makes a whole send step use one time value.
+ *
+ * @author Unknown
+ */
+public class TokenBucket {
+
+    private double ratePerMs;
+    private double burst;
+    private double tokens;
+    private long lastTime;
+
+    /**
+     * Initializes a full bucket.
+     *
+     * @param ratePerSecond The number of tokens added per second, must be
+     * positive
+     * @param burst The largest number of tokens the bucket holds, at least
+     * one is used
+     */
+    public TokenBucket(double ratePerSecond, int burst) {
+	if (ratePerSecond <= 0) {
+	    throw new IllegalArgumentException("Rate must be positive");
+	}
+
+	ratePerMs = ratePerSecond / 1000.0;
+	this.burst = Math.max(1, burst);
+	tokens = this.burst;
+	lastTime = -1;
+    }
+
+    /**
+     * Gets the number of whole tokens that can be taken.
+     *
+     * @param now The current time in milliseconds
+     *
+     * @return The number of tokens
+     */
+    public synchronized int available(long now) {
+	refill(now);
+	return (int)tokens;
+    }
+
+    /**
+     * Takes tokens. Taking more than are available is allowed and leaves
+     * the bucket in debt, which is paid back before tokens are available
+     * again.
+     *
+     * @param count The number of tokens to take
+     * @param now The current time in milliseconds
+     */
+    public synchronized void take(int count, long now) {
+	refill(now);
+	tokens -= count;
+    }
+
+    /**
+     * Calculates how long it takes until a number of tokens is available.
+     *
+     * @param count The number of tokens, no more than the burst size
+     * @param now The current time in milliseconds
+     *
+     * @return The time in milliseconds, 0 if they are available now
+     */
+    public synchronized long timeUntil(int count, long now) {
+	refill(now);
+
+	if (tokens >= count) {
+	    return 0;
+	}
+	return (long)Math.ceil((count - tokens) / ratePerMs);
+    }
+
+    private void refill(long now) {
+	if (lastTime >= 0 && now > lastTime) {
+	    tokens = Math.min(burst, tokens + (now - lastTime) * ratePerMs);
+	}
+	if (now > lastTime) {
+	    lastTime = now;
+	}
+    }
+}
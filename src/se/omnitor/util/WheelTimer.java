@@ -0,0 +1,258 @@
+/*
+ * RTP text/t140 Library
+ *
+ * Copyright (C) 2004-2008 Board of Regents of the University of Wisconsin System
+ * (Univ. of Wisconsin-Madison, Trace R&D Center)
+ * Copyright (C) 2004-2008 Omnitor AB
+ *
+ * This software was developed with support from the National Institute on
+ * Disability and Rehabilitation Research, US Dept of Education under Grant
+ * # H133E990006 and H133E040014
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * Please send a copy of any improved versions of the library to:
+ * Gunnar Hellstrom, Omnitor AB, Renathvagen 2, SE 121 37 Johanneshov, SWEDEN
+ * Gregg Vanderheiden, Trace Center, U of Wisconsin, Madison, Wi 53706
+ *
+ */
+package se.omnitor.util;
+
+import java.util.ArrayList;
+
+/**
+ * A hashed timing wheel. One thread serves any number of timeouts, which
+ * makes it suitable for the loss timeouts of depacketizers, where every
+ * session has a few deadlines that are mostly cancelled or moved before
+ * they expire. <br>
+ * <br>
+ * Time is divided into ticks. The wheel has a fixed number of buckets and
+ * the thread moves to the next bucket on every tick, expiring the entries
+ * in it. Timeouts longer than one turn of the wheel count down their
+ * remaining turns. Scheduling and cancelling take constant time and do not
+ * allocate, since the caller owns the Entry and may reuse it any number of
+ * times. <br>
+ * <br>
+ * The thread is a daemon thread, started when the first entry is
+ * scheduled. It waits without ticking while no entries are scheduled.
+ *
+ * @author Unknown
+ */
+public class WheelTimer implements Runnable {
+
+    /**
+     * The tick length of the shared timer, in milliseconds.
+     */
+    public static final int DEFAULT_TICK = 10;
+
+    /**
+     * The number of buckets of the shared timer. With the default tick, one
+     * turn of the wheel is a little more than five seconds.
+     */
+    public static final int DEFAULT_BUCKETS = 512;
+
+    private static WheelTimer shared = null;
+
+    private long tick;
+    private Entry[] buckets;
+    private int cursor;
+    private int count;
+    private long nextTickTime;
+    private String name;
+    private Thread thread;
+
+    /**
+     * A timeout that can be scheduled on a WheelTimer. An entry is
+     * scheduled at most once at a time, scheduling it again moves it.
+     */
+    public static abstract class Entry {
+	private WheelTimer timer = null;
+	private Entry prev = null;
+	private Entry next = null;
+	private int bucket;
+	private long rounds;
+
+	/**
+	 * Called by the timer thread when the timeout expires. The entry is
+	 * no longer scheduled when this is called, so it may be scheduled
+	 * again from here. This must return quickly, all other timeouts wait
+	 * for it.
+	 *
+	 */
+	public abstract void expire();
+    }
+
+    /**
+     * Gets the timer shared by the whole process.
+     *
+     * @return The shared timer
+     */
+    public static synchronized WheelTimer getShared() {
+	if (shared == null) {
+	    shared = new WheelTimer(DEFAULT_TICK, DEFAULT_BUCKETS,
+				    "Shared WheelTimer");
+	}
+	return shared;
+    }
+
+    /**
+     * Initializes a timer. Most users should use the shared timer instead.
+     *
+     * @param tick The tick length in milliseconds, timeouts are rounded up to
+     * whole ticks
+     * @param buckets The number of buckets, rounded up to a power of two
+     * @param name The name of the timer thread
+     */
+    public WheelTimer(int tick, int buckets, String name) {
+	int size = 1;
+	while (size < buckets) {
+	    size <<= 1;
+	}
+
+	this.tick = Math.max(1, tick);
+	this.buckets = new Entry[size];
+	this.name = name;
+	cursor = 0;
+	count = 0;
+    }
+
+    /**
+     * Schedules an entry. If the entry is already scheduled it is moved to
+     * the new time.
+     *
+     * @param entry The entry
+     * @param delay The timeout in milliseconds
+     */
+    public synchronized void schedule(Entry entry, long delay) {
+	if (entry.timer != null) {
+	    entry.timer.cancel(entry);
+	}
+
+	long ticks = Math.max(1, (delay + tick - 1) / tick);
+
+	entry.timer = this;
+	entry.rounds = (ticks - 1) / buckets.length;
+	entry.bucket = (int)((cursor + ticks) & (buckets.length - 1));
+	entry.prev = null;
+	entry.next = buckets[entry.bucket];
+	if (entry.next != null) {
+	    entry.next.prev = entry;
+	}
+	buckets[entry.bucket] = entry;
+
+	if (count++ == 0) {
+	    // The wheel stood still while empty, start ticking from now
+	    nextTickTime = System.currentTimeMillis() + tick;
+	    if (thread == null) {
+		thread = new Thread(this, name);
+		thread.setDaemon(true);
+		thread.start();
+	    }
+	    notify();
+	}
+    }
+
+    /**
+     * Cancels an entry. Nothing happens if the entry is not scheduled.
+     *
+     * @param entry The entry
+     */
+    public synchronized void cancel(Entry entry) {
+	if (entry.timer != this) {
+	    return;
+	}
+
+	if (entry.prev != null) {
+	    entry.prev.next = entry.next;
+	} else {
+	    buckets[entry.bucket] = entry.next;
+	}
+	if (entry.next != null) {
+	    entry.next.prev = entry.prev;
+	}
+
+	entry.timer = null;
+	entry.prev = null;
+	entry.next = null;
+	count--;
+    }
+
+    /**
+     * Indicates whether an entry is scheduled on this timer.
+     *
+     * @param entry The entry
+     *
+     * @return true if the entry is scheduled
+     */
+    public synchronized boolean isScheduled(Entry entry) {
+	return entry.timer == this;
+    }
+
+    /**
+     * The timer thread. Expired entries are collected while holding the
+     * lock and expired after releasing it, so that expire() may schedule
+     * entries and take other locks.
+     *
+     */
+    public void run() {
+	ArrayList<Entry> expired = new ArrayList<Entry>();
+
+	while (true) {
+	    synchronized (this) {
+		try {
+		    while (count == 0) {
+			wait();
+		    }
+
+		    long wait = nextTickTime - System.currentTimeMillis();
+		    if (wait > 0) {
+			wait(wait);
+			continue;
+		    }
+		}
+		catch (InterruptedException ie) {
+		    // Ignore, the thread serves the whole process
+		    continue;
+		}
+
+		nextTickTime += tick;
+		cursor = (cursor + 1) & (buckets.length - 1);
+
+		Entry entry = buckets[cursor];
+		while (entry != null) {
+		    Entry next = entry.next;
+
+		    if (entry.rounds > 0) {
+			entry.rounds--;
+		    } else {
+			cancel(entry);
+			expired.add(entry);
+		    }
+		    entry = next;
+		}
+	    }
+
+	    for (int cnt=0; cnt<expired.size(); cnt++) {
+		try {
+		    expired.get(cnt).expire();
+		}
+		catch (RuntimeException e) {
+		    System.err.println("WheelTimer: error in timeout " + e);
+		}
+	    }
+	    expired.clear();
+	}
+    }
+}